@@ -0,0 +1,123 @@
+package org.javaseis.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.javaseis.array.IMultiArray;
+import org.javaseis.array.MultiArray;
+import org.javaseis.grid.GridDefinition;
+import org.javaseis.io.Seisio;
+import org.javaseis.jstopython.ChunkIndex;
+import org.javaseis.jstopython.ChunkedArrayWriter;
+import org.javaseis.util.SeisException;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ChunkedArrayWriter export of a dataset created in the temporary directory,
+ * for each codec on one or more tasks. The data is a dipping sinusoid with
+ * noise, so it compresses somewhat like seismic data.
+ * <p>
+ * The rawMB and storedMB counters are reported per second, so rawMB is the
+ * export throughput and rawMB / storedMB the compression ratio, which is also
+ * printed at the end of each trial.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ChunkedExportBench {
+  @Param({ "ZLIB", "QUANT16" })
+  String codec;
+
+  @Param({ "1", "4" })
+  int tasks;
+
+  int[] size = new int[] { 500, 100, 50, 2 };
+  int[] chunkShape = new int[] { 500, 32, 16, 1 };
+  String inPath, outDir;
+  ChunkIndex index;
+
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  public static class Bytes {
+    public double rawMB;
+    public double storedMB;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      rawMB = storedMB = 0;
+    }
+  }
+
+  @Setup
+  public void setup() throws SeisException, IOException {
+    File dir = File.createTempFile("jsbench", "");
+    dir.delete();
+    dir.mkdirs();
+    inPath = new File(dir, "input.js").getPath();
+    outDir = new File(dir, "chunks").getPath();
+    GridDefinition grid = GridDefinition.standardGrid(GridDefinition.CDP, size,
+        new long[] { 0, 1, 1, 1 }, new long[] { 4, 4, 1, 2 }, new double[] { 0, 0, 0, 0 },
+        new double[] { 4, 100, 25, 50 });
+    Seisio sio = new Seisio(inPath, grid);
+    sio.create();
+    IMultiArray frm = MultiArray.factory(2, float.class, 1, size);
+    float[] trc = new float[size[0]];
+    Random r = new Random(1);
+    int[] position = new int[4];
+    for (position[3] = 0; position[3] < size[3]; position[3]++) {
+      for (position[2] = 0; position[2] < size[2]; position[2]++) {
+        for (position[1] = 0; position[1] < size[1]; position[1]++) {
+          double t0 = 0.3 * position[1] + 0.1 * position[2];
+          for (int i = 0; i < size[0]; i++)
+            trc[i] = (float) (Math.sin(0.05 * (i + t0)) + 0.01 * r.nextGaussian());
+          frm.putTrace(trc, position);
+        }
+        int[] fpos = position.clone();
+        fpos[0] = fpos[1] = 0;
+        sio.writeMultiArray(frm, fpos);
+      }
+    }
+    sio.close();
+  }
+
+  @TearDown
+  public void tearDown() throws SeisException {
+    if (index != null)
+      System.out.println("\n" + codec + " compression ratio " + index.getCompressionRatio());
+    Seisio.delete(inPath);
+    File dir = new File(outDir);
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File f : files)
+        f.delete();
+    }
+    dir.delete();
+    dir.getParentFile().delete();
+  }
+
+  @Benchmark
+  public void export(Bytes bytes) throws SeisException {
+    index = ChunkedArrayWriter.export(inPath, outDir, chunkShape, ChunkedArrayWriter.Codec.valueOf(codec), 1,
+        tasks);
+    bytes.rawMB += index.rawBytes / 1e6;
+    bytes.storedMB += index.storedBytes / 1e6;
+  }
+}
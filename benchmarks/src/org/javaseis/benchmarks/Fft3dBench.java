@@ -0,0 +1,85 @@
+package org.javaseis.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import beta.javaseis.distributed.DistributedArray;
+import beta.javaseis.fft.SeisFft3d;
+import beta.javaseis.parallel.IParallelContext;
+import edu.mines.jtk.util.ArrayMath;
+
+/**
+ * Distributed 3D FFT, forward plus inverse. Each task sets up the transform
+ * once per trial and each invocation makes REPS round trips, so times are per
+ * round trip.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class Fft3dBench {
+  static final int REPS = 4;
+
+  @Param({ "1", "4" })
+  int tasks;
+
+  @Param({ "128" })
+  int n;
+
+  ParallelSession session;
+
+  @Setup
+  public void setup() {
+    session = new ParallelSession(new ParallelSession.Setup() {
+      @Override
+      public Runnable setup(IParallelContext pc) {
+        int[] shape = new int[] { n, n, n };
+        final SeisFft3d fft3d = new SeisFft3d(pc, shape, new float[] { 0, 0, 0 }, new int[] { -1, 1, 1 });
+        DistributedArray input = fft3d.getArray();
+        input.setShape(shape);
+        input.resetTraceIterator();
+        float[] trc = new float[n];
+        while (input.hasNext()) {
+          input.next();
+          ArrayMath.rand(trc);
+          input.putTrace(trc);
+        }
+        return new Runnable() {
+          @Override
+          public void run() {
+            for (int i = 0; i < REPS; i++) {
+              fft3d.forward();
+              fft3d.inverse();
+            }
+          }
+        };
+      }
+    }, tasks);
+  }
+
+  @TearDown
+  public void tearDown() {
+    session.close();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(REPS)
+  public void forwardInverse() {
+    session.run();
+  }
+}
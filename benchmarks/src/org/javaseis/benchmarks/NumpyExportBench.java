@@ -0,0 +1,86 @@
+package org.javaseis.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.javaseis.array.IMultiArray;
+import org.javaseis.array.MultiArray;
+import org.javaseis.grid.GridDefinition;
+import org.javaseis.io.Seisio;
+import org.javaseis.jstopython.JsVolumeToNumpy;
+import org.javaseis.util.SeisException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.mines.jtk.util.ArrayMath;
+
+/**
+ * JsVolumeToNumpy conversion of a random dataset created in the temporary
+ * directory, as in ExampleCreateRandomFile, on one or more tasks.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class NumpyExportBench {
+  @Param({ "1", "4" })
+  int tasks;
+
+  int[] size = new int[] { 500, 100, 50, 2 };
+  String inPath, outPath;
+
+  @Setup
+  public void setup() throws SeisException, IOException {
+    File dir = File.createTempFile("jsbench", "");
+    dir.delete();
+    dir.mkdirs();
+    inPath = new File(dir, "input.js").getPath();
+    outPath = new File(dir, "output.npy").getPath();
+    GridDefinition grid = GridDefinition.standardGrid(GridDefinition.CDP, size,
+        new long[] { 0, 1, 1, 1 }, new long[] { 4, 4, 1, 2 }, new double[] { 0, 0, 0, 0 },
+        new double[] { 4, 100, 25, 50 });
+    Seisio sio = new Seisio(inPath, grid);
+    sio.create();
+    IMultiArray frm = MultiArray.factory(2, float.class, 1, size);
+    float[] trc = new float[size[0]];
+    int[] position = new int[4];
+    for (position[3] = 0; position[3] < size[3]; position[3]++) {
+      for (position[2] = 0; position[2] < size[2]; position[2]++) {
+        for (position[1] = 0; position[1] < size[1]; position[1]++) {
+          ArrayMath.rand(trc);
+          frm.putTrace(trc, position);
+        }
+        int[] fpos = position.clone();
+        fpos[0] = fpos[1] = 0;
+        sio.writeMultiArray(frm, fpos);
+      }
+    }
+    sio.close();
+  }
+
+  @TearDown
+  public void tearDown() throws SeisException {
+    Seisio.delete(inPath);
+    File out = new File(outPath);
+    out.delete();
+    out.getParentFile().delete();
+  }
+
+  @Benchmark
+  public void convert() throws SeisException {
+    JsVolumeToNumpy.jsVolumeToNumpy(new String[] { inPath, outPath, Integer.toString(tasks) });
+  }
+}
@@ -0,0 +1,146 @@
+package org.javaseis.benchmarks;
+
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import beta.javaseis.parallel.IParallelContext;
+import beta.javaseis.parallel.ParallelTask;
+import beta.javaseis.parallel.ParallelTaskExecutor;
+import beta.javaseis.parallel.UniprocessorContext;
+
+/**
+ * Parallel tasks that stay alive across benchmark invocations, so that
+ * contexts, arrays and FFT plans are built once in a JMH setup method and only
+ * the work is timed.
+ * <p>
+ * With one task the work runs in the calling thread with a UniprocessorContext.
+ * Otherwise a set of threaded parallel tasks each build their own work, then
+ * wait for run() to start it. Call close() from the JMH teardown method.
+ *
+ * @author chuck
+ *
+ */
+public class ParallelSession {
+
+  /**
+   * Builds the work for one task
+   */
+  public interface Setup {
+    /**
+     * @param pc - parallel context for the task
+     * @return work run by the task on each call to ParallelSession.run()
+     */
+    Runnable setup(IParallelContext pc);
+  }
+
+  private static final IParallelContext UNIPROCESSOR = new UniprocessorContext();
+
+  private final Setup setup;
+  private Runnable work;
+  private CyclicBarrier start, done;
+  private Thread runner;
+  private volatile boolean closed;
+  private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+  /**
+   * Start the tasks and build their work
+   * @param setup - builds the work for each task
+   * @param taskCount - 1 for a UniprocessorContext in the calling thread,
+   *          otherwise the number of threaded tasks
+   */
+  public ParallelSession(Setup setup, final int taskCount) {
+    this.setup = setup;
+    if (taskCount <= 1) {
+      work = setup.setup(UNIPROCESSOR);
+      return;
+    }
+    start = new CyclicBarrier(taskCount + 1);
+    done = new CyclicBarrier(taskCount + 1);
+    runner = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          ParallelTaskExecutor.runTasks(SessionTask.class, taskCount, (Object) ParallelSession.this);
+        } catch (ExecutionException e) {
+          failure.compareAndSet(null, e);
+        }
+      }
+    }, "ParallelSession");
+    runner.setDaemon(true);
+    runner.start();
+    await(done);
+    if (failure.get() != null) {
+      close();
+      throw new RuntimeException(failure.get());
+    }
+  }
+
+  /**
+   * Run the work once on every task and wait for it to finish
+   */
+  public void run() {
+    if (runner == null) {
+      work.run();
+      return;
+    }
+    await(start);
+    await(done);
+    if (failure.get() != null)
+      throw new RuntimeException(failure.get());
+  }
+
+  /**
+   * Stop the tasks
+   */
+  public void close() {
+    if (runner == null || closed)
+      return;
+    closed = true;
+    await(start);
+    try {
+      runner.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static void await(CyclicBarrier barrier) {
+    try {
+      barrier.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (BrokenBarrierException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public static class SessionTask extends ParallelTask {
+    @Override
+    public void run() {
+      ParallelSession session = (ParallelSession) getTaskObject();
+      IParallelContext pc = getParallelContext();
+      Runnable work = null;
+      try {
+        work = session.setup.setup(pc);
+      } catch (RuntimeException e) {
+        session.failure.compareAndSet(null, e);
+      }
+      await(session.done);
+      while (true) {
+        await(session.start);
+        if (session.closed)
+          return;
+        try {
+          if (work != null)
+            work.run();
+        } catch (RuntimeException e) {
+          session.failure.compareAndSet(null, e);
+        }
+        await(session.done);
+      }
+    }
+  }
+}
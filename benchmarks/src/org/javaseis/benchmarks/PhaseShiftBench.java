@@ -0,0 +1,93 @@
+package org.javaseis.benchmarks;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.javaseis.examples.imaging.ShotMigPhaseShift;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import beta.javaseis.fft.Fft2d;
+import beta.javaseis.fft.IFFT;
+import beta.javaseis.parallel.IParallelContext;
+import beta.javaseis.parallel.UniprocessorContext;
+import beta.javaseis.regulargrid.RegularGrid;
+import edu.mines.jtk.util.ArrayMath;
+
+/**
+ * Phase shift kernels of ShotMigPhaseShift for one frequency and depth step.
+ * applyPhaseShift runs with kz tables from the cache, and
+ * applyPhaseShiftUncached with the cache disabled so every call computes kz.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PhaseShiftBench {
+  @Param({ "64", "128", "256", "512" })
+  int n;
+
+  ShotMigPhaseShift smps, uncached;
+  float[][] s, r;
+  float[] table;
+  float dz = 10;
+
+  @Setup
+  public void setup() {
+    IParallelContext pc = new UniprocessorContext();
+    int nf = 2;
+    int[] shape = new int[] { 2 * n, n, nf };
+    double[] deltas = new double[] { 10, 10, 1 };
+    RegularGrid shot = new RegularGrid(shape, deltas, pc);
+    RegularGrid rcvr = new RegularGrid(shape, deltas, pc);
+    RegularGrid image = new RegularGrid(new int[] { n, n, 1 }, new double[] { 10, 10, dz }, pc);
+    float[] vels = new float[1];
+    Arrays.fill(vels, 2000f);
+    smps = new ShotMigPhaseShift(0, 0, nf, 1, dz, rcvr, shot, image, vels);
+    uncached = new ShotMigPhaseShift(0, 0, nf, 1, dz, rcvr, shot, image, vels);
+    uncached.setKzCacheLimit(0);
+    // Same FFT lengths as the migrator
+    Fft2d f2d = new Fft2d(n, n, 0, 0, IFFT.Type.COMPLEX, IFFT.Type.COMPLEX, -1, -1,
+        IFFT.Scale.SYMMETRIC, IFFT.Scale.SYMMETRIC);
+    s = new float[f2d.getLength(1)][2 * f2d.getLength(0)];
+    r = new float[f2d.getLength(1)][2 * f2d.getLength(0)];
+    ArrayMath.rand(s);
+    ArrayMath.rand(r);
+    table = smps.getKzCache().getPhase(1, 2000f);
+  }
+
+  @Benchmark
+  public float[][] applyPhaseShift() {
+    smps.applyPhaseShift(1, 2000f, dz, s, r);
+    return s;
+  }
+
+  @Benchmark
+  public float[][] applyPhaseShiftUncached() {
+    uncached.applyPhaseShift(1, 2000f, dz, s, r);
+    return s;
+  }
+
+  @Benchmark
+  public float[][] applyPhaseSymmetric() {
+    smps.applyPhaseSymmetric(1, 2000f, dz, s, r);
+    return s;
+  }
+
+  @Benchmark
+  public float[][] applyPhaseTable() {
+    smps.applyPhaseTable(table, s, r);
+    return s;
+  }
+}
@@ -0,0 +1,181 @@
+package org.javaseis.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.javaseis.cloud.array.PositionConsumer;
+import org.javaseis.cloud.array.PositionIndex;
+import org.javaseis.cloud.array.PositionIterator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Position iteration and position/index conversion. Times are per position.
+ * Traversals at scope 0 visit every sample and at scope 1 every trace, so each
+ * scope has its own benchmarks normalized by its own position count. The
+ * conversions run at both scopes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PositionBench {
+  static final int COUNT = 4096;
+  static final int[] SHAPE = new int[] { 64, 32, 16, 4 };
+  static final int TRACES = 32 * 16 * 4;
+  static final int SAMPLES = 64 * TRACES;
+
+  /**
+   * Iterator over the samples, scope 0
+   */
+  @State(Scope.Thread)
+  public static class Samples {
+    PositionIterator iterator = new PositionIterator(SHAPE, 0);
+  }
+
+  /**
+   * Iterator over the traces, scope 1
+   */
+  @State(Scope.Thread)
+  public static class Traces {
+    PositionIterator iterator = new PositionIterator(SHAPE, 1);
+  }
+
+  /**
+   * Random positions and their indices at the scope being converted
+   */
+  @State(Scope.Thread)
+  public static class Indexed {
+    @Param({ "0", "1" })
+    int scope;
+
+    int[] shape = SHAPE;
+    PositionIndex index;
+    int[][] positions;
+    long[] indices;
+    int[] work;
+    int[] packed;
+    long[] bulkIndices;
+
+    @Setup
+    public void setup() {
+      index = new PositionIndex(shape, scope);
+      Random rand = new Random(1);
+      positions = new int[COUNT][shape.length];
+      indices = new long[COUNT];
+      for (int i = 0; i < COUNT; i++) {
+        for (int j = scope; j < shape.length; j++) {
+          positions[i][j] = rand.nextInt(shape[j]);
+        }
+        indices[i] = index.positionToIndex(positions[i]);
+      }
+      work = new int[shape.length];
+      packed = new int[COUNT * shape.length];
+      bulkIndices = new long[COUNT];
+      index.indexToPosition(indices, packed);
+    }
+  }
+
+  static long next(PositionIterator iterator) {
+    long sum = 0;
+    iterator.reset();
+    while (iterator.hasNext()) {
+      sum += iterator.next()[SHAPE.length - 1];
+    }
+    return sum;
+  }
+
+  static long forEachPosition(PositionIterator iterator) {
+    final long[] sum = new long[1];
+    final int last = SHAPE.length - 1;
+    iterator.forEachPosition(new PositionConsumer() {
+      @Override
+      public void accept(int[] position) {
+        sum[0] += position[last];
+      }
+    });
+    return sum[0];
+  }
+
+  /**
+   * Full traversal of the samples
+   */
+  @Benchmark
+  @OperationsPerInvocation(SAMPLES)
+  public long next(Samples samples) {
+    return next(samples.iterator);
+  }
+
+  /**
+   * Full traversal of the traces
+   */
+  @Benchmark
+  @OperationsPerInvocation(TRACES)
+  public long nextTrace(Traces traces) {
+    return next(traces.iterator);
+  }
+
+  /**
+   * Full traversal of the samples with the bulk callback
+   */
+  @Benchmark
+  @OperationsPerInvocation(SAMPLES)
+  public long forEachPosition(Samples samples) {
+    return forEachPosition(samples.iterator);
+  }
+
+  /**
+   * Full traversal of the traces with the bulk callback
+   */
+  @Benchmark
+  @OperationsPerInvocation(TRACES)
+  public long forEachTrace(Traces traces) {
+    return forEachPosition(traces.iterator);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(COUNT)
+  public long positionToIndex(Indexed s) {
+    long sum = 0;
+    for (int i = 0; i < COUNT; i++) {
+      sum += s.index.positionToIndex(s.positions[i]);
+    }
+    return sum;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(COUNT)
+  public long indexToPosition(Indexed s) {
+    long sum = 0;
+    for (int i = 0; i < COUNT; i++) {
+      s.index.indexToPosition(s.indices[i], s.work);
+      sum += s.work[SHAPE.length - 1];
+    }
+    return sum;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(COUNT)
+  public int[] indexToPositionBulk(Indexed s) {
+    s.index.indexToPosition(s.indices, s.packed);
+    return s.packed;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(COUNT)
+  public long[] positionToIndexBulk(Indexed s) {
+    s.index.positionToIndex(s.packed, s.bulkIndices);
+    return s.bulkIndices;
+  }
+}
@@ -0,0 +1,81 @@
+package org.javaseis.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.javaseis.grid.GridDefinition;
+import org.javaseis.volume.SeismicVolume;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import beta.javaseis.array.ITraceIterator;
+import beta.javaseis.parallel.IParallelContext;
+
+/**
+ * Trace iteration over a SeismicVolume. Each task allocates its volume once per
+ * trial and each invocation makes REPS passes, so times are per pass over the
+ * whole volume.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SeismicVolumeBench {
+  static final int REPS = 10;
+
+  @Param({ "1", "4" })
+  int tasks;
+
+  ParallelSession session;
+
+  @Setup
+  public void setup() {
+    session = new ParallelSession(new ParallelSession.Setup() {
+      @Override
+      public Runnable setup(IParallelContext pc) {
+        GridDefinition grid = GridDefinition.getDefault(3, new int[] { 1000, 200, 100 });
+        final SeismicVolume volume = new SeismicVolume(pc, grid);
+        return new Runnable() {
+          @Override
+          public void run() {
+            double sum = 0;
+            for (int i = 0; i < REPS; i++) {
+              ITraceIterator ti = volume.getTraceIterator();
+              while (ti.hasNext()) {
+                float[] trc = ti.next();
+                trc[0] += 1;
+                ti.putTrace(trc);
+                sum += trc[0];
+              }
+            }
+            if (sum < 0)
+              throw new IllegalStateException("Unexpected sum " + sum);
+          }
+        };
+      }
+    }, tasks);
+  }
+
+  @TearDown
+  public void tearDown() {
+    session.close();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(REPS)
+  public void traceIteration() {
+    session.run();
+  }
+}
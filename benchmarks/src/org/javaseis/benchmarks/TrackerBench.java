@@ -0,0 +1,59 @@
+package org.javaseis.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.javaseis.time.IntervalStats;
+import org.javaseis.time.RateTracker;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of timing one interval with a RateTracker, by name on one thread and
+ * through registered handles shared by several threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TrackerBench {
+  RateTracker named;
+  IntervalStats plain, histogram;
+
+  @Setup
+  public void setup() {
+    named = new RateTracker(new String[] { "named" });
+    RateTracker rt = new RateTracker();
+    plain = rt.register("plain");
+    histogram = rt.register("histogram", true);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public double byName() {
+    named.start("named");
+    return named.stop("named", 1);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public long handle() {
+    return plain.stop(plain.start(), 1);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public long handleWithHistogram() {
+    return histogram.stop(histogram.start(), 1);
+  }
+}
@@ -0,0 +1,81 @@
+package org.javaseis.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.javaseis.array.ElementType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import beta.javaseis.array.TransposeType;
+import beta.javaseis.distributed.Decomposition;
+import beta.javaseis.distributed.DistributedArray;
+import beta.javaseis.parallel.IParallelContext;
+
+/**
+ * DistributedArray transposes, set up as in ExampleParallel2D. Each task
+ * allocates its array once per trial and each invocation makes REPS
+ * transposes, so times are per transpose.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TransposeBench {
+  static final int REPS = 8;
+
+  @Param({ "1", "4" })
+  int tasks;
+
+  @Param({ "T132" })
+  String type;
+
+  ParallelSession session;
+
+  @Setup
+  public void setup() {
+    final TransposeType tt = TransposeType.valueOf(type);
+    session = new ParallelSession(new ParallelSession.Setup() {
+      @Override
+      public Runnable setup(IParallelContext pc) {
+        int[] shape = new int[] { 256, 128, 128 };
+        int[] dtypes = new int[] { Decomposition.NONE, Decomposition.BLOCK, Decomposition.BLOCK };
+        int[] tshape = DistributedArray.getTransposeShape(pc, 3, shape, dtypes);
+        final DistributedArray da = new DistributedArray(pc, ElementType.FLOAT, tshape, dtypes);
+        return new Runnable() {
+          @Override
+          public void run() {
+            // REPS is even and T132 is its own inverse, so the array returns
+            // to its original layout after each invocation
+            for (int i = 0; i < REPS; i++) {
+              da.transpose(tt);
+            }
+          }
+        };
+      }
+    }, tasks);
+  }
+
+  @TearDown
+  public void tearDown() {
+    session.close();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(REPS)
+  public void transpose() {
+    session.run();
+  }
+}
@@ -0,0 +1,73 @@
+package org.javaseis.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.javaseis.cloud.array.PositionConsumer;
+import org.javaseis.cloud.array.PositionIterator;
+import org.javaseis.cloud.array.PositionTraversal;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Frame scope traversal orders over a large 4D grid. Each position reads one
+ * frame and adds it to the frame with the frame and volume axes swapped, so
+ * lexicographic order reads sequentially but writes with a stride of a whole
+ * volume. Times are per frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TraversalBench {
+  static final int N = 256;
+  static final int FRAMES = N * N;
+
+  @Param({ "LEXICOGRAPHIC", "BLOCKED", "MORTON", "HILBERT" })
+  PositionTraversal.Order order;
+
+  @Param({ "16" })
+  int block;
+
+  int[] shape = new int[] { 16, 16, N, N };
+  int frameLength = shape[0] * shape[1];
+  float[] in, out;
+  PositionIterator iterator;
+  int[] blockShape;
+
+  @Setup
+  public void setup() {
+    in = new float[frameLength * FRAMES];
+    out = new float[frameLength * FRAMES];
+    for (int i = 0; i < in.length; i++)
+      in[i] = i % 97;
+    iterator = new PositionIterator(shape, 2);
+    blockShape = new int[] { 1, 1, block, block };
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(FRAMES)
+  public float transposeFrames() {
+    PositionTraversal.forEachPosition(iterator, order, blockShape, new PositionConsumer() {
+      @Override
+      public void accept(int[] position) {
+        int src = (position[3] * N + position[2]) * frameLength;
+        int dst = (position[2] * N + position[3]) * frameLength;
+        for (int i = 0; i < frameLength; i++)
+          out[dst + i] += in[src + i];
+      }
+    });
+    return out[0];
+  }
+}
@@ -11,13 +11,25 @@ class JsVolumeToPy:
     def __init__(self, data_filename, dtype=np.float32):
         '''
         Initializes a JsVolumeToPy object by reading a binary file and associated XML metadata.
+        Files written by JsVolumeToNumpy as .npy are memory mapped instead and need no XML.
         
         Args:
-            data_filename (str): Path to the binary data file (.bin).
+            data_filename (str): Path to the binary data file (.bin) or .npy file.
             dtype (numpy.dtype, optional): The data type of the array (default: np.float32).
         '''
         self.data_filename = data_filename
         self.dtype = dtype
+
+        if data_filename.endswith(".npy"):
+            # Shape and dtype come from the .npy header, slowest JavaSeis axis first
+            self.array = np.load(data_filename, mmap_mode="r")
+            self.dtype = self.array.dtype
+            self.metadata = {
+                "shape": self.array.shape,
+                "coordinate_frame": "Unknown",
+                "xml_filename": None,
+            }
+            return
         
         # Read metadata from XML
         self.metadata = self.read_metadata_from_xml()
@@ -82,3 +94,49 @@ class JsVolumeToPy:
     def __repr__(self):
         '''Representation of the JsVolumeToPy object for easier debugging.'''
         return f"JsVolumeToPy(shape={self.metadata['shape']}, dtype={self.dtype}, coordinate_frame={self.metadata['coordinate_frame']})"
+
+
+def read_chunked_region(dirname, region):
+    '''
+    Reads a sub-cube of a chunked array written by ChunkedArrayWriter, fetching
+    only the chunks that overlap it. Arrays written with the ZLIB codec can also
+    be opened with zarr.open(dirname).
+
+    Args:
+        dirname (str): Chunked array directory holding index.json.
+        region (tuple of slice): One slice per axis, slowest JavaSeis axis first, step 1.
+
+    Returns:
+        numpy.ndarray: float32 array for the region.
+    '''
+    import json
+    import zlib
+
+    with open(os.path.join(dirname, "index.json")) as f:
+        index = json.load(f)
+    shape = index["shape"]
+    chunks = index["chunks"]
+    entries = {e["key"]: e for e in index["entries"]}
+    bounds = [s.indices(n)[:2] for s, n in zip(region, shape)]
+    out = np.zeros([hi - lo for lo, hi in bounds], dtype=np.float32)
+    if out.size == 0:
+        return out
+    ranges = [range(lo // c, (hi - 1) // c + 1) for (lo, hi), c in zip(bounds, chunks)]
+    for cidx in np.ndindex(*[len(r) for r in ranges]):
+        cidx = [r[i] for r, i in zip(ranges, cidx)]
+        entry = entries[".".join(str(i) for i in cidx)]
+        with open(os.path.join(dirname, entry["key"]), "rb") as f:
+            data = zlib.decompress(f.read())
+        if index["codec"] == "QUANT16":
+            chunk = np.frombuffer(data, dtype="<i2").astype(np.float32) / entry["scale"] + entry["offset"]
+        else:
+            chunk = np.frombuffer(data, dtype="<f4")
+        chunk = chunk.reshape(chunks)
+        src, dst = [], []
+        for i, (lo, hi), c in zip(cidx, bounds, chunks):
+            c0 = i * c
+            a, b = max(lo, c0), min(hi, c0 + c)
+            src.append(slice(a - c0, b - c0))
+            dst.append(slice(a - lo, b - lo))
+        out[tuple(dst)] = chunk[tuple(src)]
+    return out
@@ -179,4 +179,17 @@ public interface IPosition extends Iterable<int[]>, Iterator<int[]> {
    * @return long element count
    */
   public long getTotalCount();
+
+  /**
+   * Reset this IPosition and visit every position in its range, in the same
+   * order as repeated calls to next(). On return the IPosition is left at the
+   * last position, as if it had been iterated to the end.
+   * @param action - callback for each position
+   */
+  public default void forEachPosition(PositionConsumer action) {
+    reset();
+    while (hasNext()) {
+      action.accept(next());
+    }
+  }
 }
\ No newline at end of file
@@ -0,0 +1,71 @@
+package org.javaseis.cloud.array;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class JTestPositionIndex {
+
+  static PositionIndex create() {
+    int[] shape = new int[] { 1250, 380, 8640, 30 };
+    int[] start = new int[] { 25, 15, 105, 2 };
+    int[] end = new int[] { 1249, 379, 8639, 29 };
+    int[] incr = new int[] { 5, 7, 11, 3 };
+    return new PositionIndex(4, 1, start, end, incr, shape);
+  }
+
+  static void checkBulk(PositionIndex pi, long[] indices, boolean parallel) {
+    int ndim = pi.ndim;
+    int[] positions = new int[indices.length * ndim];
+    pi.indexToPosition(indices, positions, parallel);
+    int[] pos = new int[ndim];
+    int[] expected = new int[ndim];
+    for (int k = 0; k < indices.length; k++) {
+      pi.indexToPosition(indices[k], expected);
+      System.arraycopy(positions, k * ndim, pos, 0, ndim);
+      for (int i = pi.scope; i < ndim; i++) {
+        assertEquals("Index " + indices[k] + " dim " + i, expected[i], pos[i]);
+      }
+    }
+    long[] back = new long[indices.length];
+    pi.positionToIndex(positions, back, parallel);
+    assertArrayEquals(indices, back);
+  }
+
+  @Test
+  public void testTotalCount() {
+    PositionIndex pi = create();
+    assertEquals(53L * 776 * 10, pi.getTotalCount());
+    assertEquals(pi.getTotalCount() - 1, pi.last());
+  }
+
+  @Test
+  public void testBulkConversion() {
+    PositionIndex pi = create();
+    Random r = new Random(5);
+    long[] indices = new long[3 * PositionIndex.PARALLEL_THRESHOLD + 17];
+    for (int k = 0; k < indices.length; k++) {
+      indices[k] = (long) (r.nextDouble() * pi.getTotalCount());
+    }
+    indices[0] = 0;
+    indices[1] = pi.getTotalCount() - 1;
+    checkBulk(pi, indices, false);
+    checkBulk(pi, indices, true);
+  }
+
+  @Test
+  public void testLongIndex() {
+    int[] shape = new int[] { 4, 3000, 3000, 1000 };
+    PositionIndex pi = new PositionIndex(shape, 1);
+    assertTrue(pi.getTotalCount() > Integer.MAX_VALUE);
+    Random r = new Random(6);
+    long[] indices = new long[10000];
+    for (int k = 0; k < indices.length; k++) {
+      indices[k] = (long) (r.nextDouble() * pi.getTotalCount());
+    }
+    indices[1] = pi.getTotalCount() - 1;
+    checkBulk(pi, indices, false);
+  }
+}
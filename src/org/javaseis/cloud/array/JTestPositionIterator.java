@@ -0,0 +1,194 @@
+package org.javaseis.cloud.array;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class JTestPositionIterator {
+
+  static PositionIterator create(int ndim, int scope) {
+    int[] shape = new int[ndim];
+    int[] start = new int[ndim];
+    int[] end = new int[ndim];
+    int[] incr = new int[ndim];
+    for (int i = 0; i < ndim; i++) {
+      shape[i] = 7 - i % 3;
+      start[i] = i % 2;
+      end[i] = shape[i] - 1;
+      incr[i] = 1 + i % 3;
+    }
+    return new PositionIterator(shape, start, end, incr, scope, new int[ndim]);
+  }
+
+  static List<int[]> iterate(PositionIterator pi) {
+    List<int[]> list = new ArrayList<int[]>();
+    pi.reset();
+    while (pi.hasNext()) {
+      list.add(pi.next().clone());
+    }
+    return list;
+  }
+
+  @Test
+  public void testForEachPosition() {
+    for (int ndim = 1; ndim <= 6; ndim++) {
+      for (int scope = 0; scope < ndim; scope++) {
+        PositionIterator pi = create(ndim, scope);
+        List<int[]> expected = iterate(pi);
+        final List<int[]> actual = new ArrayList<int[]>();
+        pi.forEachPosition(new PositionConsumer() {
+          @Override
+          public void accept(int[] position) {
+            actual.add(position.clone());
+          }
+        });
+        assertEquals("Count for ndim " + ndim + " scope " + scope, expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+          assertArrayEquals(expected.get(i), actual.get(i));
+        }
+        // Left at the end of the range, as after a hasNext/next loop
+        assertFalse(pi.hasNext());
+        assertArrayEquals(expected.get(expected.size() - 1), pi.getPosition());
+      }
+    }
+  }
+
+  @Test
+  public void testSpliterator() {
+    for (int ndim = 1; ndim <= 5; ndim++) {
+      for (int scope = 0; scope < ndim; scope++) {
+        PositionIterator pi = create(ndim, scope);
+        List<int[]> expected = iterate(pi);
+        assertEquals(expected.size(), pi.getTotalCount());
+        // Serial stream visits the same positions in order
+        final List<int[]> actual = new ArrayList<int[]>();
+        pi.stream(false).forEach(p -> actual.add(p.clone()));
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+          assertArrayEquals(expected.get(i), actual.get(i));
+        }
+        // Parallel stream visits every position once
+        long hash = 0;
+        for (int[] p : expected) {
+          hash += Arrays.hashCode(p);
+        }
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong phash = new AtomicLong();
+        pi.stream(true).forEach(p -> {
+          count.incrementAndGet();
+          phash.addAndGet(Arrays.hashCode(p));
+        });
+        assertEquals(expected.size(), count.get());
+        assertEquals(hash, phash.get());
+      }
+    }
+  }
+
+  @Test
+  public void testTraversalOrders() {
+    int[] block = new int[] { 2, 3, 2, 3, 2 };
+    for (int ndim = 1; ndim <= 5; ndim++) {
+      for (int scope = 0; scope < ndim; scope++) {
+        PositionIterator pi = create(ndim, scope);
+        List<int[]> expected = iterate(pi);
+        Set<String> keys = new HashSet<String>();
+        for (int[] p : expected) {
+          keys.add(Arrays.toString(p));
+        }
+        for (PositionTraversal.Order order : PositionTraversal.Order.values()) {
+          final List<int[]> actual = new ArrayList<int[]>();
+          PositionTraversal.forEachPosition(pi, order, block, new PositionConsumer() {
+            @Override
+            public void accept(int[] position) {
+              actual.add(position.clone());
+            }
+          });
+          assertEquals(order + " ndim " + ndim + " scope " + scope, expected.size(), actual.size());
+          Set<String> seen = new HashSet<String>();
+          for (int[] p : actual) {
+            assertTrue(order + " visited " + Arrays.toString(p),
+                keys.contains(Arrays.toString(p)) && seen.add(Arrays.toString(p)));
+          }
+          if (order == PositionTraversal.Order.LEXICOGRAPHIC) {
+            for (int i = 0; i < expected.size(); i++) {
+              assertArrayEquals(expected.get(i), actual.get(i));
+            }
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testHilbertAdjacency() {
+    PositionIterator pi = new PositionIterator(new int[] { 8, 8, 8 }, 0);
+    final List<int[]> list = new ArrayList<int[]>();
+    PositionTraversal.forEachPosition(pi, PositionTraversal.Order.HILBERT, null, new PositionConsumer() {
+      @Override
+      public void accept(int[] position) {
+        list.add(position.clone());
+      }
+    });
+    assertEquals(512, list.size());
+    for (int i = 1; i < list.size(); i++) {
+      int d = 0;
+      for (int j = 0; j < 3; j++) {
+        d += Math.abs(list.get(i)[j] - list.get(i - 1)[j]);
+      }
+      assertEquals("Step " + i, 1, d);
+    }
+  }
+
+  @Test
+  public void testPartitions() {
+    PositionPartition.CostFunction cost = new PositionPartition.CostFunction() {
+      @Override
+      public double cost(int[] position) {
+        return 1 + position[position.length - 1];
+      }
+    };
+    for (int ndim = 1; ndim <= 4; ndim++) {
+      for (int scope = 0; scope < ndim; scope++) {
+        PositionIterator pi = create(ndim, scope);
+        List<int[]> expected = iterate(pi);
+        for (int size = 1; size <= 5; size++) {
+          for (int policy = 0; policy < 3; policy++) {
+            List<int[]> actual = new ArrayList<int[]>();
+            for (int rank = 0; rank < size; rank++) {
+              PositionPartition pp = (policy == 0 ? PositionPartition.block(pi, rank, size)
+                  : policy == 1 ? PositionPartition.cyclic(pi, rank, size)
+                      : PositionPartition.weighted(pi, rank, size, cost));
+              int n = 0;
+              for (int[] p : pp) {
+                actual.add(p.clone());
+                n++;
+              }
+              assertEquals(pp.getCount(), n);
+            }
+            String msg = "Policy " + policy + " ndim " + ndim + " scope " + scope + " size " + size;
+            assertEquals(msg, expected.size(), actual.size());
+            if (policy != 1) {
+              // Contiguous blocks in rank order give the full range in order
+              for (int i = 0; i < expected.size(); i++) {
+                assertArrayEquals(msg, expected.get(i), actual.get(i));
+              }
+            } else {
+              Set<String> seen = new HashSet<String>();
+              for (int[] p : actual) {
+                assertTrue(msg, seen.add(Arrays.toString(p)));
+              }
+            }
+          }
+        }
+      }
+    }
+  }
+
+}
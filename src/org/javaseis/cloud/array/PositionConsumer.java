@@ -0,0 +1,17 @@
+package org.javaseis.cloud.array;
+
+/**
+ * Callback for bulk position traversal.
+ * <p>
+ * The position passed to accept is the iterator's own position array, as
+ * returned by IPosition.next(). It is only valid for the duration of the call
+ * and must not be modified or retained.
+ */
+public interface PositionConsumer {
+
+  /**
+   * Process one position
+   * @param position - REFERENCE to the current position
+   */
+  public void accept(int[] position);
+}
@@ -1,17 +1,34 @@
 package org.javaseis.cloud.array;
 
 import java.util.Arrays;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
 /**
  * Convert multi-dimensional array positions to and from a linear index
+ * <p>
+ * The bulk methods convert arrays of indices to packed position blocks, with
+ * ndim ints per position, and back. They replace the divisions by counts and
+ * increments with multiplications by precomputed magic numbers when the
+ * indices fit in an int, or by a floating point reciprocal with an exact
+ * correction otherwise.
  * @author chuck@momacmo.org
  *
  */
 public class PositionIndex {
 
+  /** Batches smaller than this are converted on the calling thread */
+  public static final int PARALLEL_THRESHOLD = 1 << 16;
+
   int ndim, scope;
   int[] start, end, incr, shape, counts;
   long[] mults;
   long totalCount;
+  /** Magic multipliers and shifts for division by counts and increments */
+  long[] countMagic, incrMagic;
+  int[] countShift, incrShift;
+  /** Reciprocals of counts for indices beyond the int range */
+  double[] countRecip;
+  boolean intIndex;
   
   public PositionIndex(int[] shape, int scope ) {
     this.shape = shape;
@@ -94,7 +111,34 @@ public class PositionIndex {
       else
         mults[i] = mults[i - 1] * counts[i - 1];
     }
-    totalCount = mults[ndim-1]*shape[ndim-1];
+    totalCount = (scope < ndim ? mults[ndim - 1] * counts[ndim - 1] : 1);
+    initDivision();
+  }
+
+  /**
+   * Precompute the multipliers used by the bulk conversions
+   */
+  void initDivision() {
+    countMagic = new long[ndim];
+    countShift = new int[ndim];
+    incrMagic = new long[ndim];
+    incrShift = new int[ndim];
+    countRecip = new double[ndim];
+    for (int i = scope; i < ndim; i++) {
+      magic(counts[i], countMagic, countShift, i);
+      magic(Math.abs(incr[i]), incrMagic, incrShift, i);
+      countRecip[i] = 1.0 / counts[i];
+    }
+    intIndex = totalCount <= Integer.MAX_VALUE;
+  }
+
+  /**
+   * Compute m and s such that n/d == (n*m) >>> s for all 0 <= n < 2^31
+   */
+  private static void magic(int d, long[] m, int[] s, int i) {
+    int l = 32 - Integer.numberOfLeadingZeros(d - 1);
+    s[i] = 31 + l;
+    m[i] = ((1L << s[i]) + d - 1) / d;
   }
 
   /**
@@ -127,6 +171,152 @@ public class PositionIndex {
     }
   }
   
+  /**
+   * Convert linear indices to packed positions
+   * @param indices - linear indices in the range of this PositionIndex
+   * @param positions - output positions, ndim values per index, dimensions
+   *          below the scope are set to their start values
+   */
+  public void indexToPosition(long[] indices, int[] positions) {
+    indexToPosition(indices, 0, indices.length, positions);
+  }
+
+  /**
+   * Convert linear indices to packed positions, optionally on several threads
+   * @param indices - linear indices in the range of this PositionIndex
+   * @param positions - output positions, ndim values per index
+   * @param parallel - true to split large batches across the common fork/join
+   *          pool
+   */
+  public void indexToPosition(final long[] indices, final int[] positions, boolean parallel) {
+    if (parallel == false || indices.length < PARALLEL_THRESHOLD) {
+      indexToPosition(indices, positions);
+      return;
+    }
+    final int n = indices.length;
+    IntStream.range(0, chunks(n)).parallel().forEach(new IntConsumer() {
+      @Override
+      public void accept(int c) {
+        indexToPosition(indices, c * PARALLEL_THRESHOLD, Math.min(n, (c + 1) * PARALLEL_THRESHOLD),
+            positions);
+      }
+    });
+  }
+
+  /**
+   * Convert a range of linear indices to packed positions
+   * @param indices - linear indices in the range of this PositionIndex
+   * @param from - first index to convert
+   * @param to - end of the range, exclusive
+   * @param positions - output positions, the position for indices[k] starts at
+   *          positions[k*ndim]
+   */
+  public void indexToPosition(long[] indices, int from, int to, int[] positions) {
+    if (positions.length < (long) to * ndim)
+      throw new IllegalArgumentException("Position array is too short for " + to + " positions");
+    for (int k = from, off = from * ndim; k < to; k++, off += ndim) {
+      for (int i = 0; i < scope; i++) {
+        positions[off + i] = start[i];
+      }
+      if (scope == ndim)
+        continue;
+      long index = indices[k];
+      int last = ndim - 1;
+      if (intIndex) {
+        for (int i = scope; i < last; i++) {
+          long q = (index * countMagic[i]) >>> countShift[i];
+          positions[off + i] = start[i] + incr[i] * (int) (index - q * counts[i]);
+          index = q;
+        }
+      } else {
+        for (int i = scope; i < last; i++) {
+          long d = counts[i];
+          long q = (long) (index * countRecip[i]);
+          long r = index - q * d;
+          while (r < 0) {
+            q--;
+            r += d;
+          }
+          while (r >= d) {
+            q++;
+            r -= d;
+          }
+          positions[off + i] = start[i] + incr[i] * (int) r;
+          index = q;
+        }
+      }
+      positions[off + last] = start[last] + incr[last] * (int) index;
+    }
+  }
+
+  /**
+   * Convert packed positions to linear indices
+   * @param positions - positions in the range of this PositionIndex, ndim
+   *          values per position
+   * @param indices - output linear indices
+   */
+  public void positionToIndex(int[] positions, long[] indices) {
+    positionToIndex(positions, 0, indices.length, indices);
+  }
+
+  /**
+   * Convert packed positions to linear indices, optionally on several threads
+   * @param positions - positions in the range of this PositionIndex, ndim
+   *          values per position
+   * @param indices - output linear indices
+   * @param parallel - true to split large batches across the common fork/join
+   *          pool
+   */
+  public void positionToIndex(final int[] positions, final long[] indices, boolean parallel) {
+    if (parallel == false || indices.length < PARALLEL_THRESHOLD) {
+      positionToIndex(positions, indices);
+      return;
+    }
+    final int n = indices.length;
+    IntStream.range(0, chunks(n)).parallel().forEach(new IntConsumer() {
+      @Override
+      public void accept(int c) {
+        positionToIndex(positions, c * PARALLEL_THRESHOLD, Math.min(n, (c + 1) * PARALLEL_THRESHOLD),
+            indices);
+      }
+    });
+  }
+
+  /**
+   * Convert a range of packed positions to linear indices. Positions must lie
+   * on the range of this PositionIndex, positions off the increments are
+   * truncated toward the start as in the single position method.
+   * @param positions - positions, the position for indices[k] starts at
+   *          positions[k*ndim]
+   * @param from - first position to convert
+   * @param to - end of the range, exclusive
+   * @param indices - output linear indices
+   */
+  public void positionToIndex(int[] positions, int from, int to, long[] indices) {
+    if (positions.length < (long) to * ndim)
+      throw new IllegalArgumentException("Position array is too short for " + to + " positions");
+    for (int k = from, off = from * ndim; k < to; k++, off += ndim) {
+      long index = 0;
+      for (int i = scope; i < ndim; i++) {
+        int delta = positions[off + i] - start[i];
+        int ipos;
+        if (incr[i] == 1) {
+          ipos = delta;
+        } else if (incr[i] > 0 && delta >= 0) {
+          ipos = (int) ((delta * incrMagic[i]) >>> incrShift[i]);
+        } else {
+          ipos = delta / incr[i];
+        }
+        index += mults[i] * ipos;
+      }
+      indices[k] = index;
+    }
+  }
+
+  private static int chunks(int n) {
+    return (n + PARALLEL_THRESHOLD - 1) / PARALLEL_THRESHOLD;
+  }
+
   /**
    * Adjust a position to line in range and on increments
    * @param positionIn - input position
@@ -2,6 +2,9 @@ package org.javaseis.cloud.array;
 
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import org.javaseis.grid.GridDefinition;
 
@@ -160,6 +163,94 @@ public class PositionIterator implements IPosition {
     return position;
   }
 
+  /**
+   * Reset and visit every position in the range, in the same order as repeated
+   * calls to next().
+   * <p>
+   * Ranks of 1 to 5 scoped dimensions are traversed with nested counted loops
+   * that update the shared position array in place, so no objects are created
+   * and the per position cost is a single increment and compare. Other ranks
+   * fall back to the hasNext()/next() loop. On return the iterator is at the
+   * last position and hasNext() is false.
+   * 
+   * @param action - callback for each position
+   */
+  @Override
+  public void forEachPosition(PositionConsumer action) {
+    reset();
+    int[] p = position;
+    if (scope < ndim)
+      p[scope] = start[scope];
+    firsttime = false;
+    switch (ndim - scope) {
+    case 0:
+      action.accept(p);
+      return;
+    case 1:
+      forEach1(action, p, scope);
+      break;
+    case 2:
+      forEach2(action, p, scope);
+      break;
+    case 3:
+      forEach3(action, p, scope);
+      break;
+    case 4:
+      forEach4(action, p, scope);
+      break;
+    case 5:
+      for (int i4 = start[scope + 4]; i4 <= end[scope + 4]; i4 += incr[scope + 4]) {
+        p[scope + 4] = i4;
+        forEach4(action, p, scope);
+      }
+      break;
+    default:
+      p[scope] -= incr[scope];
+      firsttime = true;
+      while (hasNext()) {
+        action.accept(next());
+      }
+      return;
+    }
+    // Loop counters are locals, so the position is left at the last location
+  }
+
+  private void forEach1(PositionConsumer action, int[] p, int d) {
+    final int s0 = start[d], e0 = end[d], n0 = incr[d];
+    for (int i0 = s0; i0 <= e0; i0 += n0) {
+      p[d] = i0;
+      action.accept(p);
+    }
+  }
+
+  private void forEach2(PositionConsumer action, int[] p, int d) {
+    final int s0 = start[d], e0 = end[d], n0 = incr[d];
+    final int s1 = start[d + 1], e1 = end[d + 1], n1 = incr[d + 1];
+    for (int i1 = s1; i1 <= e1; i1 += n1) {
+      p[d + 1] = i1;
+      for (int i0 = s0; i0 <= e0; i0 += n0) {
+        p[d] = i0;
+        action.accept(p);
+      }
+    }
+  }
+
+  private void forEach3(PositionConsumer action, int[] p, int d) {
+    final int s2 = start[d + 2], e2 = end[d + 2], n2 = incr[d + 2];
+    for (int i2 = s2; i2 <= e2; i2 += n2) {
+      p[d + 2] = i2;
+      forEach2(action, p, d);
+    }
+  }
+
+  private void forEach4(PositionConsumer action, int[] p, int d) {
+    final int s3 = start[d + 3], e3 = end[d + 3], n3 = incr[d + 3];
+    for (int i3 = s3; i3 <= e3; i3 += n3) {
+      p[d + 3] = i3;
+      forEach3(action, p, d);
+    }
+  }
+
   /**
    * Extension of the Iterator interface.
    * <p>
@@ -323,14 +414,15 @@ public class PositionIterator implements IPosition {
   }
 
   /**
-   * Return the total number of locations for the iteration range
+   * Return the total number of locations for the iteration range, counting
+   * only the dimensions at or above the scope
    * 
    * @return count of all locations for this iterator
    */
   @Override
   public long getTotalCount() {
-    long count = getCount(0);
-    for (int i = 1; i < ndim; i++) {
+    long count = 1;
+    for (int i = scope; i < ndim; i++) {
       count *= getCount(i);
     }
     return count;
@@ -412,6 +504,25 @@ public class PositionIterator implements IPosition {
     return new PositionIterator(this);
   }
 
+  /**
+   * Return a splittable view of the iteration range, see PositionSpliterator
+   */
+  @Override
+  public Spliterator<int[]> spliterator() {
+    return new PositionSpliterator(this);
+  }
+
+  /**
+   * Return a stream over the iteration range. Each thread of a parallel stream
+   * gets its own position array, which is reused for every position it visits.
+   * 
+   * @param parallel - true for a parallel stream
+   * @return stream of positions
+   */
+  public Stream<int[]> stream(boolean parallel) {
+    return StreamSupport.stream(spliterator(), parallel);
+  }
+
   @Override
   public String toString() {
     return org.javaseis.util.JsonUtil.toJsonString(this);
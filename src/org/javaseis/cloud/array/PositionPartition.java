@@ -0,0 +1,293 @@
+package org.javaseis.cloud.array;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import beta.javaseis.parallel.IParallelContext;
+
+/**
+ * The share of an IPosition range assigned to one rank of a parallel job.
+ * <p>
+ * Positions in the range are numbered by linear index as in PositionIndex. A
+ * partition visits indices lo, lo+stride, ... below hi, so each rank only
+ * steps through its own positions instead of scanning the full range and
+ * skipping the ones that belong to other ranks. Partitions are created with
+ * one of the static methods:
+ * <ul>
+ * <li>block - contiguous blocks of nearly equal size, in rank order</li>
+ * <li>cyclic - every size'th position starting at rank, which balances ranges
+ * where the cost changes smoothly along the slowest dimension</li>
+ * <li>weighted - contiguous blocks of nearly equal total cost, from a user
+ * supplied cost per position</li>
+ * </ul>
+ * Together the partitions of all ranks visit every position of the range
+ * exactly once. As with IPosition.next(), the returned position array is
+ * reused for every position.
+ * <p>
+ * Example, distributing the volumes of a 5D dataset:
+ * <pre>
+ * PositionIterator volumes = new PositionIterator(shape, 3);
+ * PositionPartition mine = PositionPartition.block(volumes, pc);
+ * while (mine.hasNext()) {
+ *   int[] pos = mine.next();
+ *   ...
+ * }
+ * </pre>
+ */
+public class PositionPartition implements Iterator<int[]>, Iterable<int[]> {
+
+  /** Cost of processing a position, used by weighted partitions */
+  public interface CostFunction {
+    double cost(int[] position);
+  }
+
+  int ndim, scope;
+  int[] start, incr, counts;
+  PositionIndex index;
+  long lo, hi, stride;
+  /** Linear index of the next position to visit */
+  long next;
+  /** Count along each dimension of the current position */
+  int[] k;
+  int[] position;
+
+  PositionPartition(IPosition range, long lo, long hi, long stride) {
+    int[] shape = range.getShape();
+    ndim = shape.length;
+    scope = range.getScope();
+    start = new int[ndim];
+    int[] end = new int[ndim];
+    incr = new int[ndim];
+    range.getRange(start, end, incr);
+    counts = new int[ndim];
+    for (int i = scope; i < ndim; i++) {
+      counts[i] = range.getCount(i);
+    }
+    index = new PositionIndex(ndim, scope, start.clone(), end, incr.clone(), shape);
+    this.lo = lo;
+    this.hi = hi;
+    this.stride = stride;
+    k = new int[ndim];
+    position = start.clone();
+    reset();
+  }
+
+  /**
+   * Return the contiguous block of a range for a rank
+   * @param range - range to partition
+   * @param rank - rank of the partition, 0 to size-1
+   * @param size - number of partitions
+   * @return partition for the rank
+   */
+  public static PositionPartition block(IPosition range, int rank, int size) {
+    checkRank(rank, size);
+    long n = range.getTotalCount();
+    return new PositionPartition(range, split(n, rank, size), split(n, rank + 1, size), 1);
+  }
+
+  /**
+   * Return the contiguous block of a range for the rank of a parallel context
+   */
+  public static PositionPartition block(IPosition range, IParallelContext pc) {
+    return block(range, pc.rank(), pc.size());
+  }
+
+  /**
+   * Return the cyclic share of a range for a rank, every size'th position
+   * starting at position rank
+   * @param range - range to partition
+   * @param rank - rank of the partition, 0 to size-1
+   * @param size - number of partitions
+   * @return partition for the rank
+   */
+  public static PositionPartition cyclic(IPosition range, int rank, int size) {
+    checkRank(rank, size);
+    return new PositionPartition(range, rank, range.getTotalCount(), size);
+  }
+
+  /**
+   * Return the cyclic share of a range for the rank of a parallel context
+   */
+  public static PositionPartition cyclic(IPosition range, IParallelContext pc) {
+    return cyclic(range, pc.rank(), pc.size());
+  }
+
+  /**
+   * Return a contiguous block of a range for a rank, with block boundaries
+   * chosen so that each rank gets about the same total cost. The cost function
+   * is evaluated twice for every position of the range, so it should be cheap
+   * compared with the work it describes, and it must return the same
+   * non-negative value on every rank.
+   * @param range - range to partition
+   * @param rank - rank of the partition, 0 to size-1
+   * @param size - number of partitions
+   * @param cost - cost of each position
+   * @return partition for the rank
+   */
+  public static PositionPartition weighted(IPosition range, int rank, int size,
+      CostFunction cost) {
+    checkRank(rank, size);
+    // First pass for the total cost
+    PositionPartition all = new PositionPartition(range, 0, range.getTotalCount(), 1);
+    double total = 0;
+    while (all.hasNext()) {
+      total += cost.cost(all.next());
+    }
+    // Second pass finds the first index whose cumulative cost reaches each
+    // boundary, so every rank makes the same choice
+    double lower = total * rank / size;
+    double upper = total * (rank + 1) / size;
+    long n = all.hi;
+    long lo = (rank == 0 ? 0 : -1);
+    long hi = (rank == size - 1 ? n : -1);
+    all.reset();
+    double sum = 0;
+    for (long i = 0; i < n && (lo < 0 || hi < 0); i++) {
+      if (lo < 0 && sum >= lower)
+        lo = i;
+      if (hi < 0 && sum >= upper)
+        hi = i;
+      sum += cost.cost(all.next());
+    }
+    if (hi < 0)
+      hi = n;
+    if (lo < 0)
+      lo = hi;
+    return new PositionPartition(range, lo, hi, 1);
+  }
+
+  /**
+   * Return the cost weighted block of a range for the rank of a parallel
+   * context
+   */
+  public static PositionPartition weighted(IPosition range, IParallelContext pc,
+      CostFunction cost) {
+    return weighted(range, pc.rank(), pc.size(), cost);
+  }
+
+  private static long split(long n, int rank, int size) {
+    return n / size * rank + Math.min(rank, n % size);
+  }
+
+  private static void checkRank(int rank, int size) {
+    if (size < 1 || rank < 0 || rank >= size)
+      throw new IllegalArgumentException("Illegal rank " + rank + " for size " + size);
+  }
+
+  /**
+   * Return to the first position of the partition
+   */
+  public void reset() {
+    next = lo;
+    if (lo < hi) {
+      index.indexToPosition(lo, position);
+      for (int i = scope; i < ndim; i++) {
+        k[i] = (position[i] - start[i]) / incr[i];
+      }
+    }
+  }
+
+  @Override
+  public boolean hasNext() {
+    return next < hi;
+  }
+
+  /**
+   * Return the next position of the partition, the array is reused
+   */
+  @Override
+  public int[] next() {
+    if (next >= hi)
+      throw new NoSuchElementException("End of partition");
+    if (next > lo)
+      step();
+    next += stride;
+    return position;
+  }
+
+  /**
+   * Advance the position by stride indices with carry
+   */
+  private void step() {
+    long carry = stride;
+    int i = scope;
+    while (carry > 0 && i < ndim) {
+      long ki = k[i] + carry;
+      if (ki < counts[i] || i == ndim - 1) {
+        carry = 0;
+      } else {
+        carry = ki / counts[i];
+        ki -= carry * counts[i];
+      }
+      k[i] = (int) ki;
+      position[i] = start[i] + incr[i] * k[i];
+      i++;
+    }
+  }
+
+  /**
+   * Visit every position of the partition
+   * @param action - callback for each position
+   */
+  public void forEachPosition(PositionConsumer action) {
+    reset();
+    while (next < hi) {
+      action.accept(next());
+    }
+  }
+
+  /**
+   * Return the linear index of the position returned by the last call to
+   * next()
+   */
+  public long getIndex() {
+    return next - stride;
+  }
+
+  /**
+   * Return the number of positions in the partition
+   */
+  public long getCount() {
+    return (hi <= lo ? 0 : (hi - lo + stride - 1) / stride);
+  }
+
+  /**
+   * Return the linear index of the first position and the end of the
+   * partition, exclusive
+   */
+  public long[] getIndexRange() {
+    return new long[] { lo, hi };
+  }
+
+  /**
+   * Return the current position
+   */
+  public int[] getPosition() {
+    return position;
+  }
+
+  @Override
+  public Iterator<int[]> iterator() {
+    return new PositionPartition(this);
+  }
+
+  private PositionPartition(PositionPartition p) {
+    ndim = p.ndim;
+    scope = p.scope;
+    start = p.start;
+    incr = p.incr;
+    counts = p.counts;
+    index = p.index;
+    lo = p.lo;
+    hi = p.hi;
+    stride = p.stride;
+    k = new int[ndim];
+    position = start.clone();
+    reset();
+  }
+
+  @Override
+  public String toString() {
+    return "PositionPartition [" + lo + ", " + hi + ") stride " + stride;
+  }
+}
@@ -0,0 +1,129 @@
+package org.javaseis.cloud.array;
+
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Spliterator over the range of an IPosition, for use with parallel streams.
+ * <p>
+ * The positions in the range are numbered by linear index as in PositionIndex,
+ * and a spliterator covers a block of those indices. trySplit hands off the
+ * first half of the remaining block, so splits stay balanced down to single
+ * positions. Each spliterator has its own position array, which is set with
+ * PositionIndex.indexToPosition at the start of a block and then stepped with
+ * the same carry rule as PositionIterator.next().
+ * <p>
+ * As with IPosition.next(), the array passed to an action is reused for every
+ * position of a spliterator. Actions that keep positions must copy them.
+ * <p>
+ * Example, with one position array per thread:
+ * <pre>
+ * StreamSupport.stream(new PositionSpliterator(pos), true).forEach(p -&gt; process(p));
+ * </pre>
+ */
+public class PositionSpliterator implements Spliterator<int[]> {
+
+  int ndim, scope;
+  int[] start, end, incr;
+  /** Shared index conversion for all splits */
+  PositionIndex index;
+  /** Next index to visit and end of the block, exclusive */
+  long lo, hi;
+  int[] position;
+  /** True once position holds the location of index lo-1 */
+  boolean positioned;
+
+  /**
+   * Create a spliterator over the full range of an IPosition. The IPosition
+   * itself is not modified.
+   * @param range - position range to traverse
+   */
+  public PositionSpliterator(IPosition range) {
+    int[] shape = range.getShape();
+    ndim = shape.length;
+    scope = range.getScope();
+    start = new int[ndim];
+    end = new int[ndim];
+    incr = new int[ndim];
+    range.getRange(start, end, incr);
+    index = new PositionIndex(ndim, scope, start.clone(), end.clone(), incr.clone(), shape);
+    lo = 0;
+    hi = 1;
+    for (int i = scope; i < ndim; i++) {
+      hi *= range.getCount(i);
+    }
+    position = start.clone();
+  }
+
+  private PositionSpliterator(PositionSpliterator parent, long lo, long hi) {
+    ndim = parent.ndim;
+    scope = parent.scope;
+    start = parent.start;
+    end = parent.end;
+    incr = parent.incr;
+    index = parent.index;
+    this.lo = lo;
+    this.hi = hi;
+    position = start.clone();
+  }
+
+  @Override
+  public boolean tryAdvance(Consumer<? super int[]> action) {
+    if (lo >= hi)
+      return false;
+    step();
+    lo++;
+    action.accept(position);
+    return true;
+  }
+
+  @Override
+  public void forEachRemaining(Consumer<? super int[]> action) {
+    while (lo < hi) {
+      step();
+      lo++;
+      action.accept(position);
+    }
+  }
+
+  /**
+   * Move the position to index lo
+   */
+  private void step() {
+    if (positioned == false) {
+      index.indexToPosition(lo, position);
+      positioned = true;
+      return;
+    }
+    int[] p = position;
+    p[scope] += incr[scope];
+    int i = scope;
+    while (i < ndim - 1 && p[i] > end[i]) {
+      p[i] = start[i];
+      i++;
+      p[i] += incr[i];
+    }
+  }
+
+  @Override
+  public Spliterator<int[]> trySplit() {
+    long n = hi - lo;
+    if (n < 2)
+      return null;
+    long mid = lo + n / 2;
+    PositionSpliterator prefix = new PositionSpliterator(this, lo, mid);
+    lo = mid;
+    positioned = false;
+    return prefix;
+  }
+
+  @Override
+  public long estimateSize() {
+    return hi - lo;
+  }
+
+  @Override
+  public int characteristics() {
+    return ORDERED | SIZED | SUBSIZED | NONNULL;
+  }
+}
@@ -0,0 +1,244 @@
+package org.javaseis.cloud.array;
+
+/**
+ * Alternative traversal orders for the range of an IPosition.
+ * <p>
+ * PositionIterator walks its range in lexicographic order, fastest dimension
+ * first. Tools that look at neighbouring traces or frames, such as stencils and
+ * transposes, reuse more data from cache when neighbours are visited close
+ * together in time. This class visits the same set of positions in one of
+ * these orders:
+ * <ul>
+ * <li>BLOCKED - the scoped dimensions are tiled with a caller supplied block
+ * shape, blocks are visited in lexicographic order and positions within a
+ * block are visited lexicographically.</li>
+ * <li>MORTON - Z-order curve over the scoped dimensions.</li>
+ * <li>HILBERT - Hilbert curve over the scoped dimensions, so consecutive
+ * positions are always neighbours.</li>
+ * </ul>
+ * The curves are defined on the smallest power of two cube that holds the
+ * range. Parts of the curve that fall outside the range are skipped a whole
+ * aligned sub-cube at a time, so ranges that are far from square do not pay
+ * for the empty part of the cube.
+ * <p>
+ * Positions are passed to the consumer in a position array owned by the
+ * traversal, dimensions below the scope are set to their start values. The
+ * IPosition itself is not modified.
+ */
+public class PositionTraversal {
+
+  /** Traversal orders */
+  public enum Order {
+    LEXICOGRAPHIC, BLOCKED, MORTON, HILBERT
+  }
+
+  int ndim, scope, m;
+  int[] start, incr, counts;
+
+  /**
+   * Create a traversal for the range of an IPosition
+   * @param range - range to traverse
+   */
+  public PositionTraversal(IPosition range) {
+    ndim = range.getShape().length;
+    scope = range.getScope();
+    m = ndim - scope;
+    start = new int[ndim];
+    incr = new int[ndim];
+    int[] end = new int[ndim];
+    range.getRange(start, end, incr);
+    counts = new int[ndim];
+    for (int i = 0; i < ndim; i++) {
+      counts[i] = range.getCount(i);
+    }
+  }
+
+  /**
+   * Visit all positions of a range in a given order
+   * @param range - range to traverse
+   * @param order - traversal order
+   * @param blockShape - block size for each dimension, only the scoped
+   *          dimensions are used, ignored unless order is BLOCKED
+   * @param action - callback for each position
+   */
+  public static void forEachPosition(IPosition range, Order order, int[] blockShape,
+      PositionConsumer action) {
+    new PositionTraversal(range).forEach(order, blockShape, action);
+  }
+
+  /**
+   * Visit all positions in a given order
+   * @param order - traversal order
+   * @param blockShape - block size in positions for each dimension, ignored
+   *          unless order is BLOCKED
+   * @param action - callback for each position
+   */
+  public void forEach(Order order, int[] blockShape, PositionConsumer action) {
+    switch (order) {
+    case BLOCKED:
+      blocked(blockShape, action);
+      break;
+    case MORTON:
+      curve(false, action);
+      break;
+    case HILBERT:
+      curve(true, action);
+      break;
+    default:
+      int[] ones = new int[ndim];
+      for (int i = 0; i < ndim; i++)
+        ones[i] = counts[i];
+      blocked(ones, action);
+    }
+  }
+
+  /**
+   * Tiled traversal, a block shape equal to the range is lexicographic order
+   */
+  void blocked(int[] blockShape, PositionConsumer action) {
+    if (blockShape == null || blockShape.length < ndim)
+      throw new IllegalArgumentException("Block shape must have " + ndim + " dimensions");
+    int[] position = start.clone();
+    int[] block = new int[ndim];
+    int[] origin = new int[ndim];
+    int[] k = new int[ndim];
+    int[] kend = new int[ndim];
+    for (int i = scope; i < ndim; i++) {
+      block[i] = Math.max(1, Math.min(blockShape[i], counts[i]));
+    }
+    if (m == 0) {
+      action.accept(position);
+      return;
+    }
+    while (true) {
+      // Visit the block at origin, clipped to the range
+      for (int i = scope; i < ndim; i++) {
+        k[i] = origin[i];
+        kend[i] = Math.min(origin[i] + block[i], counts[i]);
+        position[i] = start[i] + k[i] * incr[i];
+      }
+      while (true) {
+        action.accept(position);
+        int i = scope;
+        while (i < ndim && ++k[i] == kend[i]) {
+          k[i] = origin[i];
+          position[i] = start[i] + k[i] * incr[i];
+          i++;
+        }
+        if (i == ndim)
+          break;
+        position[i] = start[i] + k[i] * incr[i];
+      }
+      // Next block origin
+      int i = scope;
+      while (i < ndim && (origin[i] += block[i]) >= counts[i]) {
+        origin[i] = 0;
+        i++;
+      }
+      if (i == ndim)
+        break;
+    }
+  }
+
+  /**
+   * Morton or Hilbert traversal of the power of two cube holding the range
+   */
+  void curve(boolean hilbert, PositionConsumer action) {
+    int[] position = start.clone();
+    if (m == 0) {
+      action.accept(position);
+      return;
+    }
+    int maxCount = 1;
+    for (int i = scope; i < ndim; i++) {
+      maxCount = Math.max(maxCount, counts[i]);
+    }
+    int bits = 32 - Integer.numberOfLeadingZeros(maxCount - 1);
+    if ((long) bits * m > 62)
+      throw new IllegalArgumentException("Range is too large for a " + m + " dimensional curve");
+    long total = 1L << (bits * m);
+    int[] x = new int[m];
+    long h = 0;
+    while (h < total) {
+      if (hilbert)
+        hilbertToAxes(h, bits, x);
+      else
+        mortonToAxes(h, bits, x);
+      if (inRange(x, 0)) {
+        for (int i = 0; i < m; i++) {
+          position[scope + i] = start[scope + i] + x[i] * incr[scope + i];
+        }
+        action.accept(position);
+        h++;
+        continue;
+      }
+      // Skip the largest aligned sub-cube starting at h that is out of range
+      int level = 1;
+      while (level <= bits && (h & ((1L << (level * m)) - 1)) == 0 && inRange(x, level) == false) {
+        level++;
+      }
+      h += 1L << ((level - 1) * m);
+    }
+  }
+
+  /**
+   * Return true if the sub-cube of side 2^level holding x intersects the range
+   */
+  private boolean inRange(int[] x, int level) {
+    for (int i = 0; i < m; i++) {
+      if (((x[i] >> level) << level) >= counts[scope + i])
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * Decode a Morton index, bit j of the index is bit j/m of axis j%m
+   */
+  static void mortonToAxes(long h, int bits, int[] x) {
+    int n = x.length;
+    for (int i = 0; i < n; i++)
+      x[i] = 0;
+    for (int b = 0; b < bits; b++) {
+      for (int i = 0; i < n; i++) {
+        x[i] |= (int) ((h >>> (b * n + i)) & 1) << b;
+      }
+    }
+  }
+
+  /**
+   * Decode a Hilbert index into axis coordinates, after J. Skilling,
+   * "Programming the Hilbert curve", AIP Conf. Proc. 707, 2004
+   */
+  static void hilbertToAxes(long h, int bits, int[] x) {
+    int n = x.length;
+    // Transpose the index: the most significant bits of all axes come first,
+    // axis 0 holding the highest bit of each group
+    for (int i = 0; i < n; i++)
+      x[i] = 0;
+    for (int b = 0; b < bits; b++) {
+      for (int i = 0; i < n; i++) {
+        x[n - 1 - i] |= (int) ((h >>> (b * n + i)) & 1) << b;
+      }
+    }
+    // Gray decode
+    int t = x[n - 1] >> 1;
+    for (int i = n - 1; i > 0; i--)
+      x[i] ^= x[i - 1];
+    x[0] ^= t;
+    // Undo excess work
+    int top = 1 << bits;
+    for (int q = 2; q != top; q <<= 1) {
+      int p = q - 1;
+      for (int i = n - 1; i >= 0; i--) {
+        if ((x[i] & q) != 0) {
+          x[0] ^= p;
+        } else {
+          t = (x[0] ^ x[i]) & p;
+          x[0] ^= t;
+          x[i] ^= t;
+        }
+      }
+    }
+  }
+}
@@ -11,4 +11,6 @@ public class ValueIndex {
   public double value;
   /** Index where the value occurred */
   public int index;
+  /** Position where the value occurred in a multi-dimensional array, or null */
+  public int[] position;
 }
\ No newline at end of file
@@ -2,13 +2,131 @@ package org.javaseis.examples.imaging;
 
 import static org.junit.Assert.*;
 
+import java.util.Arrays;
+import java.util.Random;
+
 import org.junit.Test;
 
+import beta.javaseis.fft.Fft2d;
+import beta.javaseis.fft.IFFT;
 import beta.javaseis.parallel.IParallelContext;
 import beta.javaseis.parallel.UniprocessorContext;
 import beta.javaseis.regulargrid.RegularGrid;
 
 public class JTestShotMigPhaseShift {
+  int nx = 32;
+  int ny = 30;
+  int nf = 4;
+  double dx = 25;
+  double dy = 50;
+  double df = 10;
+  int nz = 4;
+  double dz = 10;
+
+  /**
+   * Migrator on random data. ShotMigPhaseShift takes its grids in X,Y,F order.
+   */
+  ShotMigPhaseShift create(IParallelContext pc, long seed) {
+    return create(pc, seed, nx, ny);
+  }
+
+  /**
+   * Migrator on random data for a given trace grid
+   */
+  ShotMigPhaseShift create(IParallelContext pc, long seed, int nx, int ny) {
+    float[] vels = new float[nz];
+    Arrays.fill(vels, 1500f);
+    return create(pc, seed, nx, ny, vels);
+  }
+
+  /**
+   * Migrator on random data with a velocity function
+   */
+  ShotMigPhaseShift create(IParallelContext pc, long seed, int nx, int ny, float[] vels) {
+    int[] shape = new int[] { 2*nx, ny, nf };
+    double[] deltas = new double[] { dx, dy, df };
+    RegularGrid shot = new RegularGrid( shape, deltas, pc );
+    RegularGrid rcvr = new RegularGrid( shape, deltas, pc );
+    int[] zshape = new int[] { nx, ny, nz };
+    double[] zdelta = new double[] { dx, dy, dz };
+    RegularGrid image = new RegularGrid( zshape, zdelta, pc );
+    Random r = new Random(seed);
+    int[] pos = new int[3];
+    for (pos[2] = 0; pos[2] < nf; pos[2]++) {
+      for (pos[1] = 0; pos[1] < ny; pos[1]++) {
+        for (pos[0] = 0; pos[0] < 2*nx; pos[0]++) {
+          shot.putSample(r.nextFloat() - 0.5f, pos);
+          rcvr.putSample(r.nextFloat() - 0.5f, pos);
+        }
+      }
+    }
+    return new ShotMigPhaseShift(0, 0, nf, nz, (float) dz, rcvr, shot, image, vels);
+  }
+
+  static float[][] random(Random r, int n1, int n2) {
+    float[][] a = new float[n1][n2];
+    for (float[] row : a) {
+      for (int i = 0; i < n2; i++)
+        row[i] = r.nextFloat() - 0.5f;
+    }
+    return a;
+  }
+
+  static float[][] copy(float[][] a) {
+    float[][] b = new float[a.length][];
+    for (int i = 0; i < a.length; i++)
+      b[i] = a[i].clone();
+    return b;
+  }
+
+  /**
+   * Velocity model in X,Y,Z with a slowness for each depth and X
+   */
+  RegularGrid velocityModel(IParallelContext pc, float[][] slowness) {
+    RegularGrid model = new RegularGrid(new int[] { nx, ny, nz }, new double[] { dx, dy, dz }, pc);
+    int[] pos = new int[3];
+    for (pos[2] = 0; pos[2] < nz; pos[2]++) {
+      for (pos[1] = 0; pos[1] < ny; pos[1]++) {
+        for (pos[0] = 0; pos[0] < nx; pos[0]++) {
+          model.putSample(1f / slowness[pos[2]][pos[0]], pos);
+        }
+      }
+    }
+    return model;
+  }
+
+  /**
+   * Slowness that varies with depth only, in equal steps
+   */
+  float[][] depthSlowness() {
+    float[][] slowness = new float[nz][nx];
+    for (int iz = 0; iz < nz; iz++) {
+      Arrays.fill(slowness[iz], 1f / 1500 - iz * 5e-5f);
+    }
+    return slowness;
+  }
+
+  static void assertClose(float[][][] expected, float[][][] actual) {
+    float amax = 0;
+    for (float[][] slice : expected) {
+      for (float[] row : slice) {
+        for (float a : row)
+          amax = Math.max(amax, Math.abs(a));
+      }
+    }
+    assertTrue(amax > 0);
+    for (int iz = 0; iz < expected.length; iz++) {
+      assertClose(expected[iz], actual[iz], 1e-4f * amax);
+    }
+  }
+
+  static void assertClose(float[][] expected, float[][] actual, float tol) {
+    for (int j = 0; j < expected.length; j++) {
+      for (int i = 0; i < expected[j].length; i++) {
+        assertEquals("Sample " + j + "," + i, expected[j][i], actual[j][i], tol);
+      }
+    }
+  }
 
   @Test
   public void test() {
@@ -31,4 +149,173 @@ public class JTestShotMigPhaseShift {
     
   }
 
+  @Test
+  public void testPhaseSymmetric() {
+    checkPhaseSymmetric(create(new UniprocessorContext(), 1));
+    // Odd transform lengths have no Nyquist row or column to skip
+    ShotMigPhaseShift odd = create(new UniprocessorContext(), 1, 15, 9);
+    assertEquals(1, odd.nkx % 2);
+    assertEquals(1, odd.nky % 2);
+    checkPhaseSymmetric(odd);
+  }
+
+  void checkPhaseSymmetric(ShotMigPhaseShift smps) {
+    Random r = new Random(2);
+    float[] vels = new float[] { 1000f, 1500f, 4000f };
+    for (int ifreq = 0; ifreq < nf; ifreq++) {
+      for (float v : vels) {
+        float[][] s0 = random(r, smps.nky, 2*smps.nkx);
+        float[][] r0 = random(r, smps.nky, 2*smps.nkx);
+        float[][] s1 = copy(s0);
+        float[][] r1 = copy(r0);
+        smps.applyPhaseShift(ifreq, v, (float) dz, s0, r0);
+        smps.applyPhaseSymmetric(ifreq, v, (float) dz, s1, r1);
+        assertClose(s0, s1, 1e-5f);
+        assertClose(r0, r1, 1e-5f);
+      }
+    }
+  }
+
+  @Test
+  public void testPhaseTable() {
+    ShotMigPhaseShift smps = create(new UniprocessorContext(), 1);
+    Random r = new Random(3);
+    float[][] s0 = random(r, smps.nky, 2*smps.nkx);
+    float[][] r0 = random(r, smps.nky, 2*smps.nkx);
+    float[][] s1 = copy(s0);
+    float[][] r1 = copy(r0);
+    smps.applyPhaseShift(2, 1500f, (float) dz, s0, r0);
+    smps.applyPhaseTable(smps.getKzCache().getPhase(2, 1500f), s1, r1);
+    assertClose(s0, s1, 1e-5f);
+    assertClose(r0, r1, 1e-5f);
+    // Second lookup must come from the cache
+    smps.getKzCache().getPhase(2, 1500f);
+    assertTrue(smps.getKzCache().getHitRate() > 0);
+  }
+
+  @Test
+  public void testThreadedMigration() {
+    ShotMigPhaseShift serial = create(new UniprocessorContext(), 4);
+    serial.migrate();
+    ShotMigPhaseShift threaded = create(new UniprocessorContext(), 4);
+    threaded.setThreadCount(4);
+    threaded.migrate();
+    float[][][] a = serial.getImage();
+    float[][][] b = threaded.getImage();
+    for (int iz = 0; iz < nz; iz++) {
+      assertClose(a[iz], b[iz], 1e-4f);
+    }
+  }
+
+  @Test
+  public void testLaterallyConstant() {
+    float[][] slowness = depthSlowness();
+    float[] vels = new float[nz];
+    for (int iz = 0; iz < nz; iz++)
+      vels[iz] = 1f / slowness[iz][0];
+    IParallelContext pc = new UniprocessorContext();
+    ShotMigPhaseShift ps = create(pc, 5, nx, ny, vels);
+    ps.migrate();
+    // Split-step correction vanishes without lateral variation
+    ShotMigPhaseShift ss = create(pc, 5, nx, ny, vels);
+    ss.setVelocityModel(velocityModel(pc, slowness), ShotMigPhaseShift.Mode.SPLIT_STEP, 2);
+    assertEquals(ShotMigPhaseShift.Mode.SPLIT_STEP, ss.getMode());
+    ss.migrate();
+    assertClose(ps.getImage(), ss.getImage());
+    // One PSPI reference at each depth slowness, so no interpolation
+    ShotMigPhaseShift pspi = create(pc, 5, nx, ny, vels);
+    pspi.setVelocityModel(velocityModel(pc, slowness), ShotMigPhaseShift.Mode.PSPI, nz);
+    assertEquals(ShotMigPhaseShift.Mode.PSPI, pspi.getMode());
+    pspi.migrate();
+    assertClose(ps.getImage(), pspi.getImage());
+  }
+
+  @Test
+  public void testPSPIInterpolation() {
+    // References at the slowness of the first and last depths, with the second
+    // depth varying in X between them
+    float[][] slowness = depthSlowness();
+    float s0 = slowness[0][0];
+    float s1 = slowness[nz - 1][0];
+    float[] wts = new float[nx];
+    for (int ix = 0; ix < nx; ix++) {
+      wts[ix] = (ix % 5) / 4f;
+      slowness[1][ix] = s0 + wts[ix] * (s1 - s0);
+    }
+    IParallelContext pc = new UniprocessorContext();
+    ShotMigPhaseShift smps = create(pc, 6);
+    smps.setVelocityModel(velocityModel(pc, slowness), ShotMigPhaseShift.Mode.PSPI, 2);
+    assertEquals(ShotMigPhaseShift.Mode.PSPI, smps.getMode());
+    ShotMigPhaseShift.FrequencyWorker w = smps.new FrequencyWorker();
+    Random r = new Random(7);
+    int ifreq = 2;
+    float[][] sxy = random(r, ny, 2 * nx);
+    float[][] rxy = random(r, ny, 2 * nx);
+    // Phase shift at each reference velocity
+    float[][] sa = copy(sxy);
+    float[][] ra = copy(rxy);
+    smps.extrapolate(w, ifreq, 1f / s0, sa, ra);
+    float[][] sb = copy(sxy);
+    float[][] rb = copy(rxy);
+    smps.extrapolate(w, ifreq, 1f / s1, sb, rb);
+    smps.extrapolatePSPI(w, ifreq, 1, sxy, rxy);
+    for (int iy = 0; iy < ny; iy++) {
+      for (int ix = 0, k = 0; ix < nx; ix++, k += 2) {
+        for (int c = k; c < k + 2; c++) {
+          float se = sa[iy][c] + wts[ix] * (sb[iy][c] - sa[iy][c]);
+          float re = ra[iy][c] + wts[ix] * (rb[iy][c] - ra[iy][c]);
+          assertEquals("Source " + iy + "," + c, se, sxy[iy][c], 1e-5f);
+          assertEquals("Receiver " + iy + "," + c, re, rxy[iy][c], 1e-5f);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testMigrationReference() {
+    ShotMigPhaseShift smps = create(new UniprocessorContext(), 8);
+    smps.migrate();
+    // The same random data as create, frames in X,Y for each frequency
+    Random r = new Random(8);
+    float[][][] sxy = new float[nf][ny][2 * nx];
+    float[][][] rxy = new float[nf][ny][2 * nx];
+    for (int ifreq = 0; ifreq < nf; ifreq++) {
+      for (int iy = 0; iy < ny; iy++) {
+        for (int ix = 0; ix < 2 * nx; ix++) {
+          sxy[ifreq][iy][ix] = r.nextFloat() - 0.5f;
+          rxy[ifreq][iy][ix] = r.nextFloat() - 0.5f;
+        }
+      }
+    }
+    // Band limit at the surface, then image and phase shift each depth
+    Fft2d fft = new Fft2d(nx, ny, 0, 0, IFFT.Type.COMPLEX, IFFT.Type.COMPLEX, -1, -1,
+        IFFT.Scale.SYMMETRIC, IFFT.Scale.SYMMETRIC);
+    float[][] sc = new float[smps.nky][2 * smps.nkx];
+    float[][] rc = new float[smps.nky][2 * smps.nkx];
+    float[][][] ref = new float[nz][ny][nx];
+    for (int ifreq = 0; ifreq < nf; ifreq++) {
+      phaseShift(smps, fft, ifreq, 0f, sxy[ifreq], rxy[ifreq], sc, rc);
+      for (int iz = 0; iz < nz; iz++) {
+        ShotMigPhaseShift.applyImagingCondition(sxy[ifreq], rxy[ifreq], ref[iz]);
+        phaseShift(smps, fft, ifreq, (float) dz, sxy[ifreq], rxy[ifreq], sc, rc);
+      }
+    }
+    assertClose(ref, smps.getImage());
+  }
+
+  /**
+   * Phase shift source and receiver frames at 1500 m/s with applyPhaseShift
+   */
+  static void phaseShift(ShotMigPhaseShift smps, Fft2d fft, int ifreq, float depthStep,
+      float[][] sxy, float[][] rxy, float[][] sc, float[][] rc) {
+    for (int j = 0; j < sc.length; j++) {
+      Arrays.fill(sc[j], 0f);
+      Arrays.fill(rc[j], 0f);
+    }
+    fft.forwardComplex(sxy, sc);
+    fft.forwardComplex(rxy, rc);
+    smps.applyPhaseShift(ifreq, 1500f, depthStep, sc, rc);
+    fft.inverseComplex(sc, sxy);
+    fft.inverseComplex(rc, rxy);
+  }
 }
@@ -0,0 +1,221 @@
+package org.javaseis.examples.imaging;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of vertical wavenumber tables for phase shift migration.
+ * <p>
+ * A table holds kz = sqrt(w*w/(v*v) - kx*kx - ky*ky) for every (kx,ky) sample
+ * of a 2D FFT, stored row by row with nkx samples per row, and -1 for
+ * evanescent samples. Tables are keyed by frequency index and velocity, so
+ * layered models that repeat a velocity over many depth steps compute each
+ * table once per frequency. The kx*kx + ky*ky values are computed once for all
+ * tables.
+ * <p>
+ * Phase tables hold exp(i*kz*dz) for the depth step of the cache, as
+ * interleaved cos and sin values with zero for evanescent samples, so a depth
+ * step becomes one complex multiply pass over a wavefield. They share the
+ * same keys and memory limit as the kz tables.
+ * <p>
+ * The cache is bounded by memory, least recently used tables are dropped first.
+ * It is safe to use from several threads.
+ *
+ * @author Chuck Mosher for JavaSeis.org
+ */
+public class KzTableCache {
+  /** Value stored for evanescent samples */
+  public static final float EVANESCENT = -1f;
+  /** Default memory limit in bytes */
+  public static final long DEFAULT_LIMIT = 128L * 1024 * 1024;
+
+  private static final double EPS = 1e-12;
+
+  /** Key bit marking phase tables */
+  private static final long PHASE = 1L << 63;
+
+  int nkx, nky;
+  double dw, dz;
+  /** Horizontal wavenumber squared, kx*kx + ky*ky */
+  float[] k2;
+  long limit, bytes;
+  long hits, misses, evictions;
+  LinkedHashMap<Long, float[]> tables;
+
+  /**
+   * Create a cache for a given FFT size and sampling
+   *
+   * @param nkx - FFT length in X
+   * @param nky - FFT length in Y
+   * @param dkx - X wavenumber increment
+   * @param dky - Y wavenumber increment
+   * @param dw - angular frequency increment
+   * @param depthStep - depth step used for phase tables
+   * @param memoryLimit - maximum bytes held in tables, 0 to disable caching
+   */
+  public KzTableCache(int nkx, int nky, double dkx, double dky, double dw, double depthStep,
+      long memoryLimit) {
+    this.nkx = nkx;
+    this.nky = nky;
+    this.dw = dw;
+    dz = depthStep;
+    limit = memoryLimit;
+    k2 = wavenumberTable(nkx, nky, dkx, dky);
+    // Access ordered, so iteration starts at the least recently used table
+    tables = new LinkedHashMap<Long, float[]>(16, 0.75f, true);
+  }
+
+  /**
+   * Compute kx*kx + ky*ky for every sample of a 2D FFT
+   *
+   * @param nkx - FFT length in X
+   * @param nky - FFT length in Y
+   * @param dkx - X wavenumber increment
+   * @param dky - Y wavenumber increment
+   * @return table of nky rows of nkx samples
+   */
+  public static float[] wavenumberTable(int nkx, int nky, double dkx, double dky) {
+    float[] k2 = new float[nkx * nky];
+    int nqx = nkx / 2;
+    int nqy = nky / 2;
+    double[] kx2 = new double[nkx];
+    for (int i = 0; i < nkx; i++) {
+      double kx = dkx * ShotMigPhaseShift.getKindex(nqx, nkx, i);
+      kx2[i] = kx * kx;
+    }
+    for (int j = 0; j < nky; j++) {
+      double ky = dky * ShotMigPhaseShift.getKindex(nqy, nky, j);
+      double ky2 = ky * ky;
+      int off = j * nkx;
+      for (int i = 0; i < nkx; i++) {
+        k2[off + i] = (float) (kx2[i] + ky2);
+      }
+    }
+    return k2;
+  }
+
+  /**
+   * Return the kz table for a frequency and velocity. The returned table is
+   * shared and must not be modified.
+   *
+   * @param ifreq - frequency index
+   * @param v - velocity
+   * @return table of nky rows of nkx samples, EVANESCENT where kz is not real
+   */
+  public float[] getKz(int ifreq, float v) {
+    return get(ifreq, v, false);
+  }
+
+  /**
+   * Return the phase table for a frequency and velocity. The returned table is
+   * shared and must not be modified.
+   *
+   * @param ifreq - frequency index
+   * @param v - velocity
+   * @return table of nky rows of nkx complex samples, cos(kz*dz), sin(kz*dz)
+   */
+  public float[] getPhase(int ifreq, float v) {
+    return get(ifreq, v, true);
+  }
+
+  private float[] get(int ifreq, float v, boolean phase) {
+    long bits = ((long) ifreq << 32) | (Float.floatToIntBits(v) & 0xffffffffL);
+    Long key = Long.valueOf(phase ? bits | PHASE : bits);
+    synchronized (this) {
+      float[] kz = tables.get(key);
+      if (kz != null) {
+        hits++;
+        return kz;
+      }
+      misses++;
+    }
+    // Compute outside the lock, two threads may occasionally build the same table
+    float[] kz = (phase ? computePhase(ifreq, v) : computeKz(ifreq, v));
+    long size = 4L * kz.length;
+    if (size > limit)
+      return kz;
+    synchronized (this) {
+      if (tables.put(key, kz) == null)
+        bytes += size;
+      Iterator<Map.Entry<Long, float[]>> it = tables.entrySet().iterator();
+      while (bytes > limit && it.hasNext()) {
+        Map.Entry<Long, float[]> e = it.next();
+        if (e.getKey().equals(key))
+          continue;
+        bytes -= 4L * e.getValue().length;
+        it.remove();
+        evictions++;
+      }
+    }
+    return kz;
+  }
+
+  /**
+   * Compute a kz table without caching it
+   */
+  public float[] computeKz(int ifreq, float v) {
+    double omega = dw * ifreq;
+    double wv2 = (omega * omega) / ((double) v * v);
+    float[] kz = new float[k2.length];
+    for (int i = 0; i < kz.length; i++) {
+      double kz2 = wv2 - k2[i];
+      kz[i] = (kz2 > EPS ? (float) Math.sqrt(kz2) : EVANESCENT);
+    }
+    return kz;
+  }
+
+  /**
+   * Compute a phase table without caching it
+   */
+  public float[] computePhase(int ifreq, float v) {
+    float[] kz = computeKz(ifreq, v);
+    float[] t = new float[2 * kz.length];
+    for (int i = 0, k = 0; i < kz.length; i++, k += 2) {
+      if (kz[i] >= 0) {
+        double shift = dz * kz[i];
+        t[k] = (float) Math.cos(shift);
+        t[k + 1] = (float) Math.sin(shift);
+      }
+    }
+    return t;
+  }
+
+  /**
+   * Return the kx*kx + ky*ky table
+   */
+  public float[] getWavenumberTable() {
+    return k2;
+  }
+
+  /**
+   * Drop all cached tables
+   */
+  public synchronized void clear() {
+    tables.clear();
+    bytes = 0;
+  }
+
+  /**
+   * Return the fraction of lookups that were found in the cache
+   */
+  public synchronized double getHitRate() {
+    long n = hits + misses;
+    return (n == 0 ? 0 : (double) hits / n);
+  }
+
+  /**
+   * Return a summary of cache usage
+   */
+  public synchronized String report() {
+    StringBuffer buf = new StringBuffer("Kz Table Cache Report:\n");
+    buf.append(String.format("%12s: %-12d\n", "tables", tables.size()));
+    buf.append(String.format("%12s: %-12.2f\n", "MBytes", bytes / 1e6));
+    buf.append(String.format("%12s: %-12.2f\n", "limitMB", limit / 1e6));
+    buf.append(String.format("%12s: %-12d\n", "hits", hits));
+    buf.append(String.format("%12s: %-12d\n", "misses", misses));
+    buf.append(String.format("%12s: %-12d\n", "evictions", evictions));
+    buf.append(String.format("%12s: %-12.4f", "hitRate", getHitRate()));
+    return buf.toString();
+  }
+}
@@ -9,6 +9,10 @@ import org.javaseis.util.SeisException;
 
 import edu.mines.jtk.util.ParameterSet;
 
+/**
+ * Example class that computes the RMS value of a JavaSeis dataset on a single
+ * thread. DatasetStatistics computes this and more on several tasks.
+ */
 public class ExampleFileRMSValue {
 
   /**
@@ -31,15 +35,15 @@ public class ExampleFileRMSValue {
     float[][] trc = sio.getTraceDataArray();
     Iterator<int[]> frames = sio.frameIterator();
     double rms = 0.0;
-    double sum = 0;
+    long sum = 0;
     // Loop over frames and calculate RMS value
     while (frames.hasNext()) {
       frames.next();
       int ntrc = sio.getTracesInFrame();
       for (int j=0; j<ntrc; j++) {
+        sum = sum + trc[j].length;
         for (int i=0; i<trc[j].length; i++) {
-            sum = sum + 1;
-            rms = rms + (double)(trc[j][i]*trc[j][i]);
+            rms = rms + (double)trc[j][i]*trc[j][i];
         }
       }
     }
@@ -4,9 +4,9 @@ import java.util.Arrays;
 
 import org.javaseis.grid.GridDefinition;
 import org.javaseis.services.ParameterService;
+import org.javaseis.time.IntervalStats;
 import org.javaseis.tool.StandAloneVolumeTool;
 import org.javaseis.tool.ToolContext;
-import org.javaseis.util.IntervalTimer;
 import org.javaseis.util.SeisException;
 import org.javaseis.volume.ISeismicVolume;
 
@@ -21,9 +21,8 @@ public class ExampleStandAloneInputTool extends StandAloneVolumeTool {
 
   IParallelContext pc;
   PositionIterator volPos;
-  IntervalTimer compTimer, totalTimer;
+  IntervalStats compTime;
   GridDefinition inputGrid;
-  double compTime, waitTime, totalTime;
 
   public static void main(String[] args) {
     ParameterService parms = new ParameterService(args);
@@ -52,12 +51,11 @@ public class ExampleStandAloneInputTool extends StandAloneVolumeTool {
 
   @Override
   public void parallelInit(ToolContext toolContext) {
-    totalTimer = new IntervalTimer();
-    totalTimer.start();
+    // Timed along with the framework stages and reported at the end of the run
+    compTime = toolContext.getRateTracker().register("minMax");
     pc = toolContext.getParallelContext();
     inputGrid = (GridDefinition) toolContext.getFlowGlobal(ToolContext.INPUT_GRID);
     pc.masterPrint("Input Grid Definition:\n" + inputGrid );
-    compTimer = new IntervalTimer();
     int nvol = (int) inputGrid.getAxisLength(3);
     int nhyp = (int) inputGrid.getAxisLength(4);
     volPos = new PositionIterator(new int[] { nvol, nhyp });
@@ -70,7 +68,7 @@ public class ExampleStandAloneInputTool extends StandAloneVolumeTool {
       volPos.next();
       pc.masterPrint("Process Input Volume at position: "
           + Arrays.toString(volPos.getPosition()));
-      compTimer.start();
+      long t0 = compTime.start();
       ITraceIterator ti = output.getTraceIterator();
       float[] trc;
       double min = Double.MAX_VALUE;
@@ -82,7 +80,7 @@ public class ExampleStandAloneInputTool extends StandAloneVolumeTool {
       }     
       pc.masterPrint("  Min,Max values in volume: " + ReduceScalar.reduceDouble(pc, min, Operation.MIN) + 
           ", " + ReduceScalar.reduceDouble(pc, max, Operation.MAX));
-      compTimer.stop();
+      compTime.stop(t0, 1);
       return true;
     }
     return volPos.hasNext();
@@ -95,11 +93,7 @@ public class ExampleStandAloneInputTool extends StandAloneVolumeTool {
 
   @Override
   public void parallelFinish(ToolContext toolContext) {
-    compTime = ReduceScalar.reduceDouble(pc,compTimer.elapsedTime(),Operation.SUM);
-    totalTimer.stop();
-    totalTime = ReduceScalar.reduceDouble(pc,totalTimer.elapsedTime(),Operation.SUM);
-    pc.masterPrint("Completed ExampleStandAloneInputTool:" +
-      "\n  Computation Time: " + compTime + "\n  Total Time: " + totalTime );
+    pc.masterPrint("Completed ExampleStandAloneInputTool");
   }
 
   @Override
@@ -40,6 +40,48 @@ public class GridUtil {
     return new GridDefinition( ndim, axes );
   }
   
+  /**
+   * Build a grid for a given shape, starting from the default grid for its
+   * dimension and replacing any axis properties found in a parameter set. The
+   * keys are the same as for fromParameterSet, and each one may be missing or
+   * shorter than the number of dimensions.
+   * @param axisLengths - axis lengths, fastest axis first
+   * @param gridParms - axis properties, or null for the default grid
+   * @return new grid definition
+   */
+  public static GridDefinition fromShape( long[] axisLengths, ParameterSet gridParms ) {
+    int ndim = axisLengths.length;
+    int[] lengths = new int[ndim];
+    for (int i=0; i<ndim; i++) {
+      if (axisLengths[i] < 1 || axisLengths[i] > Integer.MAX_VALUE)
+        throw new IllegalArgumentException("Invalid length " + axisLengths[i] + " for axis " + i);
+      lengths[i] = (int)axisLengths[i];
+    }
+    GridDefinition grid = GridDefinition.getDefault(ndim, lengths);
+    if (gridParms == null) return grid;
+    String[] axisLabels = gridParms.getStrings("AxisLabels",new String[0] );
+    String[] axisUnits = gridParms.getStrings("AxisUnits",new String[0] );
+    String[] axisDomains = gridParms.getStrings("AxisDomains",new String[0] );
+    long[] logicalOrigins = gridParms.getLongs("LogicalOrigins",new long[0] );
+    long[] logicalDeltas = gridParms.getLongs("LogicalDeltas",new long[0] );
+    double[] physicalOrigins = gridParms.getDoubles("PhysicalOrigins",new double[0] );
+    double[] physicalDeltas = gridParms.getDoubles("PhysicalDeltas",new double[0] );
+    AxisDefinition[] axes = new AxisDefinition[ndim];
+    for (int i=0; i<ndim; i++) {
+      AxisDefinition a = grid.getAxis(i);
+      axes[i] = new AxisDefinition(
+          i < axisLabels.length ? getAxisLabel(axisLabels[i]) : a.getLabel(),
+          i < axisUnits.length ? new Units(axisUnits[i]) : a.getUnits(),
+          i < axisDomains.length ? new DataDomain(axisDomains[i]) : a.getDomain(),
+          axisLengths[i],
+          i < logicalOrigins.length ? logicalOrigins[i] : a.getLogicalOrigin(),
+          i < logicalDeltas.length ? logicalDeltas[i] : a.getLogicalDelta(),
+          i < physicalOrigins.length ? physicalOrigins[i] : a.getPhysicalOrigin(),
+          i < physicalDeltas.length ? physicalDeltas[i] : a.getPhysicalDelta() );
+    }
+    return new GridDefinition( ndim, axes );
+  }
+
   public static AxisLabel getAxisLabel( String axisName ) {
     AxisLabel label = AxisLabel.get(axisName);
     if (label != null) return label;
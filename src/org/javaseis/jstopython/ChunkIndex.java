@@ -0,0 +1,78 @@
+package org.javaseis.jstopython;
+
+import org.javaseis.util.JsonUtil;
+import org.javaseis.util.SeisException;
+
+/**
+ * JSON index of a chunked array written by ChunkedArrayWriter.
+ * <p>
+ * Shapes and axis properties are in NumPy order, slowest JavaSeis axis first,
+ * and each chunk is stored C ordered in a file named by its chunk indices
+ * joined with '.', as in Zarr version 2. Edge chunks are full size and padded
+ * with zeros. Chunks written with the QUANT16 codec hold 16 bit integers q,
+ * and the float samples are q / scale + offset with the scale and offset of
+ * that chunk.
+ *
+ * @author chuck@momacmo.org
+ *
+ */
+public class ChunkIndex {
+  /** Index file name in the output directory */
+  public static final String INDEX_FILE = "index.json";
+
+  /** One stored chunk */
+  public static class Entry {
+    /** File name of the chunk */
+    public String key;
+    /** Stored bytes */
+    public long bytes;
+    /** Quantization scale and offset, null unless the codec is QUANT16 */
+    public Float scale, offset;
+  }
+
+  public String format = "javaseis-chunked";
+  public int version = 1;
+  /** Array shape */
+  public long[] shape;
+  /** Chunk shape */
+  public int[] chunks;
+  /** Element type of the decoded array */
+  public String dtype = NpyHeader.FLOAT32;
+  public String order = "C";
+  /** Codec name, see ChunkedArrayWriter.Codec */
+  public String codec;
+  /** zlib compression level */
+  public int level;
+  public String[] axisLabels;
+  public double[] physicalOrigins, physicalDeltas;
+  /** Decoded and stored bytes over all chunks */
+  public long rawBytes, storedBytes;
+  /** Stored chunks, in C order of their chunk indices */
+  public Entry[] entries;
+
+  /**
+   * Return raw bytes over stored bytes
+   */
+  public double getCompressionRatio() {
+    return (storedBytes == 0 ? 0 : (double) rawBytes / storedBytes);
+  }
+
+  /**
+   * Write the index to a directory
+   * @param dir - chunked array directory
+   * @throws SeisException if the file cannot be written
+   */
+  public void write(String dir) throws SeisException {
+    JsonUtil.toJsonFile(this, dir + "/" + INDEX_FILE);
+  }
+
+  /**
+   * Read the index of a chunked array
+   * @param dir - chunked array directory
+   * @return the index
+   * @throws SeisException if the file cannot be read
+   */
+  public static ChunkIndex read(String dir) throws SeisException {
+    return (ChunkIndex) JsonUtil.fromJsonFile(ChunkIndex.class, dir + "/" + INDEX_FILE);
+  }
+}
@@ -0,0 +1,362 @@
+package org.javaseis.jstopython;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import org.javaseis.cloud.array.PositionIterator;
+import org.javaseis.cloud.array.PositionPartition;
+import org.javaseis.grid.GridDefinition;
+import org.javaseis.io.Seisio;
+import org.javaseis.tool.DatasetJob;
+import org.javaseis.util.JsonUtil;
+import org.javaseis.util.SeisException;
+
+import beta.javaseis.parallel.IParallelContext;
+
+/**
+ * Export a JavaSeis dataset to a directory of compressed chunks, so readers
+ * can fetch just the sub-cubes they need.
+ * <p>
+ * The chunk shape is given in JavaSeis order, fastest axis first, and every
+ * chunk is written to its own file, with a ChunkIndex in index.json that
+ * records the shape, codec, axis properties and the stored size of each
+ * chunk. The layout follows Zarr version 2, and for the ZLIB codec a .zarray
+ * file is written too, so zarr.open(dir) reads the array directly.
+ * <p>
+ * ZLIB stores float32 samples compressed with java.util.zip.Deflater, which
+ * writes the same zlib stream as the numcodecs zlib codec. QUANT16 first maps
+ * each chunk onto 16 bit integers with its own scale and offset, which halves
+ * the size before compression and keeps the error within half a step, or
+ * 1/131068 of the range of the chunk.
+ * <p>
+ * Chunks are grouped into slabs that share their frame axes, so each frame is
+ * read once. Slabs are split across ParallelTaskExecutor tasks in contiguous
+ * blocks, and each task holds one slab of chunks in memory.
+ * <p>
+ * Usage: ChunkedArrayWriter inputPath outputDir chunkShape [codec] [level]
+ * [taskCount], with chunkShape as comma separated lengths such as 500,64,64
+ */
+public class ChunkedArrayWriter {
+  /** Largest value of a quantized sample */
+  public static final int QUANT_MAX = 32767;
+
+  /** Chunk encodings */
+  public enum Codec {
+    /** float32 compressed with zlib */
+    ZLIB,
+    /** 16 bit quantization per chunk, then zlib */
+    QUANT16
+  }
+
+  /**
+   * @param args
+   */
+  public static void main(String[] args) {
+    try {
+      String[] s = args[2].split(",");
+      int[] chunkShape = new int[s.length];
+      for (int i = 0; i < s.length; i++)
+        chunkShape[i] = Integer.parseInt(s[i].trim());
+      Codec codec = (args.length > 3 ? Codec.valueOf(args[3]) : Codec.ZLIB);
+      int level = (args.length > 4 ? Integer.parseInt(args[4]) : 1);
+      int ntask = (args.length > 5 ? Integer.parseInt(args[5]) : 1);
+      ChunkIndex index = export(args[0], args[1], chunkShape, codec, level, ntask);
+      System.out.println("Wrote " + index.entries.length + " chunks to " + args[1] + ", compression ratio "
+          + index.getCompressionRatio());
+    } catch (SeisException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Export a JavaSeis dataset to a chunked array directory
+   * @param inPath - JavaSeis dataset path
+   * @param outDir - output directory, created if needed
+   * @param chunkShape - chunk lengths in JavaSeis order, clipped to the axis
+   *          lengths
+   * @param codec - chunk encoding
+   * @param level - zlib compression level, 0 to 9
+   * @param ntask - number of tasks
+   * @return index of the written chunks
+   * @throws SeisException on read or write errors
+   */
+  public static ChunkIndex export(String inPath, String outDir, int[] chunkShape, Codec codec, int level,
+      int ntask) throws SeisException {
+    Seisio sio = DatasetJob.open(inPath);
+    GridDefinition grid = sio.getGridDefinition();
+    sio.close();
+    long[] shape = grid.getAxisLengths();
+    int ndim = shape.length;
+    if (chunkShape.length != ndim)
+      throw new SeisException("Chunk shape " + Arrays.toString(chunkShape) + " does not match "
+          + ndim + " dimensions");
+    int[] chunk = new int[ndim];
+    long elements = 1;
+    for (int i = 0; i < ndim; i++) {
+      if (chunkShape[i] < 1)
+        throw new SeisException("Invalid chunk shape " + Arrays.toString(chunkShape));
+      chunk[i] = (int) Math.min(chunkShape[i], shape[i]);
+      elements *= chunk[i];
+    }
+    if (4 * elements > Integer.MAX_VALUE)
+      throw new SeisException("Chunk of " + elements + " samples is too large");
+    File dir = new File(outDir);
+    if (!dir.isDirectory() && !dir.mkdirs())
+      throw new SeisException("Could not create outDir=" + outDir);
+
+    ChunkJob job = new ChunkJob(inPath, outDir, shape, chunk, codec, level);
+    job.execute(ChunkTask.class, ntask, "Chunked export");
+
+    ChunkIndex index = new ChunkIndex();
+    index.shape = NpyHeader.numpyShape(shape);
+    index.chunks = reverse(chunk);
+    index.codec = codec.name();
+    index.level = level;
+    index.axisLabels = new String[ndim];
+    index.physicalOrigins = new double[ndim];
+    index.physicalDeltas = new double[ndim];
+    for (int i = 0; i < ndim; i++) {
+      int k = ndim - 1 - i;
+      index.axisLabels[i] = grid.getAxis(k).getLabel().getName();
+      index.physicalOrigins[i] = grid.getAxis(k).getPhysicalOrigin();
+      index.physicalDeltas[i] = grid.getAxis(k).getPhysicalDelta();
+    }
+    index.entries = job.entries;
+    index.rawBytes = 4 * elements * job.entries.length;
+    for (ChunkIndex.Entry e : job.entries)
+      index.storedBytes += e.bytes;
+    index.write(outDir);
+    if (codec == Codec.ZLIB)
+      JsonUtil.toJsonFile(new ZArray(index), outDir + "/.zarray");
+    return index;
+  }
+
+  /**
+   * Zarr version 2 array metadata
+   */
+  static class ZArray {
+    int zarr_format = 2;
+    long[] shape;
+    int[] chunks;
+    String dtype = NpyHeader.FLOAT32;
+    Compressor compressor;
+    double fill_value = 0;
+    String order = "C";
+    Object[] filters = new Object[0];
+
+    ZArray(ChunkIndex index) {
+      shape = index.shape;
+      chunks = index.chunks;
+      compressor = new Compressor();
+      compressor.level = index.level;
+    }
+
+    static class Compressor {
+      String id = "zlib";
+      int level;
+    }
+  }
+
+  /**
+   * Shared description of a chunked export
+   */
+  static class ChunkJob extends DatasetJob {
+    String inPath, outDir;
+    long[] shape;
+    int[] chunk;
+    /** Number of chunks along each axis */
+    int[] counts;
+    Codec codec;
+    int level;
+    /** Written chunks, filled in by the tasks */
+    ChunkIndex.Entry[] entries;
+
+    ChunkJob(String inPath, String outDir, long[] shape, int[] chunk, Codec codec, int level) {
+      this.inPath = inPath;
+      this.outDir = outDir;
+      this.shape = shape;
+      this.chunk = chunk;
+      this.codec = codec;
+      this.level = level;
+      counts = new int[shape.length];
+      int n = 1;
+      for (int i = 0; i < shape.length; i++) {
+        counts[i] = (int) ((shape[i] + chunk[i] - 1) / chunk[i]);
+        n *= counts[i];
+      }
+      entries = new ChunkIndex.Entry[n];
+    }
+  }
+
+  /**
+   * Writes one block of slabs
+   */
+  public static class ChunkTask extends DatasetJob.Task<ChunkJob> {
+    @Override
+    protected void process(ChunkJob job, IParallelContext pc) throws SeisException, IOException {
+      // Slab positions are chunk indices along the frame axes
+      PositionPartition slabs = PositionPartition.block(new PositionIterator(job.counts, 2), pc);
+      Seisio sio = DatasetJob.open(job.inPath);
+      try {
+        new SlabWriter(job, sio).write(slabs);
+      } finally {
+        sio.close();
+      }
+    }
+  }
+
+  /**
+   * Reads the frames of a slab, cuts them into chunks and writes each chunk
+   */
+  static class SlabWriter {
+    ChunkJob job;
+    Seisio sio;
+    int ndim, n0, n1, c0, c1, nc0, nc1;
+    /** Chunks of the current slab, nc0*nc1 of them */
+    float[][] bufs;
+    /** Frames per slab along each frame axis */
+    int[] frameChunk;
+    int framesPerSlab;
+    ByteBuffer raw;
+    byte[] out = new byte[1 << 16];
+    Deflater deflater;
+
+    SlabWriter(ChunkJob job, Seisio sio) {
+      this.job = job;
+      this.sio = sio;
+      ndim = job.shape.length;
+      n0 = (int) job.shape[0];
+      n1 = (int) job.shape[1];
+      c0 = job.chunk[0];
+      c1 = job.chunk[1];
+      nc0 = job.counts[0];
+      nc1 = job.counts[1];
+      int elements = 1;
+      for (int c : job.chunk)
+        elements *= c;
+      bufs = new float[nc0 * nc1][elements];
+      frameChunk = Arrays.copyOfRange(job.chunk, 2, ndim);
+      framesPerSlab = elements / (c0 * c1);
+      raw = ByteBuffer.allocate(4 * elements).order(ByteOrder.LITTLE_ENDIAN);
+      deflater = new Deflater(job.level);
+    }
+
+    void write(PositionPartition slabs) throws SeisException, IOException {
+      try {
+        while (slabs.hasNext())
+          writeSlab(slabs.next());
+      } finally {
+        deflater.end();
+      }
+    }
+
+    void writeSlab(int[] slab) throws SeisException, IOException {
+      for (float[] b : bufs)
+        Arrays.fill(b, 0f);
+      float[][] trcs = sio.getTraceDataArray();
+      int[] pos = new int[ndim];
+      for (int f = 0; f < framesPerSlab; f++) {
+        // Frame position from its index within the slab, fastest axis first
+        boolean live = true;
+        for (int k = 2, r = f; k < ndim; k++) {
+          pos[k] = slab[k] * job.chunk[k] + r % frameChunk[k - 2];
+          r /= frameChunk[k - 2];
+          live &= (pos[k] < job.shape[k]);
+        }
+        if (!live)
+          continue;
+        int ntrc = Math.min(sio.readFrame(pos), n1);
+        int base = f * c0 * c1;
+        for (int j = 0; j < ntrc; j++) {
+          int cj = j / c1;
+          int off = base + (j - cj * c1) * c0;
+          for (int ci = 0; ci < nc0; ci++) {
+            int start = ci * c0;
+            System.arraycopy(trcs[j], start, bufs[ci + nc0 * cj], off, Math.min(c0, n0 - start));
+          }
+        }
+      }
+      int[] index = slab.clone();
+      for (int cj = 0; cj < nc1; cj++) {
+        for (int ci = 0; ci < nc0; ci++) {
+          index[0] = ci;
+          index[1] = cj;
+          writeChunk(index, bufs[ci + nc0 * cj]);
+        }
+      }
+    }
+
+    void writeChunk(int[] index, float[] samples) throws IOException {
+      ChunkIndex.Entry e = new ChunkIndex.Entry();
+      raw.clear();
+      if (job.codec == Codec.QUANT16) {
+        float min = Float.MAX_VALUE;
+        float max = -Float.MAX_VALUE;
+        for (float v : samples) {
+          min = Math.min(min, v);
+          max = Math.max(max, v);
+        }
+        float offset = 0.5f * (min + max);
+        float half = 0.5f * (max - min);
+        float scale = (half > 0 ? QUANT_MAX / half : 1f);
+        for (float v : samples) {
+          int q = Math.round((v - offset) * scale);
+          raw.putShort((short) Math.max(-QUANT_MAX, Math.min(QUANT_MAX, q)));
+        }
+        e.scale = scale;
+        e.offset = offset;
+      } else {
+        raw.asFloatBuffer().put(samples);
+        raw.position(4 * samples.length);
+      }
+      e.key = key(index);
+      deflater.reset();
+      deflater.setInput(raw.array(), 0, raw.position());
+      deflater.finish();
+      try (FileOutputStream fos = new FileOutputStream(new File(job.outDir, e.key))) {
+        while (!deflater.finished()) {
+          int n = deflater.deflate(out);
+          fos.write(out, 0, n);
+          e.bytes += n;
+        }
+      }
+      job.entries[linearIndex(index, job.counts)] = e;
+    }
+  }
+
+  /**
+   * Return the file name of a chunk, NumPy order indices joined with '.'
+   */
+  static String key(int[] index) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = index.length - 1; i >= 0; i--) {
+      sb.append(index[i]);
+      if (i > 0)
+        sb.append('.');
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Return the C order index of a chunk, which runs fastest along the first
+   * JavaSeis axis
+   */
+  static int linearIndex(int[] index, int[] counts) {
+    int n = 0;
+    for (int i = index.length - 1; i >= 0; i--)
+      n = n * counts[i] + index[i];
+    return n;
+  }
+
+  static int[] reverse(int[] a) {
+    int[] r = new int[a.length];
+    for (int i = 0; i < a.length; i++)
+      r[i] = a[a.length - 1 - i];
+    return r;
+  }
+}
@@ -0,0 +1,41 @@
+package org.javaseis.jstopython;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Test;
+
+public class JTestNpyHeader {
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    long[] jsShape = new long[] { 1001, 240, 60, 7 };
+    NpyHeader h = new NpyHeader(NpyHeader.FLOAT32, NpyHeader.numpyShape(jsShape));
+    byte[] b = h.encode();
+    assertEquals(0, b.length % NpyHeader.ALIGN);
+    assertEquals(b.length, h.getDataOffset());
+    assertEquals(1, b[6]);
+    assertEquals('\n', b[b.length - 1]);
+    String dict = new String(b, 10, b.length - 10, StandardCharsets.US_ASCII);
+    assertTrue(dict.startsWith("{'descr': '<f4', 'fortran_order': False, 'shape': (7, 60, 240, 1001), }"));
+    File f = File.createTempFile("header", ".npy");
+    f.deleteOnExit();
+    try (FileChannel fc = FileChannel.open(f.toPath(), StandardOpenOption.WRITE)) {
+      fc.write(ByteBuffer.wrap(b), 0);
+    }
+    try (FileChannel fc = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+      NpyHeader r = NpyHeader.read(fc);
+      assertArrayEquals(jsShape, NpyHeader.jsShape(r.getShape()));
+      assertEquals(NpyHeader.FLOAT32, r.getDescr());
+      assertFalse(r.isFortranOrder());
+      assertEquals(h.getDataOffset(), r.getDataOffset());
+      assertEquals(4, r.getElementSize());
+      assertEquals(1001L * 240 * 60 * 7, r.getElementCount());
+    }
+  }
+}
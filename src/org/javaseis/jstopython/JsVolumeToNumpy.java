@@ -1,12 +1,50 @@
 package org.javaseis.jstopython;
 
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
+import org.javaseis.cloud.array.PositionPartition;
 import org.javaseis.io.Seisio;
+import org.javaseis.tool.DatasetJob;
 import org.javaseis.util.SeisException;
 
+import beta.javaseis.parallel.ICollective.Operation;
+import beta.javaseis.parallel.IParallelContext;
+import beta.javaseis.parallel.ReduceScalar;
+
+/**
+ * Export a JavaSeis dataset of any dimension to a NumPy .npy file.
+ * <p>
+ * The output is a standard .npy file with a float32 little endian array, C
+ * ordered with the slowest JavaSeis axis first, so Python can open it with
+ * np.load(path, mmap_mode='r') without a metadata sidecar. Frames are read
+ * with Seisio.readFrame, copied trace by trace into a direct buffer with bulk
+ * FloatBuffer puts, and written with positional FileChannel writes at the
+ * offset of each frame. Traces beyond the live count of a frame are written
+ * as zeros.
+ * <p>
+ * An output path ending in .npz writes a compressed zip archive holding the
+ * array as arr_0.npy, as np.savez_compressed does. That format cannot be
+ * memory mapped, so it is streamed.
+ * <p>
+ * With more than one task, .npy export runs on ParallelTaskExecutor tasks.
+ * Each task opens the dataset itself, takes a contiguous block of frames with
+ * PositionPartition and writes them at their own offsets, so tasks share
+ * nothing but the output file. The header is written once all tasks are done,
+ * so an interrupted export never looks like a complete .npy file.
+ * <p>
+ * Usage: JsVolumeToNumpy inputPath outputPath [taskCount]
+ */
 public class JsVolumeToNumpy {
 
   /**
@@ -17,7 +55,6 @@ public class JsVolumeToNumpy {
     try {
       jsVolumeToNumpy(args);
     } catch (SeisException e) {
-      // TODO Auto-generated catch block
       e.printStackTrace();
     }
   }
@@ -25,50 +62,186 @@ public class JsVolumeToNumpy {
   public static void jsVolumeToNumpy(String[] args) throws SeisException {
     String inPath = args[0];
     String outPath = args[1];
+    int ntask = (args.length > 2 ? Integer.parseInt(args[2]) : 1);
     System.out.println(
-        "Convert JavaSeis Volume to Numpy 3D array" + "\n  Input Path: " + inPath + "\n  Output path: " + outPath);
-    // Attempt to open input
-    Seisio sio = null;
+        "Convert JavaSeis dataset to Numpy array" + "\n  Input Path: " + inPath + "\n  Output path: " + outPath
+            + "\n  Tasks: " + ntask);
+    double rms = (ntask > 1 ? exportParallel(inPath, outPath, ntask) : export(inPath, outPath));
+    System.out.println("Conversion complete: rms = " + rms);
+  }
+
+  /**
+   * Export a JavaSeis dataset to a .npy or .npz file
+   * @param inPath - JavaSeis dataset path
+   * @param outPath - output path
+   * @return RMS amplitude of the exported samples
+   * @throws SeisException on read or write errors
+   */
+  public static double export(String inPath, String outPath) throws SeisException {
+    Seisio sio = DatasetJob.open(inPath);
+    long[] shape = sio.getGridDefinition().getAxisLengths();
+    NpyHeader header = new NpyHeader(NpyHeader.FLOAT32, NpyHeader.numpyShape(shape));
+    double sumsq = 0;
     try {
-      sio = new Seisio(inPath);
-      sio.open("r");
-    } catch (Exception e) {
-      e.printStackTrace();
-      throw new SeisException("Could not open inPath=" + inPath, e.getCause());
+      if (outPath.endsWith(".npz")) {
+        try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(outPath))) {
+          zos.putNextEntry(new ZipEntry("arr_0.npy"));
+          WritableByteChannel wc = Channels.newChannel(zos);
+          writeFully(wc, ByteBuffer.wrap(header.encode()));
+          sumsq = writeFrames(sio, shape, wc, null, 0,
+              PositionPartition.block(DatasetJob.framePositions(shape), 0, 1));
+          zos.closeEntry();
+        }
+      } else {
+        try (FileChannel fc = FileChannel.open(Paths.get(outPath), StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+          writeFully(fc, ByteBuffer.wrap(header.encode()), 0);
+          sumsq = writeFrames(sio, shape, null, fc, header.getDataOffset(),
+              PositionPartition.block(DatasetJob.framePositions(shape), 0, 1));
+        }
+      }
+    } catch (IOException e) {
+      throw new SeisException("Could not write outPath=" + outPath, e);
+    } finally {
+      sio.close();
     }
+    long n = header.getElementCount();
+    return (n == 0 ? 0 : Math.sqrt(sumsq / n));
+  }
+
+  /**
+   * Export a JavaSeis dataset to a .npy file with several tasks
+   * @param inPath - JavaSeis dataset path
+   * @param outPath - output .npy path
+   * @param ntask - number of tasks
+   * @return RMS amplitude of the exported samples
+   * @throws SeisException on read or write errors
+   */
+  public static double exportParallel(String inPath, String outPath, int ntask) throws SeisException {
+    if (outPath.endsWith(".npz"))
+      throw new SeisException("Parallel export writes .npy files only: " + outPath);
+    Seisio sio = DatasetJob.open(inPath);
     long[] shape = sio.getGridDefinition().getAxisLengths();
-    // Open output file and write shape
-
-    try (FileOutputStream fos = new FileOutputStream(outPath)) {
-      // Create ByteBuffer with native endian
-      ByteBuffer buffer = ByteBuffer.allocate((int) (4 * shape[0] * shape[1]));
-      buffer.order(ByteOrder.nativeOrder());  // Set the buffer to native endian order
-      
-      // Loop and write frames
-      int[] pos = new int[4];
-      double rms = 0;
-      float[][] trcs = sio.getTraceDataArray();
-      for (int m=0; m<shape[3]; m++) {
-    	  pos[3] = m;
-      for (int k = 0; k < shape[2]; k++) {
-        pos[2] = k;
-        sio.readFrame(pos);
-        for (int j = 0; j < shape[1]; j++) {
-          for (int i = 0; i < shape[0]; i++) {
-            buffer.putFloat(trcs[j][i]);
-            rms += trcs[j][i] * trcs[j][i];
-          }
+    sio.close();
+    ExportJob job = new ExportJob(inPath, outPath, shape);
+    // Size the file up front, so tasks only write into it
+    try (FileChannel fc = FileChannel.open(Paths.get(outPath), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      long length = job.header.getDataOffset() + 4 * job.header.getElementCount();
+      if (length > 0)
+        fc.write(ByteBuffer.allocate(1), length - 1);
+    } catch (IOException e) {
+      throw new SeisException("Could not create outPath=" + outPath, e);
+    }
+    job.execute(ExportTask.class, ntask, "Parallel export");
+    try (FileChannel fc = FileChannel.open(Paths.get(outPath), StandardOpenOption.WRITE)) {
+      writeFully(fc, ByteBuffer.wrap(job.header.encode()), 0);
+    } catch (IOException e) {
+      throw new SeisException("Could not write header to outPath=" + outPath, e);
+    }
+    long n = job.header.getElementCount();
+    return (n == 0 ? 0 : Math.sqrt(job.sumsq / n));
+  }
+
+  /**
+   * Shared description of a parallel export
+   */
+  static class ExportJob extends DatasetJob {
+    String inPath, outPath;
+    long[] shape;
+    NpyHeader header;
+    volatile double sumsq;
+
+    ExportJob(String inPath, String outPath, long[] shape) {
+      this.inPath = inPath;
+      this.outPath = outPath;
+      this.shape = shape;
+      header = new NpyHeader(NpyHeader.FLOAT32, NpyHeader.numpyShape(shape));
+    }
+  }
+
+  /**
+   * Exports one block of frames
+   */
+  public static class ExportTask extends DatasetJob.Task<ExportJob> {
+    double sumsq;
+
+    @Override
+    protected void process(ExportJob job, IParallelContext pc) throws SeisException, IOException {
+      PositionPartition frames = PositionPartition.block(DatasetJob.framePositions(job.shape), pc);
+      try (FileChannel fc = FileChannel.open(Paths.get(job.outPath), StandardOpenOption.WRITE)) {
+        Seisio sio = DatasetJob.open(job.inPath);
+        try {
+          sumsq = writeFrames(sio, job.shape, null, fc, job.header.getDataOffset(), frames);
+        } finally {
+          sio.close();
         }
-        fos.write(buffer.array());
-        buffer.flip();
       }
+    }
+
+    @Override
+    protected void reduce(ExportJob job, IParallelContext pc) {
+      double total = ReduceScalar.reduceDouble(pc, sumsq, Operation.SUM);
+      if (pc.rank() == 0)
+        job.sumsq = total;
+    }
+  }
+
+  /**
+   * Read a set of frames in file order and write them either to a stream
+   * channel, or to a file channel at the offset of each frame
+   * @return sum of squares of the samples
+   */
+  static double writeFrames(Seisio sio, long[] shape, WritableByteChannel wc, FileChannel fc,
+      long dataOffset, PositionPartition frames) throws SeisException, IOException {
+    int n0 = (int) shape[0];
+    int n1 = (shape.length > 1 ? (int) shape[1] : 1);
+    long frameBytes = 4L * n0 * n1;
+    ByteBuffer buf = ByteBuffer.allocateDirect((int) frameBytes).order(ByteOrder.LITTLE_ENDIAN);
+    FloatBuffer fb = buf.asFloatBuffer();
+    float[][] trcs = sio.getTraceDataArray();
+    double sumsq = 0;
+    while (frames.hasNext()) {
+      int[] pos = frames.next();
+      int ntrc = sio.readFrame(pos);
+      sumsq += packFrame(trcs, ntrc, n0, n1, fb);
+      buf.clear();
+      if (fc != null)
+        writeFully(fc, buf, dataOffset + frames.getIndex() * frameBytes);
+      else
+        writeFully(wc, buf);
+    }
+    return sumsq;
+  }
+
+  /**
+   * Copy the live traces of a frame into a buffer, zero filling the rest
+   * @return sum of squares of the live samples
+   */
+  static double packFrame(float[][] trcs, int ntrc, int n0, int n1, FloatBuffer fb) {
+    fb.clear();
+    double sumsq = 0;
+    for (int j = 0; j < n1; j++) {
+      if (j < ntrc) {
+        float[] t = trcs[j];
+        fb.put(t, 0, n0);
+        for (int i = 0; i < n0; i++)
+          sumsq += (double) t[i] * t[i];
+      } else {
+        for (int i = 0; i < n0; i++)
+          fb.put(0f);
       }
-      fos.close();  
-      System.out.println("Conversion complete: rms = " + rms);
-    } catch (Exception e) {
-      e.printStackTrace();
-      System.err.println("Conversion failed");
     }
+    return sumsq;
   }
 
+  static void writeFully(FileChannel fc, ByteBuffer buf, long position) throws IOException {
+    while (buf.hasRemaining())
+      position += fc.write(buf, position);
+  }
+
+  static void writeFully(WritableByteChannel wc, ByteBuffer buf) throws IOException {
+    while (buf.hasRemaining())
+      wc.write(buf);
+  }
 }
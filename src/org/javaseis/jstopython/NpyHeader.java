@@ -0,0 +1,216 @@
+package org.javaseis.jstopython;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Header of a NumPy .npy file, format versions 1 and 2.
+ * <p>
+ * The file starts with the magic string \x93NUMPY, a version, the length of
+ * the header dictionary and the dictionary itself, padded so the data starts on
+ * a 64 byte boundary. Version 1 stores the length in 2 bytes and version 2 in
+ * 4, so version 2 is only written when the dictionary is too long for 1. The
+ * data follows the header with no padding, so it can be memory mapped.
+ * <p>
+ * JavaSeis axes run from fastest (samples) to slowest, while a C ordered NumPy
+ * shape runs from slowest to fastest. jsShape and numpyShape convert between
+ * the two, so a 4D dataset is array[volume][frame][trace][sample] in Python.
+ *
+ * @author chuck@momacmo.org
+ *
+ */
+public class NpyHeader {
+  /** Little endian 32 bit float */
+  public static final String FLOAT32 = "<f4";
+  /** Data alignment required by NumPy */
+  public static final int ALIGN = 64;
+
+  private static final byte[] MAGIC = new byte[] { (byte) 0x93, 'N', 'U', 'M', 'P', 'Y' };
+  private static final Pattern DESCR = Pattern.compile("'descr'\\s*:\\s*'([^']*)'");
+  private static final Pattern ORDER = Pattern.compile("'fortran_order'\\s*:\\s*(True|False)");
+  private static final Pattern SHAPE = Pattern.compile("'shape'\\s*:\\s*\\(([^)]*)\\)");
+
+  String descr;
+  boolean fortranOrder;
+  long[] shape;
+  long dataOffset;
+
+  /**
+   * Create a C ordered header
+   * @param descr - NumPy dtype string, such as FLOAT32
+   * @param numpyShape - array shape, slowest axis first
+   */
+  public NpyHeader(String descr, long[] numpyShape) {
+    this(descr, false, numpyShape);
+  }
+
+  public NpyHeader(String descr, boolean fortranOrder, long[] numpyShape) {
+    this.descr = descr;
+    this.fortranOrder = fortranOrder;
+    shape = numpyShape.clone();
+    dataOffset = encode().length;
+  }
+
+  /**
+   * Return the header bytes, including the padding before the data
+   */
+  public byte[] encode() {
+    StringBuilder dict = new StringBuilder();
+    dict.append("{'descr': '" + descr + "', 'fortran_order': " + (fortranOrder ? "True" : "False")
+        + ", 'shape': (");
+    for (int i = 0; i < shape.length; i++) {
+      dict.append(shape[i]);
+      if (shape.length == 1 || i < shape.length - 1)
+        dict.append(", ");
+    }
+    dict.append("), }");
+    int version = 1;
+    int prefix = MAGIC.length + 2 + 2;
+    int total = align(prefix + dict.length() + 1);
+    if (total - prefix > 65535) {
+      version = 2;
+      prefix += 2;
+      total = align(prefix + dict.length() + 1);
+    }
+    while (prefix + dict.length() + 1 < total)
+      dict.append(' ');
+    dict.append('\n');
+    ByteBuffer buf = ByteBuffer.allocate(total).order(ByteOrder.LITTLE_ENDIAN);
+    buf.put(MAGIC);
+    buf.put((byte) version);
+    buf.put((byte) 0);
+    if (version == 1)
+      buf.putShort((short) (total - prefix));
+    else
+      buf.putInt(total - prefix);
+    buf.put(dict.toString().getBytes(StandardCharsets.US_ASCII));
+    return buf.array();
+  }
+
+  private static int align(int n) {
+    return (n + ALIGN - 1) / ALIGN * ALIGN;
+  }
+
+  /**
+   * Read a header from the start of a file
+   * @param fc - channel open for reading
+   * @return header, with the offset of the data
+   * @throws IOException if the file is not a .npy file
+   */
+  public static NpyHeader read(FileChannel fc) throws IOException {
+    ByteBuffer pre = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+    fc.read(pre, 0);
+    pre.flip();
+    if (pre.remaining() < 10)
+      throw new IOException("File is too short for a .npy header");
+    for (int i = 0; i < MAGIC.length; i++) {
+      if (pre.get(i) != MAGIC[i])
+        throw new IOException("Missing .npy magic string");
+    }
+    int major = pre.get(6);
+    long length;
+    int prefix;
+    if (major == 1) {
+      length = pre.getShort(8) & 0xffff;
+      prefix = 10;
+    } else if (major == 2 || major == 3) {
+      length = pre.getInt(8) & 0xffffffffL;
+      prefix = 12;
+    } else {
+      throw new IOException("Unsupported .npy version " + major);
+    }
+    ByteBuffer dictBuf = ByteBuffer.allocate((int) length);
+    fc.read(dictBuf, prefix);
+    String dict = new String(dictBuf.array(), StandardCharsets.ISO_8859_1);
+    Matcher md = DESCR.matcher(dict);
+    Matcher mo = ORDER.matcher(dict);
+    Matcher ms = SHAPE.matcher(dict);
+    if (!md.find() || !mo.find() || !ms.find())
+      throw new IOException("Malformed .npy header: " + dict.trim());
+    String[] dims = ms.group(1).split(",");
+    int n = 0;
+    long[] shape = new long[dims.length];
+    for (String d : dims) {
+      if (d.trim().length() > 0)
+        shape[n++] = Long.parseLong(d.trim());
+    }
+    long[] s = new long[n];
+    System.arraycopy(shape, 0, s, 0, n);
+    NpyHeader h = new NpyHeader(md.group(1), mo.group(1).equals("True"), s);
+    h.dataOffset = prefix + length;
+    return h;
+  }
+
+  /**
+   * Convert a JavaSeis shape, fastest axis first, to a C ordered NumPy shape
+   */
+  public static long[] numpyShape(long[] jsShape) {
+    long[] s = new long[jsShape.length];
+    for (int i = 0; i < s.length; i++)
+      s[i] = jsShape[s.length - 1 - i];
+    return s;
+  }
+
+  /**
+   * Convert a C ordered NumPy shape to a JavaSeis shape, fastest axis first
+   */
+  public static long[] jsShape(long[] numpyShape) {
+    return numpyShape(numpyShape);
+  }
+
+  public String getDescr() {
+    return descr;
+  }
+
+  public boolean isFortranOrder() {
+    return fortranOrder;
+  }
+
+  /**
+   * Return the NumPy shape, slowest axis first
+   */
+  public long[] getShape() {
+    return shape.clone();
+  }
+
+  /**
+   * Return the byte offset of the first element
+   */
+  public long getDataOffset() {
+    return dataOffset;
+  }
+
+  /**
+   * Return the number of elements
+   */
+  public long getElementCount() {
+    long n = 1;
+    for (long s : shape)
+      n *= s;
+    return n;
+  }
+
+  /**
+   * Return the size of one element in bytes from the dtype string
+   */
+  public int getElementSize() {
+    return Integer.parseInt(descr.substring(2));
+  }
+
+  /**
+   * Return the byte order of the data
+   */
+  public ByteOrder getByteOrder() {
+    char c = descr.charAt(0);
+    if (c == '>')
+      return ByteOrder.BIG_ENDIAN;
+    if (c == '=')
+      return ByteOrder.nativeOrder();
+    return ByteOrder.LITTLE_ENDIAN;
+  }
+}
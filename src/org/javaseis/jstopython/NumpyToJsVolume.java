@@ -0,0 +1,174 @@
+package org.javaseis.jstopython;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.javaseis.array.IMultiArray;
+import org.javaseis.array.MultiArray;
+import org.javaseis.cloud.array.PositionPartition;
+import org.javaseis.grid.GridDefinition;
+import org.javaseis.grid.GridUtil;
+import org.javaseis.io.Seisio;
+import org.javaseis.parset.ParameterSetIO;
+import org.javaseis.tool.DatasetJob;
+import org.javaseis.util.SeisException;
+
+import edu.mines.jtk.util.ParameterSet;
+
+/**
+ * Import a NumPy .npy file into a new JavaSeis dataset.
+ * <p>
+ * The array must be float32 or float64 in either byte order. A C ordered
+ * array is read with its last axis as the JavaSeis sample axis, the reverse
+ * of JsVolumeToNumpy, and a Fortran ordered array keeps its axis order.
+ * Arrays with fewer than 3 dimensions are padded with unit axes, as JavaSeis
+ * datasets have at least 3.
+ * <p>
+ * The grid comes from GridUtil.fromShape, so axis labels, units, domains,
+ * origins and deltas can be given with the same keys as a grid parameter set
+ * (AxisLabels, AxisUnits, AxisDomains, LogicalOrigins, LogicalDeltas,
+ * PhysicalOrigins, PhysicalDeltas). Axes that are not given keep the defaults.
+ * <p>
+ * The file is memory mapped read only, a window of whole frames at a time, and
+ * each frame is copied into one frame MultiArray and written with
+ * Seisio.writeMultiArray. Heap use is one frame and mapped memory is one
+ * window, whatever the size of the array.
+ * <p>
+ * Usage: NumpyToJsVolume input=array.npy path=datasetPath [windowMB=64]
+ * [AxisLabels=...] ...
+ */
+public class NumpyToJsVolume {
+  /** Default size of the mapped window in bytes */
+  public static final long DEFAULT_WINDOW = 64L * 1024 * 1024;
+
+  /**
+   * @param args
+   */
+  public static void main(String[] args) {
+    try {
+      numpyToJsVolume(args);
+    } catch (SeisException e) {
+      e.printStackTrace();
+    }
+  }
+
+  public static void numpyToJsVolume(String[] args) throws SeisException {
+    ParameterSet parset = ParameterSetIO.argsToParameters(args);
+    String inPath = parset.getString("input", null);
+    String outPath = parset.getString("path", null);
+    if (inPath == null || outPath == null)
+      throw new SeisException("Usage: NumpyToJsVolume input=array.npy path=datasetPath");
+    long window = (long) (parset.getDouble("windowMB", DEFAULT_WINDOW / 1048576.0) * 1048576);
+    System.out.println("Convert Numpy array to JavaSeis dataset" + "\n  Input Path: " + inPath
+        + "\n  Output path: " + outPath);
+    double rms = importNpy(inPath, outPath, parset, window);
+    System.out.println("Conversion complete: rms = " + rms);
+  }
+
+  /**
+   * Import a .npy file into a new JavaSeis dataset, replacing any existing
+   * dataset at the output path
+   * @param inPath - .npy file path
+   * @param outPath - JavaSeis dataset path
+   * @param gridParms - axis properties for GridUtil.fromShape, or null
+   * @param window - maximum bytes mapped at once, at least one frame is mapped
+   * @return RMS amplitude of the imported samples
+   * @throws SeisException on read or write errors
+   */
+  public static double importNpy(String inPath, String outPath, ParameterSet gridParms, long window)
+      throws SeisException {
+    try (FileChannel fc = FileChannel.open(Paths.get(inPath), StandardOpenOption.READ)) {
+      NpyHeader header = NpyHeader.read(fc);
+      String type = header.getDescr().substring(1);
+      if (!type.equals("f4") && !type.equals("f8"))
+        throw new SeisException("Unsupported dtype " + header.getDescr() + " in " + inPath);
+      long[] shape = jsShape(header);
+      long length = header.getDataOffset() + header.getElementSize() * header.getElementCount();
+      if (fc.size() < length)
+        throw new SeisException("File is truncated, expected " + length + " bytes: " + inPath);
+      GridDefinition grid = GridUtil.fromShape(shape, gridParms);
+      Seisio.delete(outPath);
+      Seisio sio = new Seisio(outPath, grid);
+      sio.create();
+      double sumsq;
+      try {
+        sumsq = readFrames(fc, header, shape, sio, window);
+      } finally {
+        sio.close();
+      }
+      long n = header.getElementCount();
+      return (n == 0 ? 0 : Math.sqrt(sumsq / n));
+    } catch (IOException e) {
+      throw new SeisException("Could not read inPath=" + inPath, e);
+    }
+  }
+
+  /**
+   * Return the JavaSeis shape for a .npy header, fastest axis first and padded
+   * to at least 3 dimensions
+   */
+  static long[] jsShape(NpyHeader header) {
+    long[] s = (header.isFortranOrder() ? header.getShape() : NpyHeader.jsShape(header.getShape()));
+    if (s.length >= 3)
+      return s;
+    long[] p = new long[3];
+    Arrays.fill(p, 1);
+    System.arraycopy(s, 0, p, 0, s.length);
+    return p;
+  }
+
+  /**
+   * Map windows of whole frames in file order and write each frame to the
+   * dataset
+   * @return sum of squares of the samples
+   */
+  static double readFrames(FileChannel fc, NpyHeader header, long[] shape, Seisio sio, long window)
+      throws SeisException, IOException {
+    int n0 = (int) shape[0];
+    int n1 = (int) shape[1];
+    int esize = header.getElementSize();
+    long frameBytes = (long) esize * n0 * n1;
+    if (frameBytes > Integer.MAX_VALUE)
+      throw new SeisException("Frame of " + frameBytes + " bytes is too large to map");
+    long nframe = header.getElementCount() / ((long) n0 * n1);
+    long framesPerWindow = Math.max(1, Math.min(window, Integer.MAX_VALUE) / frameBytes);
+    ByteOrder order = header.getByteOrder();
+    IMultiArray frm = MultiArray.factory(2, float.class, 1, new int[] { n0, n1 });
+    float[] trc = new float[n0];
+    int[] tpos = new int[shape.length];
+    double sumsq = 0;
+    PositionPartition frames = PositionPartition.block(DatasetJob.framePositions(shape), 0, 1);
+    for (long f0 = 0; f0 < nframe; f0 += framesPerWindow) {
+      int nf = (int) Math.min(framesPerWindow, nframe - f0);
+      MappedByteBuffer map = fc.map(FileChannel.MapMode.READ_ONLY, header.getDataOffset() + f0 * frameBytes,
+          nf * frameBytes);
+      map.order(order);
+      FloatBuffer fb = (esize == 4 ? map.asFloatBuffer() : null);
+      DoubleBuffer db = (esize == 8 ? map.asDoubleBuffer() : null);
+      for (int k = 0; k < nf; k++) {
+        int[] pos = frames.next();
+        for (int j = 0; j < n1; j++) {
+          if (fb != null) {
+            fb.get(trc, 0, n0);
+          } else {
+            for (int i = 0; i < n0; i++)
+              trc[i] = (float) db.get();
+          }
+          for (int i = 0; i < n0; i++)
+            sumsq += (double) trc[i] * trc[i];
+          tpos[1] = j;
+          frm.putTrace(trc, tpos);
+        }
+        sio.writeMultiArray(frm, pos);
+      }
+    }
+    return sumsq;
+  }
+}
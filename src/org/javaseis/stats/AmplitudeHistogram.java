@@ -0,0 +1,188 @@
+package org.javaseis.stats;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import org.javaseis.util.ReduceArray;
+
+import beta.javaseis.parallel.IParallelContext;
+
+/**
+ * Log-linear histogram of float amplitudes, for approximate percentiles in a
+ * single pass.
+ * <p>
+ * The bucket of a sample is taken from its float bits: the sign, the exponent
+ * and the top bits of the mantissa. Every power of two is split into
+ * 2^precision buckets on each side of zero, so the whole float range is
+ * covered with no range known in advance, and a percentile is within
+ * 1/2^precision of the true value. With the default precision of 5 bits the
+ * histogram has 16384 buckets. Buckets are ordered by value, from -NaN and
+ * -Infinity up to +Infinity and NaN.
+ * <p>
+ * Histograms are not thread safe, each task keeps its own and they are
+ * combined with merge or reduce.
+ *
+ * @author chuck@momacmo.org
+ *
+ */
+public class AmplitudeHistogram implements Serializable {
+  private static final long serialVersionUID = 1L;
+  /** Default number of mantissa bits */
+  public static final int DEFAULT_PRECISION = 5;
+
+  int precision, shift, half;
+  long[] counts;
+
+  /**
+   * Create a histogram with the default precision
+   */
+  public AmplitudeHistogram() {
+    this(DEFAULT_PRECISION);
+  }
+
+  /**
+   * Create a histogram
+   * @param precisionBits - number of buckets per power of two, as a power of
+   *          two, from 1 to 10
+   */
+  public AmplitudeHistogram(int precisionBits) {
+    if (precisionBits < 1 || precisionBits > 10)
+      throw new IllegalArgumentException("Precision must be from 1 to 10 bits: " + precisionBits);
+    precision = precisionBits;
+    shift = 23 - precision;
+    half = 1 << (8 + precision);
+    counts = new long[2 * half];
+  }
+
+  /**
+   * Return the bucket holding a value
+   */
+  public int bucketIndex(float value) {
+    int bits = Float.floatToRawIntBits(value);
+    int m = (bits & 0x7fffffff) >>> shift;
+    return (bits < 0 ? half - 1 - m : half + m);
+  }
+
+  /**
+   * Return the middle of a bucket
+   */
+  public float bucketValue(int index) {
+    int m = (index >= half ? index - half : half - 1 - index);
+    float lo = Float.intBitsToFloat(m << shift);
+    float hi = Float.intBitsToFloat((m + 1) << shift);
+    float mid = (Float.isInfinite(hi) || Float.isNaN(hi) ? lo : 0.5f * (lo + hi));
+    return (index >= half ? mid : -mid);
+  }
+
+  /**
+   * Record a value
+   */
+  public void record(float value) {
+    counts[bucketIndex(value)]++;
+  }
+
+  /**
+   * Record the first n values of an array
+   */
+  public void record(float[] values, int n) {
+    long[] c = counts;
+    for (int i = 0; i < n; i++) {
+      int bits = Float.floatToRawIntBits(values[i]);
+      int m = (bits & 0x7fffffff) >>> shift;
+      c[bits < 0 ? half - 1 - m : half + m]++;
+    }
+  }
+
+  /**
+   * Add a count to a bucket
+   */
+  public void add(int index, long count) {
+    counts[index] += count;
+  }
+
+  /**
+   * Add the counts of a histogram with the same precision
+   */
+  public void merge(AmplitudeHistogram h) {
+    if (h.precision != precision)
+      throw new IllegalArgumentException("Histogram precision " + h.precision + " does not match " + precision);
+    for (int i = 0; i < counts.length; i++)
+      counts[i] += h.counts[i];
+  }
+
+  /**
+   * Sum histograms over all ranks, reducing only the range of buckets that
+   * are in use on some rank, with two array reductions. This is a collective
+   * call and every rank must use the same precision.
+   * @param pc - parallel context
+   */
+  public void reduce(IParallelContext pc) {
+    ReduceArray.reduceCounts(pc, counts);
+  }
+
+  public void reset() {
+    Arrays.fill(counts, 0);
+  }
+
+  public int getBucketCount() {
+    return counts.length;
+  }
+
+  public long getCount(int index) {
+    return counts[index];
+  }
+
+  public int getPrecision() {
+    return precision;
+  }
+
+  /**
+   * Return the total number of values recorded
+   */
+  public long getTotalCount() {
+    long n = 0;
+    for (long c : counts)
+      n += c;
+    return n;
+  }
+
+  /**
+   * Return an approximate percentile
+   * @param percentile - from 0 to 100
+   * @return middle of the bucket holding the percentile, NaN if empty
+   */
+  public float getPercentile(double percentile) {
+    long n = getTotalCount();
+    if (n == 0)
+      return Float.NaN;
+    long target = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+    long sum = 0;
+    for (int j = 0; j < counts.length; j++) {
+      sum += counts[j];
+      if (sum >= target)
+        return bucketValue(j);
+    }
+    return bucketValue(counts.length - 1);
+  }
+
+  /**
+   * Return counts in equal width bins, placing each bucket by its middle value
+   * @param min - lower edge of the first bin
+   * @param max - upper edge of the last bin
+   * @param nbins - number of bins
+   * @return counts, values outside the range are left out
+   */
+  public long[] toLinear(double min, double max, int nbins) {
+    long[] bins = new long[nbins];
+    double scale = nbins / (max - min);
+    for (int j = 0; j < counts.length; j++) {
+      if (counts[j] == 0)
+        continue;
+      double v = bucketValue(j);
+      if (v < min || v > max)
+        continue;
+      bins[Math.min(nbins - 1, (int) ((v - min) * scale))] += counts[j];
+    }
+    return bins;
+  }
+}
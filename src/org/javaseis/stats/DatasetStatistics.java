@@ -0,0 +1,270 @@
+package org.javaseis.stats;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.javaseis.cloud.array.PositionPartition;
+import org.javaseis.cloud.array.ValueIndex;
+import org.javaseis.io.Seisio;
+import org.javaseis.parset.ParameterSetIO;
+import org.javaseis.tool.DatasetJob;
+import org.javaseis.util.SeisException;
+
+import beta.javaseis.parallel.IParallelContext;
+import edu.mines.jtk.util.ParameterSet;
+
+/**
+ * Statistics of a JavaSeis dataset of any dimension, computed in one pass on
+ * several tasks.
+ * <p>
+ * The frames of the dataset are split across ParallelTaskExecutor tasks in
+ * contiguous blocks. Each task reads its frames once and keeps:
+ * <ul>
+ * <li>a summary of each frame: live traces, mean, RMS, minimum and maximum
+ * <li>SampleStatistics for each volume it touches, without a histogram
+ * <li>SampleStatistics for all of its samples, with an AmplitudeHistogram
+ * </ul>
+ * The dataset totals are combined with collective reductions, so every task
+ * ends up with the same values. Frame summaries are written to shared arrays,
+ * and volume statistics are merged into shared objects, as each frame and each
+ * part of a volume belongs to one task.
+ * <p>
+ * Only the live traces of each frame are counted. Sums are compensated, see
+ * SampleStatistics, and percentiles are approximate, see AmplitudeHistogram.
+ * <p>
+ * Usage: DatasetStatistics path=datasetPath [threadCount=1] [precision=5]
+ */
+public class DatasetStatistics extends DatasetJob {
+  String path;
+  long[] shape;
+  /** Histogram precision in bits */
+  int precision;
+  /** Statistics of all live samples */
+  SampleStatistics total;
+  /** Statistics of each volume, in file order */
+  SampleStatistics[] volumes;
+  /** Per frame summaries, in file order */
+  int[] frameTraces;
+  double[] frameMean, frameRms;
+  float[] frameMin, frameMax;
+
+  DatasetStatistics(String path, long[] shape, int precision) {
+    this.path = path;
+    this.shape = shape;
+    this.precision = precision;
+    long nframe = 1;
+    for (int i = 2; i < shape.length; i++)
+      nframe *= shape[i];
+    if (nframe > Integer.MAX_VALUE)
+      throw new IllegalArgumentException("Too many frames for frame summaries: " + nframe);
+    int n = (int) nframe;
+    frameTraces = new int[n];
+    frameMean = new double[n];
+    frameRms = new double[n];
+    frameMin = new float[n];
+    frameMax = new float[n];
+    volumes = new SampleStatistics[(int) (nframe / shape[2])];
+    for (int i = 0; i < volumes.length; i++)
+      volumes[i] = new SampleStatistics();
+  }
+
+  /**
+   * @param args
+   */
+  public static void main(String[] args) {
+    ParameterSet parset = ParameterSetIO.argsToParameters(args);
+    String path = parset.getString("path", System.getProperty("user.home") + File.separator + "jsCreateTest");
+    int ntask = parset.getInt("threadCount", 1);
+    int precision = parset.getInt("precision", AmplitudeHistogram.DEFAULT_PRECISION);
+    try {
+      System.out.println(compute(path, ntask, precision).report());
+    } catch (SeisException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Compute statistics of a dataset with the default histogram precision
+   * @param path - JavaSeis dataset path
+   * @param ntask - number of tasks
+   * @return statistics
+   * @throws SeisException on read errors
+   */
+  public static DatasetStatistics compute(String path, int ntask) throws SeisException {
+    return compute(path, ntask, AmplitudeHistogram.DEFAULT_PRECISION);
+  }
+
+  /**
+   * Compute statistics of a dataset
+   * @param path - JavaSeis dataset path
+   * @param ntask - number of tasks
+   * @param precision - histogram precision in bits, see AmplitudeHistogram
+   * @return statistics
+   * @throws SeisException on read errors
+   */
+  public static DatasetStatistics compute(String path, int ntask, int precision) throws SeisException {
+    Seisio sio = open(path);
+    long[] shape = sio.getGridDefinition().getAxisLengths();
+    sio.close();
+    DatasetStatistics stats = new DatasetStatistics(path, shape, precision);
+    stats.execute(StatisticsTask.class, ntask, "Statistics");
+    return stats;
+  }
+
+  /**
+   * Computes statistics for one block of frames
+   */
+  public static class StatisticsTask extends DatasetJob.Task<DatasetStatistics> {
+    SampleStatistics local;
+
+    @Override
+    protected void process(DatasetStatistics stats, IParallelContext pc) throws SeisException {
+      local = new SampleStatistics(new AmplitudeHistogram(stats.precision));
+      stats.scan(local, PositionPartition.block(framePositions(stats.shape), pc));
+    }
+
+    @Override
+    protected void reduce(DatasetStatistics stats, IParallelContext pc) {
+      local.reduce(pc);
+      if (pc.rank() == 0)
+        stats.total = local;
+    }
+  }
+
+  /**
+   * Read a block of frames and accumulate their statistics
+   */
+  void scan(SampleStatistics local, PositionPartition frames) throws SeisException {
+    Seisio sio = open(path);
+    try {
+      float[][] trcs = sio.getTraceDataArray();
+      int n0 = (int) shape[0];
+      SampleStatistics frame = new SampleStatistics();
+      SampleStatistics volume = new SampleStatistics();
+      int currentVolume = -1;
+      while (frames.hasNext()) {
+        int[] pos = frames.next();
+        int f = (int) frames.getIndex();
+        int v = (int) (f / shape[2]);
+        if (v != currentVolume) {
+          flushVolume(currentVolume, volume);
+          currentVolume = v;
+        }
+        int ntrc = sio.readFrame(pos);
+        int[] tpos = pos.clone();
+        frame.reset();
+        for (int j = 0; j < ntrc; j++) {
+          tpos[1] = j;
+          frame.addTrace(trcs[j], n0, tpos);
+        }
+        frameTraces[f] = ntrc;
+        frameMean[f] = frame.getMean();
+        frameRms[f] = frame.getRms();
+        frameMin[f] = (float) (ntrc > 0 ? frame.min.value : 0);
+        frameMax[f] = (float) (ntrc > 0 ? frame.max.value : 0);
+        for (int j = 0; j < ntrc; j++)
+          local.histogram.record(trcs[j], n0);
+        local.merge(frame);
+        volume.merge(frame);
+      }
+      flushVolume(currentVolume, volume);
+    } finally {
+      sio.close();
+    }
+  }
+
+  /**
+   * Merge the part of a volume seen by one task into the shared volume
+   * statistics
+   */
+  void flushVolume(int index, SampleStatistics volume) {
+    if (index < 0)
+      return;
+    SampleStatistics shared = volumes[index];
+    synchronized (shared) {
+      shared.merge(volume);
+    }
+    volume.reset();
+  }
+
+  public String getPath() {
+    return path;
+  }
+
+  public long[] getShape() {
+    return shape.clone();
+  }
+
+  /**
+   * Return statistics of all live samples, with a histogram
+   */
+  public SampleStatistics getTotal() {
+    return total;
+  }
+
+  /**
+   * Return statistics of each volume, in file order
+   */
+  public SampleStatistics[] getVolumes() {
+    return volumes;
+  }
+
+  public int getFrameCount() {
+    return frameTraces.length;
+  }
+
+  /**
+   * Return the live trace count of each frame, in file order
+   */
+  public int[] getFrameTraces() {
+    return frameTraces;
+  }
+
+  public double[] getFrameMean() {
+    return frameMean;
+  }
+
+  public double[] getFrameRms() {
+    return frameRms;
+  }
+
+  public float[] getFrameMin() {
+    return frameMin;
+  }
+
+  public float[] getFrameMax() {
+    return frameMax;
+  }
+
+  /**
+   * Return a summary of the dataset and a table of volume statistics
+   */
+  public String report() {
+    StringBuffer buf = new StringBuffer("Statistics for " + path + "\n");
+    buf.append(String.format("%12s: %-12s\n", "shape", Arrays.toString(shape)));
+    long traces = 0;
+    for (int n : frameTraces)
+      traces += n;
+    buf.append(String.format("%12s: %-12d\n", "frames", frameTraces.length));
+    buf.append(String.format("%12s: %-12d\n", "liveTraces", traces));
+    buf.append(String.format("%12s: %-12d\n", "samples", total.getCount()));
+    buf.append(String.format("%12s: %-12.6g\n", "mean", total.getMean()));
+    buf.append(String.format("%12s: %-12.6g\n", "rms", total.getRms()));
+    buf.append(String.format("%12s: %-12.6g\n", "stdDev", total.getStdDev()));
+    buf.append(String.format("%12s: %-12.6g at %s\n", "min", total.min.value, positionString(total.min)));
+    buf.append(String.format("%12s: %-12.6g at %s\n", "max", total.max.value, positionString(total.max)));
+    for (double p : new double[] { 1, 50, 99 })
+      buf.append(String.format("%12s: %-12.6g\n", "p" + (int) p, total.getPercentile(p)));
+    buf.append(String.format("%8s%16s%14s%14s%14s%14s\n", "Volume", "Samples", "Mean", "RMS", "Min", "Max"));
+    for (int i = 0; i < volumes.length; i++) {
+      SampleStatistics v = volumes[i];
+      buf.append(String.format("%8d%16d%14.6g%14.6g%14.6g%14.6g\n", i, v.getCount(), v.getMean(), v.getRms(),
+          (v.count > 0 ? v.min.value : 0), (v.count > 0 ? v.max.value : 0)));
+    }
+    return buf.toString();
+  }
+
+  private static String positionString(ValueIndex vi) {
+    return (vi.position == null ? "-" : Arrays.toString(vi.position));
+  }
+}
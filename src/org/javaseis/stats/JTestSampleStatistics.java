@@ -0,0 +1,97 @@
+package org.javaseis.stats;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import beta.javaseis.parallel.UniprocessorContext;
+
+public class JTestSampleStatistics {
+
+  @Test
+  public void testKahanSum() {
+    KahanSum k = new KahanSum();
+    double naive = 0;
+    k.add(1e16);
+    naive += 1e16;
+    for (int i = 0; i < 1000; i++) {
+      k.add(1);
+      naive += 1;
+    }
+    k.add(-1e16);
+    naive -= 1e16;
+    assertEquals(1000, k.getSum(), 0);
+    assertTrue(Math.abs(naive - 1000) > 0.5);
+    k.reduce(new UniprocessorContext());
+    assertEquals(1000, k.getSum(), 0);
+  }
+
+  @Test
+  public void testHistogram() {
+    AmplitudeHistogram h = new AmplitudeHistogram();
+    float[] v = new float[10001];
+    Random r = new Random(5);
+    for (int i = 0; i < v.length; i++)
+      v[i] = (float) r.nextGaussian();
+    h.record(v, v.length);
+    assertEquals(v.length, h.getTotalCount());
+    float[] sorted = v.clone();
+    Arrays.sort(sorted);
+    double tol = 1.0 / (1 << h.getPrecision());
+    for (double p : new double[] { 1, 10, 50, 90, 99 }) {
+      float exact = sorted[(int) Math.ceil(p / 100 * v.length) - 1];
+      assertEquals("p" + p, exact, h.getPercentile(p), tol * Math.abs(exact) + 1e-6);
+    }
+    // Buckets are ordered by value
+    assertTrue(h.bucketIndex(-2f) < h.bucketIndex(-1f));
+    assertTrue(h.bucketIndex(-0f) < h.bucketIndex(0f));
+    assertTrue(h.bucketIndex(1f) < h.bucketIndex(2f));
+    long[] bins = h.toLinear(-10, 10, 4);
+    assertEquals(v.length, bins[0] + bins[1] + bins[2] + bins[3]);
+  }
+
+  @Test
+  public void testMerge() {
+    Random r = new Random(7);
+    int n0 = 50;
+    int ntrc = 40;
+    float[][] trcs = new float[ntrc][n0];
+    for (float[] t : trcs) {
+      for (int i = 0; i < n0; i++)
+        t[i] = r.nextFloat() - 0.3f;
+    }
+    trcs[7][3] = -5f;
+    trcs[31][9] = -5f;
+    trcs[12][40] = 9f;
+    SampleStatistics all = new SampleStatistics(new AmplitudeHistogram());
+    SampleStatistics a = new SampleStatistics(new AmplitudeHistogram());
+    SampleStatistics b = new SampleStatistics(new AmplitudeHistogram());
+    int[] pos = new int[3];
+    double sum = 0, sumsq = 0;
+    for (int j = 0; j < ntrc; j++) {
+      pos[1] = j;
+      all.addTrace(trcs[j], n0, pos);
+      (j < ntrc / 2 ? a : b).addTrace(trcs[j], n0, pos);
+      for (float v : trcs[j]) {
+        sum += v;
+        sumsq += (double) v * v;
+      }
+    }
+    // Later part merged first, ties still go to the earliest position
+    b.merge(a);
+    b.reduce(new UniprocessorContext());
+    for (SampleStatistics s : new SampleStatistics[] { all, b }) {
+      assertEquals(n0 * ntrc, s.getCount());
+      assertEquals(sum / s.getCount(), s.getMean(), 1e-12);
+      assertEquals(Math.sqrt(sumsq / s.getCount()), s.getRms(), 1e-12);
+      assertEquals(-5, s.getMin().value, 0);
+      assertArrayEquals(new int[] { 3, 7, 0 }, s.getMin().position);
+      assertEquals(9, s.getMax().value, 0);
+      assertArrayEquals(new int[] { 40, 12, 0 }, s.getMax().position);
+    }
+    assertEquals(all.getPercentile(50), b.getPercentile(50), 0);
+  }
+}
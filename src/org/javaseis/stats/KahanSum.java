@@ -0,0 +1,78 @@
+package org.javaseis.stats;
+
+import java.io.Serializable;
+
+import org.javaseis.util.ReduceArray;
+
+import beta.javaseis.parallel.ICollective.Operation;
+import beta.javaseis.parallel.IParallelContext;
+
+/**
+ * Compensated sum of doubles, using Neumaier's variant of Kahan summation.
+ * <p>
+ * The rounding error of each addition is kept in a separate compensation
+ * term, so the error of the sum does not grow with the number of terms. It
+ * costs a few flops per term, so callers summing long arrays should add
+ * partial sums of short runs, such as one trace, rather than every sample.
+ *
+ * @author chuck@momacmo.org
+ *
+ */
+public class KahanSum implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  double sum, comp;
+
+  /**
+   * Add a value
+   */
+  public void add(double value) {
+    double t = sum + value;
+    if (Math.abs(sum) >= Math.abs(value))
+      comp += (sum - t) + value;
+    else
+      comp += (value - t) + sum;
+    sum = t;
+  }
+
+  /**
+   * Add another compensated sum
+   */
+  public void add(KahanSum k) {
+    add(k.sum);
+    add(k.comp);
+  }
+
+  /**
+   * Return the compensated sum
+   */
+  public double getSum() {
+    return sum + comp;
+  }
+
+  public void reset() {
+    sum = comp = 0;
+  }
+
+  /**
+   * Set the sum from reduced sum and compensation terms
+   */
+  void set(double s, double c) {
+    sum = 0;
+    comp = 0;
+    add(s);
+    add(c);
+  }
+
+  /**
+   * Sum over all ranks of a parallel context. The sums and compensations are
+   * reduced separately, in one array reduction, so only the few roundings of
+   * the reduction itself are not compensated. This is a collective call.
+   * @param pc - parallel context
+   */
+  public void reduce(IParallelContext pc) {
+    double[] v = new double[] { sum, comp };
+    ReduceArray.reduceDouble(pc, v, Operation.SUM);
+    set(v[0], v[1]);
+  }
+}
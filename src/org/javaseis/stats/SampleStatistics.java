@@ -0,0 +1,264 @@
+package org.javaseis.stats;
+
+import java.io.Serializable;
+
+import org.javaseis.cloud.array.ValueIndex;
+import org.javaseis.util.ReduceArray;
+
+import beta.javaseis.parallel.ICollective.Operation;
+import beta.javaseis.parallel.IParallelContext;
+
+/**
+ * Single pass statistics of a set of samples: count, mean, RMS, standard
+ * deviation, minimum and maximum with their positions, and optionally an
+ * AmplitudeHistogram for percentiles.
+ * <p>
+ * Samples are added a trace at a time. Each trace is summed in double
+ * precision and the trace sums are added with compensated summation, so the
+ * results stay accurate over any number of traces. Statistics from different
+ * parts of a dataset are combined with merge, or across ranks with reduce.
+ * Ties in the extrema go to the earliest position in file order, or to the
+ * first sample added when there are no positions.
+ *
+ * @author chuck@momacmo.org
+ *
+ */
+public class SampleStatistics implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  long count;
+  KahanSum sum = new KahanSum();
+  KahanSum sumsq = new KahanSum();
+  ValueIndex min = new ValueIndex();
+  ValueIndex max = new ValueIndex();
+  AmplitudeHistogram histogram;
+
+  /**
+   * Create statistics without a histogram
+   */
+  public SampleStatistics() {
+    this(null);
+  }
+
+  /**
+   * Create statistics that also record samples in a histogram
+   * @param histogram - histogram, or null for none
+   */
+  public SampleStatistics(AmplitudeHistogram histogram) {
+    this.histogram = histogram;
+    reset();
+  }
+
+  public void reset() {
+    count = 0;
+    sum.reset();
+    sumsq.reset();
+    min.value = Double.POSITIVE_INFINITY;
+    max.value = Double.NEGATIVE_INFINITY;
+    min.index = max.index = -1;
+    min.position = max.position = null;
+    if (histogram != null)
+      histogram.reset();
+  }
+
+  /**
+   * Add the samples of a trace
+   * @param trc - trace samples
+   * @param n - number of samples to add
+   * @param position - position of the trace, the sample index is stored in
+   *          element 0 for the extrema
+   */
+  public void addTrace(float[] trc, int n, int[] position) {
+    double s = 0;
+    double ss = 0;
+    float lo = Float.POSITIVE_INFINITY;
+    float hi = Float.NEGATIVE_INFINITY;
+    int ilo = -1, ihi = -1;
+    for (int i = 0; i < n; i++) {
+      float v = trc[i];
+      s += v;
+      ss += (double) v * v;
+      if (v < lo) {
+        lo = v;
+        ilo = i;
+      }
+      if (v > hi) {
+        hi = v;
+        ihi = i;
+      }
+    }
+    count += n;
+    sum.add(s);
+    sumsq.add(ss);
+    if (ilo >= 0 && lo < min.value)
+      set(min, lo, ilo, position);
+    if (ihi >= 0 && hi > max.value)
+      set(max, hi, ihi, position);
+    if (histogram != null)
+      histogram.record(trc, n);
+  }
+
+  private static void set(ValueIndex vi, double value, int index, int[] position) {
+    vi.value = value;
+    vi.index = index;
+    if (position == null) {
+      vi.position = null;
+      return;
+    }
+    if (vi.position == null || vi.position.length != position.length)
+      vi.position = new int[position.length];
+    System.arraycopy(position, 0, vi.position, 0, position.length);
+    vi.position[0] = index;
+  }
+
+  /**
+   * Add statistics from another set of samples
+   */
+  public void merge(SampleStatistics s) {
+    if (s.count == 0)
+      return;
+    count += s.count;
+    sum.add(s.sum);
+    sumsq.add(s.sumsq);
+    if (s.min.value < min.value || (s.min.value == min.value && isEarlier(s.min.position, min.position)))
+      set(min, s.min.value, s.min.index, s.min.position);
+    if (s.max.value > max.value || (s.max.value == max.value && isEarlier(s.max.position, max.position)))
+      set(max, s.max.value, s.max.index, s.max.position);
+    if (histogram != null && s.histogram != null)
+      histogram.merge(s.histogram);
+  }
+
+  /**
+   * Return true if position a comes before position b in file order, where
+   * the last axis is the slowest
+   */
+  static boolean isEarlier(int[] a, int[] b) {
+    if (a == null || b == null)
+      return false;
+    for (int k = Math.min(a.length, b.length) - 1; k >= 0; k--) {
+      if (a[k] != b[k])
+        return a[k] < b[k];
+    }
+    return false;
+  }
+
+  /**
+   * Combine statistics over all ranks, so every rank holds the totals. Ties
+   * in the extrema go to the lowest rank, which holds the earliest frames
+   * with block partitions. The values are packed into three array reductions,
+   * plus two for the histogram. This is a collective call, and either every
+   * rank or none must have a histogram.
+   * @param pc - parallel context
+   */
+  public void reduce(IParallelContext pc) {
+    int nranks = pc.size();
+    int rank = pc.rank();
+    // Extrema and the longest position, in one MIN reduction
+    double[] mins = new double[] { min.value, -max.value, -length(min.position), -length(max.position) };
+    ReduceArray.reduceDouble(pc, mins, Operation.MIN);
+    // Lowest rank holding each extremum, which sends its index and position
+    double[] owners = new double[] { (min.value == mins[0] ? rank : nranks),
+        (max.value == -mins[1] ? rank : nranks) };
+    ReduceArray.reduceDouble(pc, owners, Operation.MIN);
+    // Count, sums and the locations of the extrema, in one SUM reduction
+    int nmin = (int) -mins[2];
+    int nmax = (int) -mins[3];
+    double[] sums = new double[9 + nmin + nmax];
+    sums[0] = count;
+    sums[1] = sum.sum;
+    sums[2] = sum.comp;
+    sums[3] = sumsq.sum;
+    sums[4] = sumsq.comp;
+    if (rank == owners[0])
+      pack(min, sums, 5);
+    if (rank == owners[1])
+      pack(max, sums, 7 + nmin);
+    ReduceArray.reduceDouble(pc, sums, Operation.SUM);
+    count = (long) sums[0];
+    sum.set(sums[1], sums[2]);
+    sumsq.set(sums[3], sums[4]);
+    unpack(min, mins[0], sums, 5);
+    unpack(max, -mins[1], sums, 7 + nmin);
+    if (histogram != null)
+      histogram.reduce(pc);
+  }
+
+  private static int length(int[] position) {
+    return (position == null ? 0 : position.length);
+  }
+
+  /**
+   * Put the index, position length and position of an extremum in a buffer
+   */
+  private static void pack(ValueIndex vi, double[] buf, int offset) {
+    int ndim = length(vi.position);
+    buf[offset] = vi.index;
+    buf[offset + 1] = ndim;
+    for (int k = 0; k < ndim; k++)
+      buf[offset + 2 + k] = vi.position[k];
+  }
+
+  private static void unpack(ValueIndex vi, double value, double[] buf, int offset) {
+    int ndim = (int) buf[offset + 1];
+    vi.value = value;
+    vi.index = (int) buf[offset];
+    vi.position = (ndim > 0 ? new int[ndim] : null);
+    for (int k = 0; k < ndim; k++)
+      vi.position[k] = (int) buf[offset + 2 + k];
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  /**
+   * Return the compensated sum of the samples
+   */
+  public double getSum() {
+    return sum.getSum();
+  }
+
+  public double getMean() {
+    return (count == 0 ? 0 : sum.getSum() / count);
+  }
+
+  public double getRms() {
+    return (count == 0 ? 0 : Math.sqrt(sumsq.getSum() / count));
+  }
+
+  /**
+   * Return the population standard deviation
+   */
+  public double getStdDev() {
+    if (count == 0)
+      return 0;
+    double mean = getMean();
+    return Math.sqrt(Math.max(0, sumsq.getSum() / count - mean * mean));
+  }
+
+  /**
+   * Return the minimum, with the position of its first occurrence
+   */
+  public ValueIndex getMin() {
+    return min;
+  }
+
+  /**
+   * Return the maximum, with the position of its first occurrence
+   */
+  public ValueIndex getMax() {
+    return max;
+  }
+
+  public AmplitudeHistogram getHistogram() {
+    return histogram;
+  }
+
+  /**
+   * Return an approximate percentile, NaN without a histogram
+   * @param percentile - from 0 to 100
+   */
+  public double getPercentile(double percentile) {
+    return (histogram == null ? Double.NaN : histogram.getPercentile(percentile));
+  }
+}
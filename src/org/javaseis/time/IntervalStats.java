@@ -0,0 +1,219 @@
+package org.javaseis.time;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Handle for a named interval registered with a TimeTracker or RateTracker.
+ * <p>
+ * Counts, times and amounts are kept in striped JDK adders, so any number of
+ * threads can record into the same handle without locking or allocation. The
+ * shortest and longest intervals are kept in atomic longs, which are only
+ * written when an interval is a new extreme.
+ * Times come from System.nanoTime, and the caller keeps the start time, so a
+ * handle has no per-thread state:
+ * <pre>
+ * IntervalStats traces = rt.register("traces", true);
+ * ...
+ * long t0 = traces.start();
+ * ... process one trace ...
+ * traces.stop(t0, 1);
+ * </pre>
+ * If the handle was registered with a histogram, every interval is also
+ * recorded in a LatencyHistogram for percentiles.
+ *
+ * @author chuck@momacmo.org
+ *
+ */
+public class IntervalStats implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  String name;
+  LongAdder count, nanos;
+  DoubleAdder amount;
+  AtomicLong minNanos, maxNanos;
+  LatencyHistogram histogram;
+
+  /**
+   * Create an interval
+   * @param name - interval name
+   * @param withHistogram - true to keep a histogram of interval times
+   */
+  public IntervalStats(String name, boolean withHistogram) {
+    this.name = name;
+    count = new LongAdder();
+    nanos = new LongAdder();
+    amount = new DoubleAdder();
+    minNanos = new AtomicLong(Long.MAX_VALUE);
+    maxNanos = new AtomicLong(0);
+    if (withHistogram)
+      histogram = new LatencyHistogram();
+  }
+
+  /**
+   * Return the start time for an interval
+   * @return System.nanoTime()
+   */
+  public long start() {
+    return System.nanoTime();
+  }
+
+  /**
+   * End an interval
+   * @param startNanos - value returned by start()
+   * @return interval time in nanoseconds
+   */
+  public long stop(long startNanos) {
+    long dt = System.nanoTime() - startNanos;
+    record(dt, 0);
+    return dt;
+  }
+
+  /**
+   * End an interval and accumulate an amount for rates
+   * @param startNanos - value returned by start()
+   * @param amount - amount processed in the interval
+   * @return interval time in nanoseconds
+   */
+  public long stop(long startNanos, double amount) {
+    long dt = System.nanoTime() - startNanos;
+    record(dt, amount);
+    return dt;
+  }
+
+  /**
+   * Record an interval that was timed elsewhere
+   * @param intervalNanos - interval time in nanoseconds
+   * @param amount - amount processed in the interval
+   */
+  public void record(long intervalNanos, double amount) {
+    count.increment();
+    nanos.add(intervalNanos);
+    if (amount != 0)
+      this.amount.add(amount);
+    long m;
+    while (intervalNanos < (m = minNanos.get()) && !minNanos.compareAndSet(m, intervalNanos))
+      ;
+    while (intervalNanos > (m = maxNanos.get()) && !maxNanos.compareAndSet(m, intervalNanos))
+      ;
+    if (histogram != null)
+      histogram.record(intervalNanos);
+  }
+
+  /**
+   * Accumulate an amount without timing an interval
+   */
+  public void addAmount(double amount) {
+    this.amount.add(amount);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Return the number of recorded intervals
+   */
+  public long getCount() {
+    return count.sum();
+  }
+
+  /**
+   * Return the total of all intervals in nanoseconds
+   */
+  public long getNanos() {
+    return nanos.sum();
+  }
+
+  /**
+   * Return the total of all intervals in seconds
+   */
+  public double getSeconds() {
+    return nanos.sum() * 1e-9;
+  }
+
+  /**
+   * Return the accumulated amount
+   */
+  public double getAmount() {
+    return amount.sum();
+  }
+
+  /**
+   * Return amount per second, 0 if no time has been recorded
+   */
+  public double getRate() {
+    double time = getSeconds();
+    if (time <= Float.MIN_VALUE)
+      return 0;
+    return getAmount() / time;
+  }
+
+  /**
+   * Return the shortest interval in nanoseconds, 0 if none were recorded
+   */
+  public long getMinNanos() {
+    return (getCount() == 0 ? 0 : minNanos.get());
+  }
+
+  /**
+   * Return the longest interval in nanoseconds
+   */
+  public long getMaxNanos() {
+    return maxNanos.get();
+  }
+
+  /**
+   * Return the mean interval in nanoseconds
+   */
+  public double getMeanNanos() {
+    long n = getCount();
+    return (n == 0 ? 0 : (double) getNanos() / n);
+  }
+
+  /**
+   * Return the histogram of interval times, or null if there is none
+   */
+  public LatencyHistogram getHistogram() {
+    return histogram;
+  }
+
+  /**
+   * Return a percentile of interval times in nanoseconds, or -1 if there is
+   * no histogram
+   * @param percent - percentile from 0 to 100
+   */
+  public long getPercentileNanos(double percent) {
+    return (histogram == null ? -1 : histogram.getPercentile(percent));
+  }
+
+  /**
+   * Clear all accumulated values. Intervals recorded while reset runs may be
+   * partly lost.
+   */
+  public void reset() {
+    count.reset();
+    nanos.reset();
+    amount.reset();
+    minNanos.set(Long.MAX_VALUE);
+    maxNanos.set(0);
+    if (histogram != null)
+      histogram.reset();
+  }
+
+  /**
+   * Create a handle holding the totals of a saved metric, without a histogram.
+   * Used to restore registered handles when a tracker is deserialized.
+   */
+  static IntervalStats restore(MetricsSnapshot.Metric m) {
+    IntervalStats stats = new IntervalStats(m.name, false);
+    stats.count.add(m.count);
+    stats.nanos.add(Math.round(m.seconds * 1e9));
+    stats.amount.add(m.amount);
+    stats.minNanos.set(Math.round(m.minMs * 1e6));
+    stats.maxNanos.set(Math.round(m.maxMs * 1e6));
+    return stats;
+  }
+}
@@ -0,0 +1,164 @@
+package org.javaseis.time;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Scanner;
+
+import org.javaseis.util.JsonUtil;
+import org.junit.Test;
+
+import beta.javaseis.parallel.UniprocessorContext;
+
+public class JTestRateTracker {
+
+  @Test
+  public void testConcurrentHandles() throws InterruptedException {
+    RateTracker rt = new RateTracker();
+    final IntervalStats stats = rt.register("traces", true);
+    assertSame(stats, rt.register("traces"));
+    int nthread = 4;
+    final int n = 100000;
+    Thread[] threads = new Thread[nthread];
+    for (int j = 0; j < nthread; j++) {
+      threads[j] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          for (int i = 0; i < n; i++) {
+            stats.record(1000 + i % 1000, 2);
+          }
+        }
+      });
+      threads[j].start();
+    }
+    for (Thread t : threads)
+      t.join();
+    assertEquals((long) nthread * n, stats.getCount());
+    assertEquals(2.0 * nthread * n, rt.getAmount("traces"), 0);
+    assertEquals(1000, stats.getMinNanos());
+    assertEquals(1999, stats.getMaxNanos());
+    assertEquals(nthread * n * 1499.5e-9, rt.total("traces"), 1e-9);
+    assertEquals((long) nthread * n, stats.getHistogram().getCount());
+  }
+
+  @Test
+  public void testHistogramPercentiles() {
+    LatencyHistogram h = new LatencyHistogram();
+    for (long v = 1; v <= 100000; v++) {
+      h.record(v * 1000);
+    }
+    for (double p : new double[] { 1, 50, 90, 99, 100 }) {
+      double expected = p * 1000 * 1000;
+      assertEquals("p" + p, expected, h.getPercentile(p), expected / (1 << h.precision));
+    }
+    // Bucket boundaries invert
+    for (long v : new long[] { 0, 1, 31, 32, 33, 1000, 123456789L, Long.MAX_VALUE }) {
+      int i = h.bucketIndex(v);
+      assertTrue(v >= h.bucketValue(i));
+      assertTrue(v - h.bucketValue(i) < h.bucketWidth(i));
+    }
+  }
+
+  @Test
+  public void testReduce() {
+    RateTracker rt = new RateTracker();
+    IntervalStats read = rt.register("read", true);
+    rt.register("write");
+    for (int i = 1; i <= 100; i++) {
+      read.record(i * 1000000L, 10);
+    }
+    TrackerSummary s = rt.reduce(new UniprocessorContext());
+    assertEquals(2, s.getEntries().size());
+    TrackerSummary.Entry e = s.getEntry("read");
+    assertEquals(100, e.count);
+    assertEquals(5.05, e.max, 1e-9);
+    assertEquals(e.max, e.min, 0);
+    assertEquals(1, e.imbalance, 0);
+    assertEquals(0, e.maxRank);
+    assertEquals(1000, e.amount, 0);
+    assertEquals(50e6, e.p50, 50e6 / 32);
+    assertEquals(-1, s.getEntry("write").p50);
+    assertTrue(s.report().contains("read"));
+  }
+
+  @Test
+  public void testExport() throws Exception {
+    RateTracker rt = new RateTracker();
+    IntervalStats read = rt.register("read", true);
+    read.record(2000000, 4096);
+    File dir = Files.createTempDirectory("metrics").toFile();
+    String jsonl = new File(dir, "metrics.jsonl").getPath();
+    String prom = new File(dir, "metrics.prom").getPath();
+    MetricsExporter exporter = new MetricsExporter(jsonl, prom);
+    exporter.setLabel("rank", "0");
+    exporter.addSource("job", rt);
+    exporter.export();
+    read.record(2000000, 4096);
+    exporter.export();
+    List<String> lines = Files.readAllLines(new File(jsonl).toPath(), StandardCharsets.UTF_8);
+    assertEquals(2, lines.size());
+    MetricsSnapshot snap = (MetricsSnapshot) JsonUtil.fromJsonString(MetricsSnapshot.class, lines.get(1));
+    assertEquals("job", snap.source);
+    assertEquals(8192, snap.get("read").amount, 0);
+    assertEquals(2, snap.get("read").count);
+    String text = new String(Files.readAllBytes(new File(prom).toPath()), StandardCharsets.UTF_8);
+    assertTrue(text.contains("javaseis_interval_amount_total{source=\"job\",interval=\"read\",rank=\"0\"} 8192.0"));
+    assertTrue(text.contains("quantile=\"0.99\""));
+    int port = exporter.serveHttp(0);
+    InputStream in = new URL("http://localhost:" + port + "/metrics").openStream();
+    Scanner sc = new Scanner(in, "UTF-8").useDelimiter("\\A");
+    assertTrue(sc.next().contains("javaseis_interval_count_total"));
+    sc.close();
+    exporter.stop();
+    assertEquals(3, Files.readAllLines(new File(jsonl).toPath(), StandardCharsets.UTF_8).size());
+    // Report from a serialized tracker
+    assertTrue(RateTracker.report(JsonUtil.toJsonString(rt)).startsWith("Rate Tracker Report"));
+    // Handle totals are saved by toJson
+    String report = RateTracker.report(rt.toJson());
+    assertEquals(rt.report(), report);
+    assertTrue(report, report.contains("8192.0"));
+  }
+
+  @Test
+  public void testSerialization() throws Exception {
+    RateTracker rt = new RateTracker();
+    IntervalStats read = rt.register("read", true);
+    read.record(2000000, 4096);
+    read.record(4000000, 4096);
+    RateTracker rtCopy = (RateTracker) roundTrip(rt);
+    assertEquals(rt.total("read"), rtCopy.total("read"), 1e-12);
+    assertEquals(8192, rtCopy.getAmount("read"), 0);
+    IntervalStats readCopy = rtCopy.register("read");
+    assertEquals(2, readCopy.getCount());
+    assertEquals(2000000, readCopy.getMinNanos());
+    assertEquals(4000000, readCopy.getMaxNanos());
+
+    TimeTracker tt = new TimeTracker();
+    IntervalStats write = tt.register("write");
+    write.record(3000000, 0);
+    TimeTracker ttCopy = (TimeTracker) roundTrip(tt);
+    assertEquals(0.003, ttCopy.total("write"), 1e-12);
+    assertEquals(1, ttCopy.register("write").getCount());
+
+    IntervalStats statsCopy = (IntervalStats) roundTrip(read);
+    assertEquals(4000000, statsCopy.getMaxNanos());
+    assertEquals(2, statsCopy.getHistogram().getCount());
+  }
+
+  private static Object roundTrip(Object o) throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(o);
+    out.close();
+    return new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+  }
+}
@@ -0,0 +1,163 @@
+package org.javaseis.time;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear histogram of interval times in nanoseconds.
+ * <p>
+ * Values below 2^precision nanoseconds have a bucket each. Above that, every
+ * power of two is split into 2^precision buckets, so a bucket is never wider
+ * than 1/2^precision of the values it holds, in the style of HDR histograms.
+ * With the default precision of 5 bits the relative error of a percentile is
+ * about 3%, and the whole 64 bit range takes under 2000 buckets.
+ * <p>
+ * Buckets are atomic counters, so values can be recorded from any thread.
+ *
+ * @author chuck@momacmo.org
+ *
+ */
+public class LatencyHistogram implements Serializable {
+  private static final long serialVersionUID = 1L;
+  /** Default number of sub-bucket bits */
+  public static final int DEFAULT_PRECISION = 5;
+
+  int precision, subCount;
+  long subMask;
+  AtomicLongArray counts;
+
+  /**
+   * Create a histogram with the default precision
+   */
+  public LatencyHistogram() {
+    this(DEFAULT_PRECISION);
+  }
+
+  /**
+   * Create a histogram
+   * @param precisionBits - number of buckets per power of two, as a power of
+   *          two, from 1 to 10
+   */
+  public LatencyHistogram(int precisionBits) {
+    if (precisionBits < 1 || precisionBits > 10)
+      throw new IllegalArgumentException("Precision must be from 1 to 10 bits: " + precisionBits);
+    precision = precisionBits;
+    subCount = 1 << precision;
+    subMask = subCount - 1;
+    counts = new AtomicLongArray((64 - precision) * subCount);
+  }
+
+  /**
+   * Return the bucket holding a value
+   */
+  public int bucketIndex(long value) {
+    if (value < subCount)
+      return (int) Math.max(0, value);
+    int shift = 63 - Long.numberOfLeadingZeros(value) - precision;
+    return ((shift + 1) << precision) + (int) ((value >>> shift) & subMask);
+  }
+
+  /**
+   * Return the smallest value held by a bucket
+   */
+  public long bucketValue(int index) {
+    if (index < subCount)
+      return index;
+    int shift = (index >> precision) - 1;
+    return ((long) subCount + (index & subMask)) << shift;
+  }
+
+  /**
+   * Return the width of a bucket
+   */
+  public long bucketWidth(int index) {
+    return (index < subCount ? 1 : 1L << ((index >> precision) - 1));
+  }
+
+  /**
+   * Record one value
+   * @param nanos - interval time in nanoseconds
+   */
+  public void record(long nanos) {
+    counts.getAndIncrement(bucketIndex(nanos));
+  }
+
+  /**
+   * Add a count to a bucket, used to merge histograms
+   */
+  public void add(int index, long count) {
+    counts.getAndAdd(index, count);
+  }
+
+  /**
+   * Add the counts of another histogram with the same precision
+   */
+  public void add(LatencyHistogram other) {
+    if (other.precision != precision)
+      throw new IllegalArgumentException("Histogram precision differs: " + other.precision);
+    for (int i = 0; i < counts.length(); i++) {
+      long c = other.counts.get(i);
+      if (c != 0)
+        counts.getAndAdd(i, c);
+    }
+  }
+
+  /**
+   * Return the number of buckets
+   */
+  public int getBucketCount() {
+    return counts.length();
+  }
+
+  /**
+   * Return the count in a bucket
+   */
+  public long getCount(int index) {
+    return counts.get(index);
+  }
+
+  /**
+   * Return the number of recorded values
+   */
+  public long getCount() {
+    long n = 0;
+    for (int i = 0; i < counts.length(); i++)
+      n += counts.get(i);
+    return n;
+  }
+
+  /**
+   * Return the value below which a given percentage of recorded values fall,
+   * as the midpoint of the bucket that holds it
+   * @param percent - percentile from 0 to 100
+   * @return value in nanoseconds, 0 if the histogram is empty
+   */
+  public long getPercentile(double percent) {
+    int n = counts.length();
+    long[] c = new long[n];
+    long total = 0;
+    for (int i = 0; i < n; i++) {
+      c[i] = counts.get(i);
+      total += c[i];
+    }
+    if (total == 0)
+      return 0;
+    long rank = (long) Math.ceil(Math.min(100, Math.max(0, percent)) / 100 * total);
+    rank = Math.max(1, rank);
+    long sum = 0;
+    for (int i = 0; i < n; i++) {
+      sum += c[i];
+      if (sum >= rank)
+        return bucketValue(i) + bucketWidth(i) / 2;
+    }
+    return bucketValue(n - 1);
+  }
+
+  /**
+   * Clear all buckets
+   */
+  public void reset() {
+    for (int i = 0; i < counts.length(); i++)
+      counts.set(i, 0);
+  }
+}
@@ -0,0 +1,306 @@
+package org.javaseis.time;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.javaseis.util.JsonUtil;
+import org.javaseis.util.SeisException;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Periodic export of tracker metrics for schedulers and monitoring while a
+ * job is running.
+ * <p>
+ * Each export captures a MetricsSnapshot from every source and
+ * <ul>
+ * <li>appends one JSON line per snapshot to a JSON lines file, and</li>
+ * <li>replaces a Prometheus text format file, written to a temporary file and
+ * moved into place so readers never see a partial file.</li>
+ * </ul>
+ * The Prometheus text can also be served from a local HTTP endpoint at
+ * /metrics, captured fresh on each request. Counters are time, interval
+ * counts and amounts, the rate is a gauge and percentiles from histograms are
+ * reported as a summary:
+ * <pre>
+ * javaseis_interval_seconds_total{source="migrate",interval="read",rank="0"} 12.5
+ * javaseis_interval_latency_seconds{source="migrate",interval="read",rank="0",quantile="0.99"} 0.031
+ * </pre>
+ * Example:
+ * <pre>
+ * MetricsExporter exporter = new MetricsExporter("metrics.jsonl", "metrics.prom");
+ * exporter.setLabel("rank", Integer.toString(pc.rank()));
+ * exporter.addSource("migrate", rateTracker);
+ * exporter.start(10000);
+ * ... run ...
+ * exporter.stop();
+ * </pre>
+ *
+ * @author chuck@momacmo.org
+ *
+ */
+public class MetricsExporter {
+  /** Prefix for all metric names */
+  public static String PREFIX = "javaseis_interval";
+
+  Map<String, MetricsSource> sources;
+  Map<String, String> labels;
+  String jsonLinesPath, prometheusPath;
+  ScheduledExecutorService scheduler;
+  HttpServer server;
+  volatile Exception exportException;
+
+  /**
+   * Create an exporter
+   * @param jsonLinesPath - JSON lines file to append to, or null
+   * @param prometheusPath - Prometheus text file to replace, or null
+   */
+  public MetricsExporter(String jsonLinesPath, String prometheusPath) {
+    this.jsonLinesPath = jsonLinesPath;
+    this.prometheusPath = prometheusPath;
+    sources = new LinkedHashMap<String, MetricsSource>();
+    labels = new LinkedHashMap<String, String>();
+  }
+
+  /**
+   * Add a tracker to the export
+   * @param name - source name for its metrics
+   * @param source - tracker
+   */
+  public synchronized void addSource(String name, MetricsSource source) {
+    sources.put(name, source);
+  }
+
+  /**
+   * Add a label to every Prometheus sample, such as the job or rank
+   */
+  public synchronized void setLabel(String name, String value) {
+    labels.put(name, value);
+  }
+
+  /**
+   * Capture a snapshot from every source
+   */
+  public synchronized List<MetricsSnapshot> capture() {
+    List<MetricsSnapshot> list = new ArrayList<MetricsSnapshot>();
+    for (Map.Entry<String, MetricsSource> e : sources.entrySet()) {
+      list.add(e.getValue().snapshot(e.getKey()));
+    }
+    return list;
+  }
+
+  /**
+   * Capture all sources and write the export files
+   * @return the exported snapshots
+   * @throws SeisException if a file cannot be written
+   */
+  public synchronized List<MetricsSnapshot> export() throws SeisException {
+    List<MetricsSnapshot> list = capture();
+    if (jsonLinesPath != null) {
+      for (MetricsSnapshot snap : list) {
+        JsonUtil.appendJsonLine(snap, jsonLinesPath);
+      }
+    }
+    if (prometheusPath != null) {
+      Path path = Paths.get(prometheusPath);
+      Path tmp = Paths.get(prometheusPath + ".tmp");
+      try {
+        Files.write(tmp, toPrometheus(list, labels).getBytes(StandardCharsets.UTF_8));
+        try {
+          Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+          Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+      } catch (IOException e) {
+        throw new SeisException("Error writing metrics to path: " + prometheusPath, e);
+      }
+    }
+    return list;
+  }
+
+  /**
+   * Export periodically on a daemon thread. A failed export is kept and
+   * thrown from stop(), and the remaining exports still run.
+   * @param periodMillis - time between exports in milliseconds
+   */
+  public synchronized void start(long periodMillis) {
+    if (scheduler != null)
+      throw new IllegalStateException("Exporter is already running");
+    scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "MetricsExporter");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    scheduler.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        // An exception escaping here would cancel every later export
+        try {
+          export();
+        } catch (SeisException | RuntimeException e) {
+          exportException = e;
+        }
+      }
+    }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Serve the Prometheus text at http://localhost:port/metrics
+   * @param port - port to listen on, 0 for any free port
+   * @return the port in use
+   * @throws SeisException if the server cannot be started
+   */
+  public synchronized int serveHttp(int port) throws SeisException {
+    if (server != null)
+      return server.getAddress().getPort();
+    try {
+      server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    } catch (IOException e) {
+      throw new SeisException("Could not start metrics server on port " + port, e);
+    }
+    server.createContext("/metrics", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        String text;
+        synchronized (MetricsExporter.this) {
+          text = toPrometheus(capture(), labels);
+        }
+        byte[] body = text.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream os = exchange.getResponseBody();
+        os.write(body);
+        os.close();
+      }
+    });
+    server.start();
+    return server.getAddress().getPort();
+  }
+
+  /**
+   * Stop periodic export and the HTTP server, then write a final export
+   * @throws SeisException if the final or any periodic export failed
+   */
+  public void stop() throws SeisException {
+    ScheduledExecutorService s;
+    synchronized (this) {
+      s = scheduler;
+      scheduler = null;
+      if (server != null) {
+        server.stop(0);
+        server = null;
+      }
+    }
+    if (s != null) {
+      s.shutdown();
+      try {
+        s.awaitTermination(1, TimeUnit.MINUTES);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    export();
+    if (exportException != null)
+      throw new SeisException("Periodic metrics export failed", exportException);
+  }
+
+  /**
+   * Format snapshots in the Prometheus text exposition format
+   * @param snapshots - snapshots to format
+   * @param labels - labels added to every sample, may be empty
+   * @return text with one family of samples per value
+   */
+  public static String toPrometheus(List<MetricsSnapshot> snapshots, Map<String, String> labels) {
+    StringBuilder buf = new StringBuilder();
+    family(buf, "seconds_total", "counter", "Time accumulated in each interval", snapshots, labels, 0);
+    family(buf, "count_total", "counter", "Number of timed intervals", snapshots, labels, 1);
+    family(buf, "amount_total", "counter", "Amount processed in each interval", snapshots, labels, 2);
+    family(buf, "rate", "gauge", "Amount per second of interval time", snapshots, labels, 3);
+    boolean any = false;
+    for (MetricsSnapshot snap : snapshots) {
+      for (MetricsSnapshot.Metric m : snap.metrics) {
+        any |= (m.p50Ms >= 0);
+      }
+    }
+    if (any) {
+      String name = PREFIX + "_latency_seconds";
+      buf.append("# HELP " + name + " Interval time percentiles\n");
+      buf.append("# TYPE " + name + " summary\n");
+      for (MetricsSnapshot snap : snapshots) {
+        for (MetricsSnapshot.Metric m : snap.metrics) {
+          if (m.p50Ms < 0)
+            continue;
+          String l = labels(snap, m, labels);
+          buf.append(name + "{" + l + ",quantile=\"0.5\"} " + m.p50Ms * 1e-3 + "\n");
+          buf.append(name + "{" + l + ",quantile=\"0.9\"} " + m.p90Ms * 1e-3 + "\n");
+          buf.append(name + "{" + l + ",quantile=\"0.99\"} " + m.p99Ms * 1e-3 + "\n");
+          buf.append(name + "_sum{" + l + "} " + m.seconds + "\n");
+          buf.append(name + "_count{" + l + "} " + m.count + "\n");
+        }
+      }
+    }
+    return buf.toString();
+  }
+
+  private static void family(StringBuilder buf, String suffix, String type, String help,
+      List<MetricsSnapshot> snapshots, Map<String, String> labels, int field) {
+    String name = PREFIX + "_" + suffix;
+    buf.append("# HELP " + name + " " + help + "\n");
+    buf.append("# TYPE " + name + " " + type + "\n");
+    for (MetricsSnapshot snap : snapshots) {
+      for (MetricsSnapshot.Metric m : snap.metrics) {
+        String value;
+        switch (field) {
+        case 0:
+          value = Double.toString(m.seconds);
+          break;
+        case 1:
+          value = Long.toString(m.count);
+          break;
+        case 2:
+          value = Double.toString(m.amount);
+          break;
+        default:
+          value = Double.toString(m.rate);
+        }
+        buf.append(name + "{" + labels(snap, m, labels) + "} " + value + "\n");
+      }
+    }
+  }
+
+  private static String labels(MetricsSnapshot snap, MetricsSnapshot.Metric m, Map<String, String> labels) {
+    StringBuilder l = new StringBuilder();
+    l.append("source=\"" + escape(snap.source) + "\",interval=\"" + escape(m.name) + "\"");
+    for (Map.Entry<String, String> e : labels.entrySet()) {
+      l.append("," + e.getKey() + "=\"" + escape(e.getValue()) + "\"");
+    }
+    return l.toString();
+  }
+
+  private static String escape(String s) {
+    if (s == null)
+      return "";
+    return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+}
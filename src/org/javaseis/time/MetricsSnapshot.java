@@ -0,0 +1,87 @@
+package org.javaseis.time;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Point in time copy of the intervals of a TimeTracker or RateTracker, in a
+ * form that serializes to one line of JSON with JsonUtil.toJsonLine and to the
+ * Prometheus text format with MetricsExporter.
+ *
+ * @author chuck@momacmo.org
+ *
+ */
+public class MetricsSnapshot implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  /** Values for one interval */
+  public static class Metric implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public String name;
+    /** Number of intervals, 0 for names that are not registered */
+    public long count;
+    public double seconds;
+    /** Accumulated amount and amount per second, 0 for a TimeTracker */
+    public double amount, rate;
+    /** Interval statistics in milliseconds, 0 for names that are not registered */
+    public double minMs, meanMs, maxMs;
+    /** Percentiles in milliseconds, -1 without a histogram */
+    public double p50Ms = -1, p90Ms = -1, p99Ms = -1;
+  }
+
+  /** Name of the tracker or stage that produced the snapshot */
+  public String source;
+  /** Capture time in milliseconds since the epoch */
+  public long timeMillis;
+  public List<Metric> metrics = new ArrayList<Metric>();
+
+  public MetricsSnapshot() {
+  }
+
+  public MetricsSnapshot(String source) {
+    this.source = source;
+    timeMillis = System.currentTimeMillis();
+  }
+
+  /**
+   * Add a metric for a name
+   * @param name - interval name
+   * @param seconds - accumulated time
+   * @param amount - accumulated amount
+   * @param stats - handle for a registered name, or null
+   * @return the new metric
+   */
+  public Metric add(String name, double seconds, double amount, IntervalStats stats) {
+    Metric m = new Metric();
+    m.name = name;
+    m.seconds = seconds;
+    m.amount = amount;
+    m.rate = (seconds > Float.MIN_VALUE ? amount / seconds : 0);
+    if (stats != null) {
+      m.count = stats.getCount();
+      m.minMs = stats.getMinNanos() * 1e-6;
+      m.meanMs = stats.getMeanNanos() * 1e-6;
+      m.maxMs = stats.getMaxNanos() * 1e-6;
+      if (stats.getHistogram() != null) {
+        m.p50Ms = stats.getPercentileNanos(50) * 1e-6;
+        m.p90Ms = stats.getPercentileNanos(90) * 1e-6;
+        m.p99Ms = stats.getPercentileNanos(99) * 1e-6;
+      }
+    }
+    metrics.add(m);
+    return m;
+  }
+
+  /**
+   * Return the metric for a name, or null
+   */
+  public Metric get(String name) {
+    for (Metric m : metrics) {
+      if (m.name.equals(name))
+        return m;
+    }
+    return null;
+  }
+}
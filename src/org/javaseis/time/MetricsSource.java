@@ -0,0 +1,17 @@
+package org.javaseis.time;
+
+/**
+ * Something that can report its interval metrics as a MetricsSnapshot, such
+ * as a TimeTracker or RateTracker.
+ *
+ * @author chuck@momacmo.org
+ *
+ */
+public interface MetricsSource {
+  /**
+   * Capture the current values
+   * @param source - name recorded in the snapshot to identify this source
+   * @return snapshot of all intervals
+   */
+  MetricsSnapshot snapshot(String source);
+}
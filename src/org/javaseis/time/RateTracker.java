@@ -1,23 +1,49 @@
 package org.javaseis.time;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
+import beta.javaseis.parallel.IParallelContext;
+
 import org.javaseis.util.IntervalTimer;
 import org.javaseis.util.JsonUtil;
 
 /**
  * Tracks interval times and "amounts" to allow for rate calculations
  * for multiple sections of a program.
+ * <p>
+ * As with TimeTracker, names can be registered to get an IntervalStats handle
+ * that accumulates time and amount from any thread without locking or boxing:
+ * <pre>
+ * IntervalStats read = rt.register("read", true);
+ * long t0 = read.start();
+ * ... read a frame ...
+ * read.stop(t0, frameBytes);
+ * </pre>
+ * Start/stop by name also record into the handle of a registered name.
+ * Serialize with toJson, which also saves the values of the handles.
  * 
  * @author chuck@momacmo.org
  *
  */
-public class RateTracker implements Serializable {
+public class RateTracker implements Serializable, MetricsSource {
   private static final long serialVersionUID = 1L;
   Map <String, IntervalTimer> timers;
   Map <String, Double> amounts;
+  /**
+   * Registered handles, replaced on each registration so reads need no lock.
+   * They are not serialized, their values are saved in a snapshot instead.
+   */
+  transient volatile Map <String, IntervalStats> intervals;
+  /** Values of all names when the tracker was serialized, otherwise null */
+  MetricsSnapshot saved;
   
   /**
    * Initialize an empty rate tracker
@@ -25,6 +51,7 @@ public class RateTracker implements Serializable {
   public RateTracker() {
     timers = new LinkedHashMap<String,IntervalTimer>();
     amounts = new LinkedHashMap<String,Double>();
+    intervals = new LinkedHashMap<String,IntervalStats>();
   }
   
   /**
@@ -42,11 +69,62 @@ public class RateTracker implements Serializable {
    * Add a rate tracker by name
    * @param name - name of the tracker
    */
-  public void add(String name) {
+  public synchronized void add(String name) {
     timers.put(name, new IntervalTimer());
     amounts.put(name, Double.valueOf(0));
   }
   
+  /**
+   * Register a thread-safe rate interval, adding the name if needed.
+   * Registering a name twice returns the same handle.
+   * @param name - tracker name
+   * @return - handle for timing the interval
+   */
+  public IntervalStats register(String name) {
+    return register(name, false);
+  }
+
+  /**
+   * Register a thread-safe rate interval with an optional histogram of
+   * interval times
+   * @param name - tracker name
+   * @param histogram - true to keep a LatencyHistogram for percentiles
+   * @return - handle for timing the interval
+   */
+  public synchronized IntervalStats register(String name, boolean histogram) {
+    IntervalStats stats = intervals.get(name);
+    if (stats == null) {
+      if (timers.containsKey(name) == false)
+        add(name);
+      stats = new IntervalStats(name, histogram);
+      Map<String, IntervalStats> copy = new LinkedHashMap<String, IntervalStats>(intervals);
+      copy.put(name, stats);
+      intervals = copy;
+    }
+    return stats;
+  }
+
+  /**
+   * Return the handle for a registered name, or null
+   */
+  public IntervalStats getInterval(String name) {
+    return intervals.get(name);
+  }
+
+  /**
+   * Return the registered handles in registration order
+   */
+  public Collection<IntervalStats> getIntervals() {
+    return new ArrayList<IntervalStats>(intervals.values());
+  }
+
+  /**
+   * Return all tracker names in the order they were added
+   */
+  public synchronized Collection<String> getNames() {
+    return new ArrayList<String>(timers.keySet());
+  }
+
   /**
    * Get the interval timer for a named tracker
    * @param name - tracker name
@@ -62,6 +140,9 @@ public class RateTracker implements Serializable {
    * @return - accumulated amount
    */
   public Double getAmount(String name) {
+    IntervalStats stats = intervals.get(name);
+    if (stats != null)
+      return stats.getAmount();
     return amounts.get(name);
   }
   
@@ -81,6 +162,12 @@ public class RateTracker implements Serializable {
    * @return - elapsed time since the last stop(name) call
    */
   public double stop(String name, double amount) {
+    IntervalStats stats = intervals.get(name);
+    if (stats != null) {
+      double dt = timers.get(name).stop();
+      stats.record((long) (dt * 1e9), amount);
+      return dt;
+    }
     Double current = amounts.get(name) + amount;
     amounts.put(name,current);
     return timers.get(name).stop();
@@ -103,6 +190,9 @@ public class RateTracker implements Serializable {
   * @return - accumulated time in seconds for the tracker
   */
  public double total(String name) {
+   IntervalStats stats = intervals.get(name);
+   if (stats != null)
+     return stats.getSeconds();
    return timers.get(name).total();
  }
  
@@ -111,21 +201,114 @@ public class RateTracker implements Serializable {
   * @return - String with report
   */
  public String report() {
+   return report(snapshot(null));
+ }
+
+ static String report(MetricsSnapshot snap) {
    StringBuffer buf = new StringBuffer("Rate Tracker Report: Amount/sec\n");
    buf.append("        Name        Time      Amount        Rate\n");
-   for (String name : timers.keySet()) {
-     String dispName = String.format("%12s", name);
-     String dispValue = String.format("%12.4f",timers.get(name).total());
-     String amountValue = String.format("%12.5g",amounts.get(name));
-     String rateValue = String.format("%12.5g",getRate(name));
+   for (MetricsSnapshot.Metric m : snap.metrics) {
+     String dispName = String.format("%12s", m.name);
+     String dispValue = String.format("%12.4f", m.seconds);
+     String amountValue = String.format("%12.5g", m.amount);
+     String rateValue = String.format("%12.5g", m.rate);
      buf.append(dispName + dispValue + amountValue + rateValue + "\n");
-     if (name.equalsIgnoreCase("elapsed")) continue;
    }
    return buf.toString();
  }
- 
+
+ /**
+  * Serialize the tracker with JsonUtil, including the values of registered
+  * handles
+  * @return - json string for report(String)
+  */
+ public synchronized String toJson() {
+   saved = snapshot(null);
+   try {
+     return JsonUtil.toJsonString(this);
+   } finally {
+     saved = null;
+   }
+ }
+
+ /**
+  * Return the report for a rate tracker serialized with toJson. For a tracker
+  * serialized directly with JsonUtil, values of registered handles are left
+  * out and only those of the name based timers are reported.
+  * @param rateTrackerJson - json string for a RateTracker
+  * @return - String with report
+  */
  public static String report( String rateTrackerJson ) {
-   return (String)(JsonUtil.fromJsonString(RateTracker.class, rateTrackerJson));
+   RateTracker rt = (RateTracker) JsonUtil.fromJsonString(RateTracker.class, rateTrackerJson);
+   if (rt.saved != null)
+     return report(rt.saved);
+   if (rt.intervals == null)
+     rt.intervals = new LinkedHashMap<String,IntervalStats>();
+   return rt.report();
+ }
+
+ /**
+  * Reduce interval times over all ranks of a parallel context. This is a
+  * collective call: every rank must call it with the same names added in the
+  * same order. Print the result on the master rank with
+  * pc.masterPrint(summary.report()).
+  * @param pc - parallel context
+  * @return - summary of all intervals, the same on every rank
+  */
+ public TrackerSummary reduce(IParallelContext pc) {
+   List<String> names = new ArrayList<String>(getNames());
+   int n = names.size();
+   double[] seconds = new double[n];
+   long[] counts = new long[n];
+   double[] amounts = new double[n];
+   LatencyHistogram[] histograms = new LatencyHistogram[n];
+   for (int i = 0; i < n; i++) {
+     String name = names.get(i);
+     seconds[i] = total(name);
+     amounts[i] = getAmount(name);
+     IntervalStats stats = intervals.get(name);
+     if (stats != null) {
+       counts[i] = stats.getCount();
+       histograms[i] = stats.getHistogram();
+     }
+   }
+   return TrackerSummary.reduce(pc, "Rate Tracker Summary", names, seconds, counts, amounts, histograms);
+ }
+
+ /**
+  * Capture the current values of all names
+  * @param source - name recorded in the snapshot
+  * @return - snapshot for export with MetricsExporter
+  */
+ @Override
+ public MetricsSnapshot snapshot(String source) {
+   MetricsSnapshot snap = new MetricsSnapshot(source);
+   for (String name : getNames()) {
+     snap.add(name, total(name), getAmount(name), intervals.get(name));
+   }
+   return snap;
+ }
+
+ private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+   saved = snapshot(null);
+   try {
+     out.defaultWriteObject();
+   } finally {
+     saved = null;
+   }
+ }
+
+ private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+   in.defaultReadObject();
+   intervals = new LinkedHashMap<String,IntervalStats>();
+   // Restore the totals of registered handles, histograms are not kept
+   if (saved != null) {
+     for (MetricsSnapshot.Metric m : saved.metrics) {
+       if (m.count > 0)
+         intervals.put(m.name, IntervalStats.restore(m));
+     }
+     saved = null;
+   }
  }
  
 }
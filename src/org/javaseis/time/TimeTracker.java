@@ -1,9 +1,17 @@
 package org.javaseis.time;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
+import beta.javaseis.parallel.IParallelContext;
+
 import org.javaseis.util.IntervalTimer;
 
 /**
@@ -27,15 +35,35 @@ import org.javaseis.util.IntervalTimer;
  * tt.stop("io");
  * System.out.println(tt.report());
  * </pre>
+ * <p>
+ * The name based methods look up a timer on every call and are meant for
+ * coarse steps on a single thread. For hot paths and multi-threaded code,
+ * register a name once and time intervals through the returned IntervalStats
+ * handle, which any thread can use without locking:
+ * <pre>
+ * IntervalStats frame = tt.register("frame", true);
+ * long t0 = frame.start();
+ * ... process a frame ...
+ * frame.stop(t0);
+ * </pre>
+ * Once a name is registered, start/stop by name also record into its handle,
+ * and total(name) and the report use the handle values.
  *
  * @author chuck@momacmo.org
  *
  */
-public class TimeTracker implements Serializable {
+public class TimeTracker implements Serializable, MetricsSource {
   private static final long serialVersionUID = 1L;
   public static String ELAPSED = "elapsed";
   
   Map <String, IntervalTimer> timers;
+  /**
+   * Registered handles, replaced on each registration so reads need no lock.
+   * They are not serialized, their values are saved in a snapshot instead.
+   */
+  transient volatile Map <String, IntervalStats> intervals;
+  /** Values of all names when the tracker was serialized, otherwise null */
+  MetricsSnapshot saved;
   
   /**
    * Initialize a set of interval timers
@@ -51,6 +79,7 @@ public class TimeTracker implements Serializable {
    */
   public TimeTracker() {
     timers = new LinkedHashMap<String,IntervalTimer>();
+    intervals = new LinkedHashMap<String,IntervalStats>();
     add(ELAPSED);
     start(ELAPSED);
   }
@@ -59,7 +88,7 @@ public class TimeTracker implements Serializable {
    * Add a timer
    * @param name - timer name
    */
-  public void add(String name) {
+  public synchronized void add(String name) {
     timers.put(name, new IntervalTimer());
   }
   
@@ -73,6 +102,57 @@ public class TimeTracker implements Serializable {
     }
   }
   
+  /**
+   * Register a thread-safe interval, adding a timer for the name if needed.
+   * Registering a name twice returns the same handle.
+   * @param name - interval name
+   * @return - handle for timing the interval
+   */
+  public IntervalStats register(String name) {
+    return register(name, false);
+  }
+
+  /**
+   * Register a thread-safe interval with an optional histogram of interval
+   * times
+   * @param name - interval name
+   * @param histogram - true to keep a LatencyHistogram for percentiles
+   * @return - handle for timing the interval
+   */
+  public synchronized IntervalStats register(String name, boolean histogram) {
+    IntervalStats stats = intervals.get(name);
+    if (stats == null) {
+      if (timers.containsKey(name) == false)
+        add(name);
+      stats = new IntervalStats(name, histogram);
+      Map<String, IntervalStats> copy = new LinkedHashMap<String, IntervalStats>(intervals);
+      copy.put(name, stats);
+      intervals = copy;
+    }
+    return stats;
+  }
+
+  /**
+   * Return the handle for a registered name, or null
+   */
+  public IntervalStats getInterval(String name) {
+    return intervals.get(name);
+  }
+
+  /**
+   * Return the registered handles in registration order
+   */
+  public Collection<IntervalStats> getIntervals() {
+    return new ArrayList<IntervalStats>(intervals.values());
+  }
+
+  /**
+   * Return all timer names in the order they were added
+   */
+  public synchronized Collection<String> getNames() {
+    return new ArrayList<String>(timers.keySet());
+  }
+
   /**
    * Get a timer by name
    * @param name - timer name
@@ -98,7 +178,11 @@ public class TimeTracker implements Serializable {
    * @return - time in seconds since last call to start(name)
    */
   public double stop(String name) {
-    return timers.get(name).stop();
+    double dt = timers.get(name).stop();
+    IntervalStats stats = intervals.get(name);
+    if (stats != null)
+      stats.record((long) (dt * 1e9), 0);
+    return dt;
   }
    
  /**
@@ -107,6 +191,9 @@ public class TimeTracker implements Serializable {
   * @return - accumulated total time between "start" and "stop" calls
   */
  public double total(String name) {
+   IntervalStats stats = intervals.get(name);
+   if (stats != null)
+     return stats.getSeconds();
    return timers.get(name).total();
  }
  
@@ -117,8 +204,27 @@ public class TimeTracker implements Serializable {
    for (String name : timers.keySet()) {
      timers.get(name).reset();
    }
+   for (IntervalStats stats : intervals.values()) {
+     stats.reset();
+   }
  }
  
+ /**
+  * Return the count and, with a histogram, percentiles of a registered
+  * interval for reports
+  */
+ String intervalDetail(String name) {
+   IntervalStats stats = intervals.get(name);
+   if (stats == null)
+     return "";
+   String s = String.format(" count %d", stats.getCount());
+   if (stats.getHistogram() != null) {
+     s += String.format(" p50 %.3g p99 %.3g max %.3g ms", stats.getPercentileNanos(50) * 1e-6,
+         stats.getPercentileNanos(99) * 1e-6, stats.getMaxNanos() * 1e-6);
+   }
+   return s;
+ }
+
  /**
   * Provide a simple report of accumulated time
   * @return - String containing report
@@ -130,8 +236,8 @@ public class TimeTracker implements Serializable {
    for (String name : timers.keySet()) {
      if (name.equalsIgnoreCase(ELAPSED)) continue;
      String dispName = String.format("%12s", name);
-     String dispValue = String.format("%-12.4f",timers.get(name).total());
-     buf.append(dispName + ": " + dispValue + "\n");
+     String dispValue = String.format("%-12.4f",total(name));
+     buf.append(dispName + ": " + dispValue + intervalDetail(name) + "\n");
      total += total(name);
    }
    String dispValue = String.format("%-12.4f",total(ELAPSED));
@@ -140,5 +246,68 @@ public class TimeTracker implements Serializable {
    buf.append("   untracked: " + dispValue);
    return buf.toString();
  }
+
+ /**
+  * Reduce interval times over all ranks of a parallel context. This is a
+  * collective call: every rank must call it with the same names added in the
+  * same order. Print the result on the master rank with
+  * pc.masterPrint(summary.report()). Stop the "elapsed" timer first if its
+  * total should include the current interval.
+  * @param pc - parallel context
+  * @return - summary of all intervals, the same on every rank
+  */
+ public TrackerSummary reduce(IParallelContext pc) {
+   List<String> names = new ArrayList<String>(getNames());
+   int n = names.size();
+   double[] seconds = new double[n];
+   long[] counts = new long[n];
+   LatencyHistogram[] histograms = new LatencyHistogram[n];
+   for (int i = 0; i < n; i++) {
+     String name = names.get(i);
+     seconds[i] = total(name);
+     IntervalStats stats = intervals.get(name);
+     if (stats != null) {
+       counts[i] = stats.getCount();
+       histograms[i] = stats.getHistogram();
+     }
+   }
+   return TrackerSummary.reduce(pc, "Time Tracker Summary", names, seconds, counts, null, histograms);
+ }
+
+ /**
+  * Capture the current values of all names
+  * @param source - name recorded in the snapshot
+  * @return - snapshot for export with MetricsExporter
+  */
+ @Override
+ public MetricsSnapshot snapshot(String source) {
+   MetricsSnapshot snap = new MetricsSnapshot(source);
+   for (String name : getNames()) {
+     snap.add(name, total(name), 0, intervals.get(name));
+   }
+   return snap;
+ }
+
+ private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+   saved = snapshot(null);
+   try {
+     out.defaultWriteObject();
+   } finally {
+     saved = null;
+   }
+ }
+
+ private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+   in.defaultReadObject();
+   intervals = new LinkedHashMap<String,IntervalStats>();
+   // Restore the totals of registered handles, histograms are not kept
+   if (saved != null) {
+     for (MetricsSnapshot.Metric m : saved.metrics) {
+       if (m.count > 0)
+         intervals.put(m.name, IntervalStats.restore(m));
+     }
+     saved = null;
+   }
+ }
  
 }
@@ -0,0 +1,201 @@
+package org.javaseis.time;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.javaseis.util.ReduceArray;
+
+import beta.javaseis.parallel.ICollective.Operation;
+import beta.javaseis.parallel.IParallelContext;
+
+/**
+ * Interval times from a TimeTracker or RateTracker reduced across the ranks of
+ * a parallel context.
+ * <p>
+ * For each interval the summary holds the minimum, maximum, mean and sum of
+ * the per-rank times, the rank with the largest time, and the load imbalance
+ * max/mean, which is 1 when all ranks spent the same time. Counts and amounts
+ * are summed, and the aggregate rate is the total amount divided by the
+ * largest per-rank time. Intervals registered with a histogram on any rank
+ * get percentiles from the merged histogram of all ranks.
+ * <p>
+ * Summaries are built by TimeTracker.reduce and RateTracker.reduce. Those are
+ * collective calls: every rank must call them, with the same names added in
+ * the same order.
+ *
+ * @author chuck@momacmo.org
+ *
+ */
+public class TrackerSummary implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  /** Reduced values for one interval */
+  public static class Entry implements Serializable {
+    private static final long serialVersionUID = 1L;
+    public String name;
+    /** Per-rank times in seconds */
+    public double min, max, mean, sum;
+    /** max/mean, 1 for a perfectly balanced interval */
+    public double imbalance;
+    /** Rank with the largest time */
+    public int maxRank;
+    /** Number of intervals on all ranks, 0 for names that are not registered */
+    public long count;
+    /** Amount summed over all ranks, and amount per second of max time */
+    public double amount, rate;
+    /** Percentiles of interval times in nanoseconds, -1 without a histogram */
+    public long p50 = -1, p90 = -1, p99 = -1;
+  }
+
+  String title;
+  int ranks;
+  boolean rates;
+  List<Entry> entries;
+
+  TrackerSummary(String title, int ranks, boolean rates) {
+    this.title = title;
+    this.ranks = ranks;
+    this.rates = rates;
+    entries = new ArrayList<Entry>();
+  }
+
+  /**
+   * Reduce local interval values across all ranks. All intervals and their
+   * histograms are packed into three array reductions, so the cost does not
+   * grow with the number of names.
+   * @param pc - parallel context
+   * @param title - report title
+   * @param names - interval names, the same on every rank
+   * @param seconds - local time for each name
+   * @param counts - local interval count for each name
+   * @param amounts - local amount for each name, null for time only
+   * @param histograms - local histogram for each name, entries may be null
+   * @return summary, identical on all ranks
+   */
+  static TrackerSummary reduce(IParallelContext pc, String title, List<String> names, double[] seconds,
+      long[] counts, double[] amounts, LatencyHistogram[] histograms) {
+    int nranks = pc.size();
+    int rank = pc.rank();
+    int n = names.size();
+    TrackerSummary s = new TrackerSummary(title, nranks, amounts != null);
+    long[][] buckets = new long[n][];
+    // Minimum and maximum times, the range of buckets in use and whether any
+    // rank has a histogram, in one MIN reduction
+    double[] mins = new double[5 * n];
+    for (int i = 0; i < n; i++) {
+      int[] range = new int[] { Integer.MAX_VALUE, -1 };
+      if (histograms[i] != null) {
+        buckets[i] = new long[histograms[i].getBucketCount()];
+        for (int j = 0; j < buckets[i].length; j++)
+          buckets[i][j] = histograms[i].getCount(j);
+        range = ReduceArray.usedRange(buckets[i]);
+      }
+      mins[i] = seconds[i];
+      mins[n + i] = -seconds[i];
+      mins[2 * n + i] = range[0];
+      mins[3 * n + i] = -range[1];
+      mins[4 * n + i] = (histograms[i] == null ? 0 : -1);
+    }
+    ReduceArray.reduceDouble(pc, mins, Operation.MIN);
+    // Lowest rank holding each maximum, in one MIN reduction, and times,
+    // counts, amounts and the buckets in use, in one SUM reduction
+    float[] ranks = new float[n];
+    int[] lo = new int[n];
+    int[] hi = new int[n];
+    int length = 3 * n;
+    for (int i = 0; i < n; i++) {
+      ranks[i] = (seconds[i] == -mins[n + i] ? rank : nranks);
+      lo[i] = (int) mins[2 * n + i];
+      hi[i] = (int) -mins[3 * n + i];
+      length += Math.max(0, hi[i] - lo[i] + 1);
+    }
+    double[] sums = new double[length];
+    int k = 3 * n;
+    for (int i = 0; i < n; i++) {
+      sums[i] = seconds[i];
+      sums[n + i] = counts[i];
+      sums[2 * n + i] = (amounts == null ? 0 : amounts[i]);
+      for (int j = lo[i]; j <= hi[i]; j++, k++)
+        sums[k] = (buckets[i] == null ? 0 : buckets[i][j]);
+    }
+    ReduceArray.reduceFloat(pc, ranks, Operation.MIN);
+    ReduceArray.reduceDouble(pc, sums, Operation.SUM);
+    k = 3 * n;
+    for (int i = 0; i < n; i++) {
+      Entry e = new Entry();
+      e.name = names.get(i);
+      e.min = mins[i];
+      e.max = -mins[n + i];
+      e.sum = sums[i];
+      e.mean = e.sum / nranks;
+      e.imbalance = (e.mean > 0 ? e.max / e.mean : 1);
+      e.maxRank = (int) ranks[i];
+      e.count = Math.round(sums[n + i]);
+      if (amounts != null) {
+        e.amount = sums[2 * n + i];
+        e.rate = (e.max > 0 ? e.amount / e.max : 0);
+      }
+      if (mins[4 * n + i] < 0) {
+        LatencyHistogram h = new LatencyHistogram(
+            histograms[i] == null ? LatencyHistogram.DEFAULT_PRECISION : histograms[i].precision);
+        for (int j = lo[i]; j <= hi[i]; j++, k++)
+          h.add(j, Math.round(sums[k]));
+        e.p50 = h.getPercentile(50);
+        e.p90 = h.getPercentile(90);
+        e.p99 = h.getPercentile(99);
+      } else {
+        k += Math.max(0, hi[i] - lo[i] + 1);
+      }
+      s.entries.add(e);
+    }
+    return s;
+  }
+
+  /**
+   * Return the reduced values for each interval
+   */
+  public List<Entry> getEntries() {
+    return entries;
+  }
+
+  /**
+   * Return the reduced values for a name, or null
+   */
+  public Entry getEntry(String name) {
+    for (Entry e : entries) {
+      if (e.name.equals(name))
+        return e;
+    }
+    return null;
+  }
+
+  /**
+   * Return the number of ranks that were reduced
+   */
+  public int getRankCount() {
+    return ranks;
+  }
+
+  /**
+   * Return a table of the reduced values, print with pc.masterPrint
+   */
+  public String report() {
+    StringBuffer buf = new StringBuffer(title + ": Seconds over " + ranks + " ranks\n");
+    buf.append(String.format("%12s%12s%12s%12s%12s%8s%8s%12s", "Name", "Min", "Mean", "Max",
+        "Sum", "Imbal", "MaxRank", "Count"));
+    if (rates)
+      buf.append(String.format("%12s%12s", "Amount", "Rate"));
+    buf.append(String.format("%10s%10s\n", "p50ms", "p99ms"));
+    for (Entry e : entries) {
+      buf.append(String.format("%12s%12.4f%12.4f%12.4f%12.4f%8.3f%8d%12d", e.name, e.min, e.mean,
+          e.max, e.sum, e.imbalance, e.maxRank, e.count));
+      if (rates)
+        buf.append(String.format("%12.5g%12.5g", e.amount, e.rate));
+      if (e.p50 >= 0)
+        buf.append(String.format("%10.3f%10.3f", e.p50 * 1e-6, e.p99 * 1e-6));
+      buf.append("\n");
+    }
+    return buf.toString();
+  }
+}
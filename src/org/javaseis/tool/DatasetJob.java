@@ -0,0 +1,118 @@
+package org.javaseis.tool;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+
+import org.javaseis.cloud.array.PositionIterator;
+import org.javaseis.io.Seisio;
+import org.javaseis.util.SeisException;
+
+import beta.javaseis.parallel.ICollective.Operation;
+import beta.javaseis.parallel.IParallelContext;
+import beta.javaseis.parallel.ParallelTask;
+import beta.javaseis.parallel.ParallelTaskExecutor;
+import beta.javaseis.parallel.ReduceScalar;
+
+/**
+ * Shared state of a job that reads a JavaSeis dataset on several
+ * ParallelTaskExecutor tasks, such as an export or a statistics pass.
+ * <p>
+ * The job is the task object of every task. Each task extends DatasetJob.Task,
+ * which runs the work of the task and then takes part in the reductions, even
+ * after a failure or a runtime exception, so that one failed task cannot leave
+ * the others waiting in a collective call. The first exception is kept and thrown by execute once
+ * all tasks are done.
+ *
+ * @author chuck@momacmo.org
+ *
+ */
+public abstract class DatasetJob {
+  /** Description of the job for error messages */
+  String description;
+  volatile Exception exception;
+
+  /**
+   * Run the job and wait for all tasks to finish
+   * @param taskClass - task to run
+   * @param ntask - number of tasks
+   * @param description - description of the job for error messages
+   * @throws SeisException if any task failed
+   */
+  public void execute(Class<? extends Task<?>> taskClass, int ntask, String description) throws SeisException {
+    this.description = description;
+    try {
+      ParallelTaskExecutor.runTasks(taskClass, ntask, (Object) this);
+    } catch (ExecutionException e) {
+      throw new SeisException(description + " failed", e);
+    }
+    if (exception != null)
+      throw new SeisException(description + " failed", exception);
+  }
+
+  /**
+   * Open a dataset for reading
+   * @param path - JavaSeis dataset path
+   * @return open dataset
+   * @throws SeisException if the dataset could not be opened
+   */
+  public static Seisio open(String path) throws SeisException {
+    try {
+      Seisio sio = new Seisio(path);
+      sio.open("r");
+      return sio;
+    } catch (Exception e) {
+      throw new SeisException("Could not open path=" + path, e);
+    }
+  }
+
+  /**
+   * Return an iterator over the frames of a dataset, in file order
+   */
+  public static PositionIterator framePositions(long[] shape) {
+    int[] ishape = new int[shape.length];
+    for (int i = 0; i < shape.length; i++)
+      ishape[i] = (int) shape[i];
+    return new PositionIterator(ishape, Math.min(2, shape.length));
+  }
+
+  /**
+   * Work of one task on a job
+   * @param <J> - job type
+   */
+  public abstract static class Task<J extends DatasetJob> extends ParallelTask {
+
+    /**
+     * Do the work of this task
+     * @param job - shared job
+     * @param pc - parallel context of the task
+     */
+    protected abstract void process(J job, IParallelContext pc) throws SeisException, IOException;
+
+    /**
+     * Combine the results of all tasks. This is called on every task, after a
+     * failure too, and may make collective calls.
+     * @param job - shared job
+     * @param pc - parallel context of the task
+     */
+    protected void reduce(J job, IParallelContext pc) {
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void run() {
+      J job = (J) getTaskObject();
+      IParallelContext pc = getParallelContext();
+      double failed = 0;
+      try {
+        process(job, pc);
+      } catch (SeisException | IOException | RuntimeException e) {
+        job.exception = e;
+        failed = 1;
+      }
+      reduce(job, pc);
+      failed = ReduceScalar.reduceDouble(pc, failed, Operation.MAX);
+      if (failed > 0 && job.exception == null)
+        job.exception = new SeisException(job.description + " failed on another task");
+    }
+  }
+}
@@ -2,11 +2,15 @@ package org.javaseis.tool;
 
 import java.util.concurrent.ExecutionException;
 
+import org.javaseis.array.ElementType;
 import org.javaseis.grid.GridDefinition;
 import org.javaseis.services.ParameterService;
+import org.javaseis.time.IntervalStats;
+import org.javaseis.time.MetricsExporter;
+import org.javaseis.time.RateTracker;
+import org.javaseis.time.TimeTracker;
 import org.javaseis.util.SeisException;
 import org.javaseis.volume.ISeismicVolume;
-import org.javaseis.volume.SeismicVolume;
 
 import beta.javaseis.distributed.FileSystemIOService;
 import beta.javaseis.distributed.IDistributedIOService;
@@ -18,11 +22,34 @@ import beta.javaseis.parallel.UniprocessorContext;
 
 /**
  * StandAlone volume processing tool handler
+ * <p>
+ * Every task records the time spent in each stage of the run in a
+ * RateTracker: the tool init and finish hooks, volume reads and writes with
+ * their size in bytes, processVolume and outputVolume calls with a count of
+ * volumes, and the collective ParallelException checks. Tools can add their
+ * own intervals through ToolContext.getRateTracker(). At the end of the run
+ * the stage times are reduced over all tasks and the master prints one
+ * report, with the slowest task and load imbalance of each stage. The times
+ * of the serial hooks are printed when serialReport=true. If the
+ * metricsPath parameter is set, each task also exports its metrics to
+ * metricsPath-rank.jsonl and metricsPath-rank.prom every metricsPeriod
+ * seconds.
  *
  * @author chuck
  *
  */
 public abstract class StandAloneVolumeTool implements IVolumeTool {
+  /** Stage names in the task RateTracker */
+  public static String PARALLEL_INIT = "parallelInit";
+  public static String READ = "read";
+  public static String PROCESS_VOLUME = "processVolume";
+  public static String WRITE = "write";
+  public static String OUTPUT_VOLUME = "outputVolume";
+  public static String PARALLEL_FINISH = "parallelFinish";
+  public static String EXIT_ON_EXCEPTION = "exitOnException";
+  /** Stage names for the serial hooks, timed in exec */
+  public static String SERIAL_INIT = "serialInit";
+  public static String SERIAL_FINISH = "serialFinish";
 
   public StandAloneVolumeTool() {
     // Need default constructor so implementors don't have to provide one
@@ -55,8 +82,11 @@ public abstract class StandAloneVolumeTool implements IVolumeTool {
       hasInput = true;
     }
     serialToolContext.putFlowGlobal(ToolContext.HAS_INPUT, hasInput );
+    TimeTracker serialTimes = new TimeTracker(new String[] { SERIAL_INIT, SERIAL_FINISH });
     // Run the tool serial initialization step with the provided input GridDefinition
+    serialTimes.start(SERIAL_INIT);
     tool.serialInit(serialToolContext);
+    serialTimes.stop(SERIAL_INIT);
     // Get the output grid definition set by the tool
     GridDefinition outputGrid = (GridDefinition) serialToolContext.getFlowGlobal(ToolContext.OUTPUT_GRID);
     // Create or open output file if it was requested
@@ -110,7 +140,34 @@ public abstract class StandAloneVolumeTool implements IVolumeTool {
     }
     // Call the implementor's serial finish method to release any global
     // resources
+    serialTimes.start(SERIAL_FINISH);
     tool.serialFinish(serialToolContext);
+    serialTimes.stop(SERIAL_FINISH);
+    if (Boolean.parseBoolean(serialToolContext.getParameter(ToolContext.SERIAL_REPORT, "false")))
+      upc.masterPrint(serialTimes.report());
+  }
+
+  /**
+   * Return the local storage of a volume in bytes, used as the amount for read
+   * and write stages
+   */
+  static long localBytes(ISeismicVolume volume) {
+    int bytes;
+    ElementType type = volume.getElementType();
+    if (type == ElementType.BYTE)
+      bytes = 1;
+    else if (type == ElementType.SHORT)
+      bytes = 2;
+    else if (type == ElementType.DOUBLE || type == ElementType.LONG)
+      bytes = 8;
+    else
+      bytes = 4;
+    // Elements actually held by this task, which may hold fewer frames than
+    // the others
+    long length = volume.getElementCount();
+    for (int n : volume.getLocalLengths())
+      length *= n;
+    return bytes * length;
   }
   
   public static class StandAloneVolumeTask extends ParallelTask {
@@ -119,6 +176,9 @@ public abstract class StandAloneVolumeTool implements IVolumeTool {
     private IVolumeTool tool;
     private Class<IVolumeTool> toolClass;
     public Boolean input, output;
+    private RateTracker rates;
+    private IntervalStats initStage, readStage, processStage, writeStage, outputStage,
+        finishStage, exceptionStage;
     
     @SuppressWarnings("unchecked")
     @Override
@@ -126,9 +186,18 @@ public abstract class StandAloneVolumeTool implements IVolumeTool {
       // Get the parallel context
       IParallelContext pc = this.getParallelContext();
       ParallelException pe = new ParallelException(pc);
+      rates = new RateTracker();
+      initStage = rates.register(PARALLEL_INIT);
+      readStage = rates.register(READ, true);
+      processStage = rates.register(PROCESS_VOLUME, true);
+      writeStage = rates.register(WRITE, true);
+      outputStage = rates.register(OUTPUT_VOLUME, true);
+      finishStage = rates.register(PARALLEL_FINISH);
+      exceptionStage = rates.register(EXIT_ON_EXCEPTION, true);
       // Add the parallel context to the toolContext
       toolContext = new ToolContext((ToolContext)super.getTaskObject());
       toolContext.setParallelContext(pc);
+      toolContext.setRateTracker(rates);
       toolClass = (Class<IVolumeTool>)toolContext.getToolGlobal(ToolContext.TOOL_CLASS);
       Exception ex = null;
       try {
@@ -136,7 +205,7 @@ public abstract class StandAloneVolumeTool implements IVolumeTool {
       } catch (InstantiationException | IllegalAccessException e1) {
         ex = e1;
       }
-      pe.exitOnException(ex, 1);
+      exitOnException(pe, ex);
       // Open the input and output file systems - should have been checked by StandAloneVolumeTool.main
       ex = null;
       IDistributedIOService ipio = null;
@@ -159,7 +228,7 @@ public abstract class StandAloneVolumeTool implements IVolumeTool {
       } catch (SeisException e) {
         ex = e;
       }
-      pe.exitOnException(ex, 1);
+      exitOnException(pe, ex);
       // Get the input and output grids and store in the tool context
       if (input) {
         toolContext.putFlowLocal(ToolContext.INPUT_GRID, ipio.getGridDefinition());
@@ -167,62 +236,225 @@ public abstract class StandAloneVolumeTool implements IVolumeTool {
       if (output) {
         toolContext.putFlowLocal(ToolContext.OUTPUT_GRID, opio.getGridDefinition());
       }
+      MetricsExporter exporter = startExporter(pc);
       // Call the implementing method for parallel initialization
+      long t0 = initStage.start();
       tool.parallelInit(toolContext);
+      initStage.stop(t0);
+      int queueDepth = Integer.parseInt(toolContext.getParameter(ToolContext.IO_QUEUE_DEPTH, "0"));
+      if (queueDepth > 0 && (input || output) && pc.size() > 1) {
+        // The I/O threads make collective calls of their own, which could
+        // interleave with the collectives made by the tool on other tasks
+        pc.masterPrint("ioQueueDepth=" + queueDepth + " ignored with " + pc.size()
+            + " tasks, overlapped I/O needs a single task");
+        queueDepth = 0;
+      }
+      if (queueDepth > 0 && (input || output)) {
+        processOverlapped(pc, pe, ipio, opio, queueDepth);
+      } else {
+        processSequential(pc, pe, ipio, opio);
+      }
+      // Call the implementor's parallel finish method to release any local resources
+      t0 = finishStage.start();
+      tool.parallelFinish(toolContext);
+      finishStage.stop(t0);
+      // Pooled buffers are tied to this task's parallel context
+      toolContext.getVolumePool().clear(pc);
+      if (exporter != null) {
+        try {
+          exporter.stop();
+        } catch (SeisException e) {
+          pc.serialPrint("Task " + pc.rank() + " metrics export failed: " + e.getMessage());
+        }
+      }
+      // Collective, every task reaches this point or exits together above
+      pc.masterPrint(rates.reduce(pc).report());
+    }
+
+    /**
+     * Check for an exception on any task, timing the collective check
+     */
+    private void exitOnException(ParallelException pe, Exception ex) {
+      long t0 = exceptionStage.start();
+      pe.exitOnException(ex, 1);
+      exceptionStage.stop(t0);
+    }
+
+    /**
+     * Start periodic export of the task metrics if metricsPath is set
+     * @return exporter, or null
+     */
+    private MetricsExporter startExporter(IParallelContext pc) {
+      String path = toolContext.getParameter(ToolContext.METRICS_PATH, "null");
+      if (path.equals("null"))
+        return null;
+      double period = Double.parseDouble(toolContext.getParameter(ToolContext.METRICS_PERIOD, "30"));
+      String prefix = path + "-" + pc.rank();
+      MetricsExporter exporter = new MetricsExporter(prefix + ".jsonl", prefix + ".prom");
+      exporter.setLabel("rank", Integer.toString(pc.rank()));
+      exporter.addSource(toolClass.getSimpleName(), rates);
+      exporter.start(Math.max(1, (long) (period * 1000)));
+      return exporter;
+    }
+
+    /**
+     * Read, process and write one volume at a time
+     */
+    private void processSequential(IParallelContext pc, ParallelException pe,
+        IDistributedIOService ipio, IDistributedIOService opio) {
+      Exception ex = null;
       // Create the input and output seismic volumes
       ISeismicVolume inputVolume = null;
-      if (input) {
-        inputVolume = new SeismicVolume(pc, ipio.getGridDefinition());
-        ipio.setDistributedArray(inputVolume.getDistributedArray());
-      }
+      if (input)
+        inputVolume = toolContext.borrowVolume(ipio.getGridDefinition());
       ISeismicVolume outputVolume = inputVolume;
-      if (output) {
-        outputVolume = new SeismicVolume(pc, opio.getGridDefinition());
-        opio.setDistributedArray(outputVolume.getDistributedArray());
-      }
+      if (output)
+        outputVolume = toolContext.borrowVolume(opio.getGridDefinition());
       // Loop over input volumes
       if (input) {
         while (ipio.hasNext()) {
           // Get the next input volume
           ipio.next();
-          // TODO: Investigate performance of ParallelException
+          // The exitOnException stage measures the cost of ParallelException
+          long t0 = readStage.start();
           try {
-            ipio.read();
+            VolumeIO.read(ipio, inputVolume);
           } catch (SeisException e) {
             ex = e;
           }
-          pe.exitOnException(ex, 1);
+          readStage.stop(t0, localBytes(inputVolume));
+          exitOnException(pe, ex);
+          t0 = processStage.start();
           boolean hasOutput = tool.processVolume(toolContext, inputVolume,
               outputVolume);
+          processStage.stop(t0, 1);
           if (output && hasOutput) {
             opio.next();
+            t0 = writeStage.start();
             try {
-              opio.write();
+              VolumeIO.write(opio, outputVolume);
             } catch (SeisException e) {
               ex = e;
             }
-            pe.exitOnException(ex, 1);
+            writeStage.stop(t0, localBytes(outputVolume));
+            exitOnException(pe, ex);
           }
         }
       }
       if (output) {
         // Process any remaining output
-        while (tool.outputVolume(toolContext, outputVolume)) {
+        while (flushVolume(outputVolume)) {
           if (!opio.hasNext()) {
             ex = new SeisException("Tool is attempting to output volume that is outside data context");
           }
-          pe.exitOnException(ex, 1);
+          exitOnException(pe, ex);
           opio.next();
+          long t0 = writeStage.start();
           try {
-            opio.write();
+            VolumeIO.write(opio, outputVolume);
           } catch (SeisException e) {
             ex = e;
           }
-          pe.exitOnException(ex, 1);
+          writeStage.stop(t0, localBytes(outputVolume));
+          exitOnException(pe, ex);
         }
       }
-      // Call the implementor's parallel finish method to release any local resources
-      tool.parallelFinish(toolContext);
+      if (input)
+        toolContext.returnVolume(inputVolume);
+      if (output)
+        toolContext.returnVolume(outputVolume);
+    }
+
+    /**
+     * Call the tool outputVolume method, counting volumes it produces
+     */
+    private boolean flushVolume(ISeismicVolume outputVolume) {
+      long t0 = outputStage.start();
+      boolean hasOutput = tool.outputVolume(toolContext, outputVolume);
+      outputStage.stop(t0, hasOutput ? 1 : 0);
+      return hasOutput;
+    }
+
+    /**
+     * Read ahead and write behind on separate threads while the tool processes
+     * the current volume. Each direction uses queueDepth extra volumes. Only
+     * used with a single task, and the I/O threads are always stopped before
+     * returning, whether or not the tool or the I/O failed.
+     */
+    private void processOverlapped(IParallelContext pc, ParallelException pe,
+        IDistributedIOService ipio, IDistributedIOService opio, int queueDepth) {
+      Exception ex = null;
+      ISeismicVolume[] inputVolumes = null;
+      ISeismicVolume[] outputVolumes = null;
+      if (input) {
+        inputVolumes = new ISeismicVolume[queueDepth + 1];
+        for (int i = 0; i < inputVolumes.length; i++)
+          inputVolumes[i] = toolContext.borrowVolume(ipio.getGridDefinition());
+      }
+      if (output) {
+        outputVolumes = new ISeismicVolume[queueDepth + 1];
+        for (int i = 0; i < outputVolumes.length; i++)
+          outputVolumes[i] = toolContext.borrowVolume(opio.getGridDefinition());
+      }
+      VolumeIOPipeline vio = new VolumeIOPipeline(input ? ipio : null, inputVolumes,
+          output ? opio : null, outputVolumes);
+      vio.recordInto(readStage, writeStage);
+      vio.start();
+      try {
+        // A tool that returns false keeps the same output volume on the next
+        // call, so it can accumulate into it as it does with sequential I/O
+        ISeismicVolume outputVolume = null;
+        if (input) {
+          ISeismicVolume inputVolume;
+          while ((inputVolume = vio.nextInput()) != null) {
+            if (output && outputVolume == null)
+              outputVolume = vio.nextOutput();
+            // Without an output file the tool works in place on the input
+            vio.startCompute();
+            long t0 = processStage.start();
+            boolean hasOutput = tool.processVolume(toolContext, inputVolume,
+                (output ? outputVolume : inputVolume));
+            processStage.stop(t0, 1);
+            vio.stopCompute();
+            vio.releaseInput(inputVolume);
+            if (output && hasOutput) {
+              vio.write(outputVolume);
+              outputVolume = null;
+            }
+          }
+        }
+        if (output) {
+          // Process any remaining output
+          while (true) {
+            if (outputVolume == null)
+              outputVolume = vio.nextOutput();
+            vio.startCompute();
+            boolean hasOutput = flushVolume(outputVolume);
+            vio.stopCompute();
+            if (!hasOutput) {
+              vio.releaseOutput(outputVolume);
+              break;
+            }
+            vio.write(outputVolume);
+            outputVolume = null;
+          }
+        }
+      } catch (SeisException e) {
+        ex = e;
+      } finally {
+        try {
+          vio.finish();
+        } catch (SeisException e) {
+          if (ex == null)
+            ex = e;
+        }
+      }
+      exitOnException(pe, ex);
+      for (int i = 0; input && i < inputVolumes.length; i++)
+        toolContext.returnVolume(inputVolumes[i]);
+      for (int i = 0; output && i < outputVolumes.length; i++)
+        toolContext.returnVolume(outputVolumes[i]);
+      pc.serialPrint("Task " + pc.rank() + " " + vio.report());
     }
   }
 }
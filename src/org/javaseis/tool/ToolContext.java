@@ -3,9 +3,16 @@ package org.javaseis.tool;
 import java.util.HashMap;
 import java.util.Map;
 
+import org.javaseis.array.ElementType;
 import org.javaseis.grid.GridDefinition;
 import org.javaseis.services.ParameterService;
+import org.javaseis.time.RateTracker;
+import org.javaseis.volume.ISeismicVolume;
+import org.javaseis.volume.OffHeapSeismicVolume;
+import org.javaseis.volume.VolumePool;
 
+import beta.javaseis.distributed.Decomposition;
+import beta.javaseis.distributed.DistributedArray;
 import beta.javaseis.parallel.IParallelContext;
 import beta.javaseis.parallel.SharedMap;
 import beta.javaseis.parallel.UniprocessorContext;
@@ -32,6 +39,20 @@ public class ToolContext {
   public static String INPUT_GRID = "inputGrid";
   public static String TASK_COUNT = "taskCount";
   public static String TOOL_CLASS = "toolClass";
+  /** Number of volumes read ahead and written behind, 0 for sequential I/O */
+  public static String IO_QUEUE_DEPTH = "ioQueueDepth";
+  /** Memory ceiling in MBytes for the shared volume pool, 0 for no limit */
+  public static String VOLUME_POOL_LIMIT = "volumePoolLimit";
+  /** Storage for pooled volumes: heap, direct or mapped */
+  public static String VOLUME_STORAGE = "volumeStorage";
+  /** Flow local key for the RateTracker holding the stage times of a task */
+  public static String RATE_TRACKER = "rateTracker";
+  /** Path prefix for per-task metrics files, unset for no export */
+  public static String METRICS_PATH = "metricsPath";
+  /** Seconds between metrics exports */
+  public static String METRICS_PERIOD = "metricsPeriod";
+  /** Print the serialInit and serialFinish times when true */
+  public static String SERIAL_REPORT = "serialReport";
 
   /** Visibility of stored objects */
   public enum Visibility {
@@ -101,10 +122,95 @@ public class ToolContext {
     return pc;
   }
 
+  /**
+   * Return the volume pool shared by all tools and tasks in this JVM
+   */
+  public VolumePool getVolumePool() {
+    long limit = Long.parseLong(getParameter(VOLUME_POOL_LIMIT, "0"));
+    return VolumePool.getShared(limit * 1024 * 1024);
+  }
+
+  /**
+   * Return the storage for pooled volumes from the volumeStorage parameter
+   * @return off-heap storage, or null for heap volumes
+   */
+  public OffHeapSeismicVolume.Storage getVolumeStorage() {
+    String storage = getParameter(VOLUME_STORAGE, "heap");
+    if (storage.equalsIgnoreCase("heap"))
+      return null;
+    return OffHeapSeismicVolume.Storage.valueOf(storage.toUpperCase());
+  }
+
+  /**
+   * Borrow a float volume from the shared pool, stored as set by the
+   * volumeStorage parameter
+   * @param grid - global grid for the volume
+   * @return volume to be given back with returnVolume
+   */
+  public ISeismicVolume borrowVolume(GridDefinition grid) {
+    return borrowVolume(grid, 0);
+  }
+
+  /**
+   * Borrow a float volume from the shared pool, stored as set by the
+   * volumeStorage parameter
+   * @param grid - global grid for the volume
+   * @param maxLength - minimum storage length, as for the SeismicVolume
+   *          constructor
+   * @return volume to be given back with returnVolume
+   */
+  public ISeismicVolume borrowVolume(GridDefinition grid, long maxLength) {
+    return getVolumePool().borrowVolume(pc, grid, ElementType.FLOAT, 1, Decomposition.BLOCK, maxLength,
+        getVolumeStorage());
+  }
+
+  /**
+   * Give a borrowed volume back to the shared pool
+   */
+  public void returnVolume(ISeismicVolume volume) {
+    getVolumePool().returnVolume(volume);
+  }
+
+  /**
+   * Borrow a block decomposed distributed array from the shared pool
+   * @param elementClass - primitive class of the elements
+   * @param elementCount - elements per sample
+   * @param shape - global shape of the array
+   * @param decompType - decomposition type
+   * @return array to be given back with returnArray
+   */
+  public DistributedArray borrowArray(Class<?> elementClass, int elementCount, int[] shape, int decompType) {
+    return getVolumePool().borrowArray(pc, elementClass, elementCount, shape, decompType);
+  }
+
+  /**
+   * Give a borrowed array back to the shared pool
+   */
+  public void returnArray(DistributedArray da) {
+    getVolumePool().returnArray(da);
+  }
+
+  /**
+   * Return the tracker holding the stage times of this task, or null outside
+   * a tool handler. Tools can register their own intervals in it, and they are
+   * included in the report printed at the end of the run.
+   */
+  public RateTracker getRateTracker() {
+    return (RateTracker) flowLocal.get(RATE_TRACKER);
+  }
+
+  public void setRateTracker(RateTracker tracker) {
+    flowLocal.put(RATE_TRACKER, tracker);
+  }
+
   public String getParameter(String key) {
     return parms.getParameter(key);
   }
 
+  public String getParameter(String key, String defaultValue) {
+    return parms.getParameter(key, defaultValue);
+  }
+
   public void putFlowLocal(String key, Object value) {
     flowLocal.put(key, value);
   }
@@ -0,0 +1,57 @@
+package org.javaseis.tool;
+
+import org.javaseis.util.SeisException;
+import org.javaseis.volume.ISeismicVolume;
+import org.javaseis.volume.OffHeapSeismicVolume;
+
+import beta.javaseis.distributed.IDistributedIOService;
+
+/**
+ * Reads and writes volumes through the distributed I/O services at their
+ * current file position. Heap volumes are read and written in place, and
+ * off-heap volumes are staged through a heap DistributedArray that is released
+ * after each read and write.
+ *
+ * @author chuck
+ *
+ */
+class VolumeIO {
+
+  /**
+   * Read the volume at the current position of an I/O service
+   */
+  static void read(IDistributedIOService io, ISeismicVolume volume) throws SeisException {
+    if (!(volume instanceof OffHeapSeismicVolume)) {
+      io.setDistributedArray(volume.getDistributedArray());
+      io.read();
+      return;
+    }
+    OffHeapSeismicVolume offHeap = (OffHeapSeismicVolume) volume;
+    try {
+      io.setDistributedArray(offHeap.getDistributedArray());
+      io.read();
+      offHeap.loadFromArray();
+    } finally {
+      offHeap.releaseArray();
+    }
+  }
+
+  /**
+   * Write a volume at the current position of an I/O service
+   */
+  static void write(IDistributedIOService io, ISeismicVolume volume) throws SeisException {
+    if (!(volume instanceof OffHeapSeismicVolume)) {
+      io.setDistributedArray(volume.getDistributedArray());
+      io.write();
+      return;
+    }
+    OffHeapSeismicVolume offHeap = (OffHeapSeismicVolume) volume;
+    offHeap.storeToArray();
+    try {
+      io.setDistributedArray(offHeap.getDistributedArray());
+      io.write();
+    } finally {
+      offHeap.releaseArray();
+    }
+  }
+}
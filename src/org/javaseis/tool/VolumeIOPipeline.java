@@ -0,0 +1,328 @@
+package org.javaseis.tool;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.javaseis.time.IntervalStats;
+import org.javaseis.time.TimeTracker;
+import org.javaseis.util.SeisException;
+import org.javaseis.volume.ISeismicVolume;
+
+import beta.javaseis.distributed.IDistributedIOService;
+
+/**
+ * Overlapped volume I/O for a single task.
+ * <p>
+ * The reader and writer threads call the I/O services while the compute
+ * thread runs the tool, so the services must not share a multi-task parallel
+ * context with collectives made by the tool. StandAloneVolumeTool only uses
+ * the pipeline when there is one task.
+ * <p>
+ * A reader thread fills a bounded set of input volumes ahead of the tool, and
+ * a writer thread drains output volumes behind it, so volume N+1 is read and
+ * volume N-1 is written while volume N is processed. The I/O services are only
+ * touched by their own thread once the pipeline is started.
+ * <p>
+ * Volumes are handed between threads by index, with -1 marking the end of the
+ * input or output stream. Time spent reading, writing, computing and waiting
+ * is recorded through TimeTracker handles, which are safe to update from the
+ * reader, writer and compute threads, so the hidden I/O time can be reported.
+ *
+ * @author chuck
+ *
+ */
+public class VolumeIOPipeline {
+  /** Interval names for the pipeline stages */
+  public static String READ = "read";
+  public static String WRITE = "write";
+  public static String COMPUTE = "compute";
+  public static String READ_WAIT = "readWait";
+  public static String WRITE_WAIT = "writeWait";
+
+  private static final int END = -1;
+
+  IDistributedIOService ipio, opio;
+  ISeismicVolume[] inputVolumes, outputVolumes;
+  BlockingQueue<Integer> inputFree, inputFull, outputFree, outputFull;
+  Thread reader, writer;
+  volatile Throwable ioException;
+  volatile boolean stopped;
+  TimeTracker tracker;
+  IntervalStats readTime, writeTime, computeTime, readWait, writeWait;
+  /** Optional caller handles that also receive read and write times and bytes */
+  IntervalStats readStage, writeStage;
+  long computeStart;
+  long volumesRead, volumesWritten;
+
+  /**
+   * Create an I/O pipeline for a task
+   * @param inputService - input I/O service, null if there is no input
+   * @param inputs - volumes used to read ahead, at least one if there is input
+   * @param outputService - output I/O service, null if there is no output
+   * @param outputs - volumes used to write behind, at least one if there is
+   *          output
+   */
+  public VolumeIOPipeline(IDistributedIOService inputService, ISeismicVolume[] inputs,
+      IDistributedIOService outputService, ISeismicVolume[] outputs) {
+    ipio = inputService;
+    opio = outputService;
+    inputVolumes = inputs;
+    outputVolumes = outputs;
+    tracker = new TimeTracker();
+    readTime = tracker.register(READ);
+    writeTime = tracker.register(WRITE);
+    computeTime = tracker.register(COMPUTE);
+    readWait = tracker.register(READ_WAIT);
+    writeWait = tracker.register(WRITE_WAIT);
+    if (ipio != null) {
+      inputFree = new ArrayBlockingQueue<Integer>(inputs.length);
+      inputFull = new ArrayBlockingQueue<Integer>(inputs.length + 1);
+      for (int i = 0; i < inputs.length; i++)
+        inputFree.add(i);
+    }
+    if (opio != null) {
+      outputFree = new ArrayBlockingQueue<Integer>(outputs.length);
+      outputFull = new ArrayBlockingQueue<Integer>(outputs.length + 1);
+      for (int i = 0; i < outputs.length; i++)
+        outputFree.add(i);
+    }
+  }
+
+  /**
+   * Also record each volume read and write, with its size in bytes, into
+   * caller handles such as the stage handles of StandAloneVolumeTool. Call
+   * before start.
+   * @param read - handle for reads, or null
+   * @param write - handle for writes, or null
+   */
+  public void recordInto(IntervalStats read, IntervalStats write) {
+    readStage = read;
+    writeStage = write;
+  }
+
+  /**
+   * Start the reader and writer threads
+   */
+  public void start() {
+    if (ipio != null) {
+      reader = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          readLoop();
+        }
+      }, "VolumeIOPipeline-reader");
+      reader.setDaemon(true);
+      reader.start();
+    }
+    if (opio != null) {
+      writer = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          writeLoop();
+        }
+      }, "VolumeIOPipeline-writer");
+      writer.setDaemon(true);
+      writer.start();
+    }
+  }
+
+  private void readLoop() {
+    try {
+      while (ipio.hasNext()) {
+        int ibuf = inputFree.take();
+        ipio.next();
+        long t0 = readTime.start();
+        VolumeIO.read(ipio, inputVolumes[ibuf]);
+        long dt = readTime.stop(t0);
+        if (readStage != null)
+          readStage.record(dt, StandAloneVolumeTool.localBytes(inputVolumes[ibuf]));
+        volumesRead++;
+        inputFull.put(ibuf);
+      }
+    } catch (InterruptedException e) {
+      // Interrupted by finish when the tool stops before the input is exhausted
+      if (!stopped)
+        ioException = e;
+    } catch (Throwable e) {
+      // Any failure is reported ahead of the end marker by nextInput
+      ioException = e;
+    } finally {
+      inputFull.add(END);
+    }
+  }
+
+  private void writeLoop() {
+    try {
+      int ibuf;
+      while ((ibuf = outputFull.take()) != END) {
+        // Keep draining after a failure so the compute thread never blocks
+        if (ioException == null) {
+          try {
+            if (!opio.hasNext())
+              throw new SeisException("Tool is attempting to output volume that is outside data context");
+            opio.next();
+            long t0 = writeTime.start();
+            VolumeIO.write(opio, outputVolumes[ibuf]);
+            long dt = writeTime.stop(t0);
+            if (writeStage != null)
+              writeStage.record(dt, StandAloneVolumeTool.localBytes(outputVolumes[ibuf]));
+            volumesWritten++;
+          } catch (Throwable e) {
+            ioException = e;
+          }
+        }
+        outputFree.put(ibuf);
+      }
+    } catch (InterruptedException e) {
+      ioException = e;
+    }
+  }
+
+  private void checkException() throws SeisException {
+    if (ioException != null)
+      throw new SeisException("Overlapped volume I/O failed", ioException);
+  }
+
+  /**
+   * Wait for the next input volume
+   * @return next input volume, or null when the input is exhausted
+   * @throws SeisException if the reader failed
+   */
+  public ISeismicVolume nextInput() throws SeisException {
+    int ibuf;
+    long t0 = readWait.start();
+    try {
+      ibuf = inputFull.take();
+    } catch (InterruptedException e) {
+      throw new SeisException("Interrupted waiting for input volume", e);
+    }
+    readWait.stop(t0);
+    checkException();
+    if (ibuf == END) {
+      // Leave the marker for any later callers
+      inputFull.add(END);
+      return null;
+    }
+    return inputVolumes[ibuf];
+  }
+
+  /**
+   * Return an input volume so the reader can fill it again
+   * @param volume - volume returned by nextInput
+   */
+  public void releaseInput(ISeismicVolume volume) {
+    inputFree.add(indexOf(inputVolumes, volume));
+  }
+
+  /**
+   * Wait for an output volume that is not queued for writing
+   * @return free output volume
+   * @throws SeisException if the writer failed
+   */
+  public ISeismicVolume nextOutput() throws SeisException {
+    int ibuf;
+    long t0 = writeWait.start();
+    try {
+      ibuf = outputFree.take();
+    } catch (InterruptedException e) {
+      throw new SeisException("Interrupted waiting for output volume", e);
+    }
+    writeWait.stop(t0);
+    checkException();
+    return outputVolumes[ibuf];
+  }
+
+  /**
+   * Queue an output volume for writing
+   * @param volume - volume returned by nextOutput
+   * @throws SeisException if the writer failed
+   */
+  public void write(ISeismicVolume volume) throws SeisException {
+    checkException();
+    outputFull.add(indexOf(outputVolumes, volume));
+  }
+
+  /**
+   * Return an output volume that will not be written
+   * @param volume - volume returned by nextOutput
+   */
+  public void releaseOutput(ISeismicVolume volume) {
+    outputFree.add(indexOf(outputVolumes, volume));
+  }
+
+  /**
+   * Start timing work done by the tool
+   */
+  public void startCompute() {
+    computeStart = computeTime.start();
+  }
+
+  /**
+   * Stop timing work done by the tool
+   */
+  public void stopCompute() {
+    computeTime.stop(computeStart);
+  }
+
+  /**
+   * Flush queued output and wait for the I/O threads to finish. Call from a
+   * finally block, so the threads also stop when the tool fails.
+   * @throws SeisException if either thread failed
+   */
+  public void finish() throws SeisException {
+    try {
+      if (writer != null) {
+        outputFull.add(END);
+        writer.join();
+      }
+      if (reader != null) {
+        stopped = true;
+        reader.interrupt();
+        reader.join();
+      }
+    } catch (InterruptedException e) {
+      throw new SeisException("Interrupted waiting for volume I/O to complete", e);
+    }
+    checkException();
+    tracker.stop(TimeTracker.ELAPSED);
+  }
+
+  /**
+   * Return the tracker holding the pipeline stage times
+   */
+  public TimeTracker getTimeTracker() {
+    return tracker;
+  }
+
+  /**
+   * Report stage times and the amount of I/O time hidden behind computation
+   * @return report string
+   */
+  public String report() {
+    double io = tracker.total(READ) + tracker.total(WRITE);
+    double wait = tracker.total(READ_WAIT) + tracker.total(WRITE_WAIT);
+    double hidden = Math.max(0, io - wait);
+    double elapsed = tracker.total(TimeTracker.ELAPSED);
+    double serial = io + tracker.total(COMPUTE);
+    StringBuffer buf = new StringBuffer("Volume I/O Pipeline Report: Seconds\n");
+    buf.append(String.format("%12s: %-12d\n", "readCount", volumesRead));
+    buf.append(String.format("%12s: %-12d\n", "writeCount", volumesWritten));
+    String[] names = new String[] { READ, WRITE, COMPUTE, READ_WAIT, WRITE_WAIT };
+    for (String name : names) {
+      buf.append(String.format("%12s: %-12.4f\n", name, tracker.total(name)));
+    }
+    buf.append(String.format("%12s: %-12.4f\n", "hiddenIO", hidden));
+    buf.append(String.format("%12s: %-12.4f\n", "elapsed", elapsed));
+    if (elapsed > 0)
+      buf.append(String.format("%12s: %-12.4f", "speedup", serial / elapsed));
+    return buf.toString();
+  }
+
+  private static int indexOf(ISeismicVolume[] volumes, ISeismicVolume volume) {
+    for (int i = 0; i < volumes.length; i++) {
+      if (volumes[i] == volume)
+        return i;
+    }
+    throw new IllegalArgumentException("Volume is not managed by this pipeline");
+  }
+}
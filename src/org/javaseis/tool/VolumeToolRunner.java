@@ -6,26 +6,45 @@ import java.util.concurrent.ExecutionException;
 import org.javaseis.grid.GridDefinition;
 import org.javaseis.services.ParameterService;
 import org.javaseis.volume.ISeismicVolume;
-import org.javaseis.volume.SeismicVolume;
+import org.javaseis.volume.VolumePool;
 
 import beta.javaseis.distributed.Decomposition;
 import beta.javaseis.distributed.DistributedArray;
 import beta.javaseis.parallel.IParallelContext;
+import beta.javaseis.parallel.ParallelException;
 import beta.javaseis.parallel.ParallelTask;
 import beta.javaseis.parallel.ParallelTaskExecutor;
 
+/**
+ * Runs a chain of volume tools in memory, passing each volume from one tool to
+ * the next without intermediate files.
+ * <p>
+ * The first tool in the list is the source for the flow and emits volumes
+ * through outputVolume. Each following tool receives them through
+ * processVolume and returns true when it has produced an output volume, or
+ * false if it is buffering input. Once all upstream tools are exhausted, the
+ * remaining output of each tool is flushed through outputVolume and pushed
+ * down the rest of the chain.
+ * <p>
+ * Each task allocates two volumes sized for the largest grid in the flow and
+ * alternates between them as input and output, so no volumes are allocated
+ * while the flow is running. The volumes are held outside the heap when the
+ * volumeStorage parameter is direct or mapped, see OffHeapSeismicVolume.
+ *
+ * @author chuck
+ *
+ */
 public class VolumeToolRunner {
   List<IVolumeTool> tools;
   ToolContext[] toolContext;
-  ISeismicVolume[] vol;
   int toolCount;
-  IParallelContext pc;
 
   public VolumeToolRunner(List<IVolumeTool> toolList) {
+    if (toolList == null || toolList.size() == 0)
+      throw new IllegalArgumentException("Tool list is empty");
     tools = toolList;
     toolCount = toolList.size();
     toolContext = new ToolContext[toolCount];
-    vol = new ISeismicVolume[2];
   }
 
   public static void exec(ParameterService parms, List<IVolumeTool> toolList) {
@@ -35,12 +54,12 @@ public class VolumeToolRunner {
     // Now run the tool handler which calls the implementor's methods
     int ntask = Integer.parseInt(parms.getParameter("threadCount", "1"));
     try {
-      ParallelTaskExecutor.runTasks(VolumeRunnerTask.class, ntask);
+      ParallelTaskExecutor.runTasks(VolumeRunnerTask.class, ntask, (Object) vtr);
     } catch (ExecutionException e) {
       e.printStackTrace();
       throw new RuntimeException(e);
     }
-
+    vtr.serialFinish();
   }
 
   public void serialInit(ParameterService parms) {
@@ -50,11 +69,13 @@ public class VolumeToolRunner {
     GridDefinition currentGrid = (GridDefinition) toolContext[0].getToolGlobal(ToolContext.OUTPUT_GRID);
     if (currentGrid == null)
       throw new RuntimeException("First tool did not provide an outputGridDefinition");
+    toolContext[0].putToolGlobal(ToolContext.TOOL_CLASS, (Object) (tool0.getClass()));
     for (int i = 1; i < tools.size(); i++) {
       toolContext[i] = new ToolContext(parms);
       toolContext[i].mergeFlowMaps(toolContext[i - 1]);
       toolContext[i].putToolGlobal(ToolContext.INPUT_GRID, currentGrid);
       toolContext[i].putToolGlobal(ToolContext.OUTPUT_GRID, currentGrid);
+      toolContext[i].putToolGlobal(ToolContext.TOOL_CLASS, (Object) (tools.get(i).getClass()));
       tools.get(i).serialInit(toolContext[i]);
       currentGrid = (GridDefinition) toolContext[i].getToolGlobal(ToolContext.OUTPUT_GRID);
       if (currentGrid == null) throw new RuntimeException("Tool did not provide an outputGridDefinition");
@@ -68,13 +89,22 @@ public class VolumeToolRunner {
   }
 
   public static long getShapeLength(IParallelContext pc, long[] shape) {
-    int[] paddedShape = new int[] { (int) shape[0], (int) shape[2],
+    int[] paddedShape = new int[] { (int) shape[0], (int) shape[1],
         (int) Decomposition.paddedLength(shape[2], pc.size()) };
-    paddedShape[2] = (int) Decomposition.paddedLength(shape[2], pc.size());
     return DistributedArray.getShapeLength(3, 1, paddedShape);
   }
 
-  public class VolumeRunnerTask extends ParallelTask {
+  public static class VolumeRunnerTask extends ParallelTask {
+    /** Tool instances, contexts and output grids for this task */
+    IVolumeTool[] tools;
+    ToolContext[] toolContext;
+    GridDefinition[] grids;
+    /** Ping-pong volumes shared by all tools in the flow */
+    ISeismicVolume[] vol;
+    /** Count of volumes produced by each tool */
+    long[] volumeCount;
+    int toolCount;
+    IParallelContext pc;
 
     @Override
     public void run() {
@@ -83,43 +113,92 @@ public class VolumeToolRunner {
       parallelFinish();
     }
 
-    public void parallelProcess() {// Create the input and output seismic volumes
-
-      int inputToolIndex = 0;
-      int ivol = 0;
-      while (inputToolIndex < toolCount) {
-        for (int i = inputToolIndex; i < toolCount; i++) {
+    public void parallelProcess() {
+      // Flush each tool in flow order. The first tool is the source, so all of
+      // its volumes arrive here. Later tools only hold output that they buffered
+      // while upstream volumes were pushed through them.
+      for (int i = 0; i < toolCount; i++) {
+        vol[0].reshape(grids[i]);
+        while (tools[i].outputVolume(toolContext[i], vol[0])) {
+          volumeCount[i]++;
+          processVolume(i + 1, 0);
+          vol[0].reshape(grids[i]);
         }
       }
     }
 
+    /**
+     * Push a volume down the chain starting at a given tool, alternating
+     * between the two work volumes as input and output
+     * @param firstTool - index of the first tool to receive the volume
+     * @param ibuf - index of the work volume holding the input
+     */
+    public void processVolume(int firstTool, int ibuf) {
+      for (int i = firstTool; i < toolCount; i++) {
+        ISeismicVolume output = vol[1 - ibuf];
+        output.reshape(grids[i]);
+        // Tool is buffering, nothing more to pass along for now
+        if (tools[i].processVolume(toolContext[i], vol[ibuf], output) == false)
+          return;
+        volumeCount[i]++;
+        ibuf = 1 - ibuf;
+      }
+    }
+
+    @SuppressWarnings("unchecked")
     public void parallelInit() {
-      IParallelContext pc = this.getParallelContext();
-      toolContext[0].setParallelContext(pc);
-      tools.get(0).parallelInit(toolContext[0]);
-      GridDefinition currentGrid = (GridDefinition) toolContext[0].getToolGlobal(ToolContext.OUTPUT_GRID);
-      long maxlength = getShapeLength(pc, currentGrid.getAxisLengths());
-      for (int i = 1; i < toolCount; i++) {
+      VolumeToolRunner runner = (VolumeToolRunner) super.getTaskObject();
+      pc = this.getParallelContext();
+      ParallelException pe = new ParallelException(pc);
+      toolCount = runner.toolCount;
+      tools = new IVolumeTool[toolCount];
+      toolContext = new ToolContext[toolCount];
+      grids = new GridDefinition[toolCount];
+      volumeCount = new long[toolCount];
+      vol = new ISeismicVolume[2];
+      // Each task gets its own tool instances and contexts
+      Exception ex = null;
+      for (int i = 0; i < toolCount; i++) {
+        toolContext[i] = new ToolContext(runner.toolContext[i]);
         toolContext[i].setParallelContext(pc);
+        Class<IVolumeTool> toolClass = (Class<IVolumeTool>) toolContext[i].getToolGlobal(ToolContext.TOOL_CLASS);
+        try {
+          tools[i] = toolClass.newInstance();
+        } catch (InstantiationException | IllegalAccessException e) {
+          ex = e;
+        }
+        pe.exitOnException(ex, 1);
+      }
+      tools[0].parallelInit(toolContext[0]);
+      grids[0] = (GridDefinition) toolContext[0].getToolGlobal(ToolContext.OUTPUT_GRID);
+      long maxlength = getShapeLength(pc, grids[0].getAxisLengths());
+      for (int i = 1; i < toolCount; i++) {
         toolContext[i].mergeFlowMaps(toolContext[i - 1]);
-        toolContext[i].putToolGlobal(ToolContext.INPUT_GRID, currentGrid);
-        tools.get(i).parallelInit(toolContext[i]);
-        currentGrid = (GridDefinition) toolContext[i].getToolGlobal(ToolContext.OUTPUT_GRID);
-        maxlength = Math.max(maxlength, getShapeLength(pc, currentGrid.getAxisLengths()));
+        toolContext[i].putToolGlobal(ToolContext.INPUT_GRID, grids[i - 1]);
+        tools[i].parallelInit(toolContext[i]);
+        grids[i] = (GridDefinition) toolContext[i].getToolGlobal(ToolContext.OUTPUT_GRID);
+        maxlength = Math.max(maxlength, getShapeLength(pc, grids[i].getAxisLengths()));
       }
       toolContext[0].mergeFlowMaps(toolContext[toolCount - 1]);
-      vol[0] = new SeismicVolume(pc, (GridDefinition) toolContext[0].getToolGlobal(ToolContext.OUTPUT_GRID),
-          maxlength);
+      // Heap or off-heap as set by the volumeStorage parameter
+      vol[0] = toolContext[0].borrowVolume(grids[0], maxlength);
       if (toolCount > 1) {
-        vol[1] = new SeismicVolume(pc,
-            (GridDefinition) toolContext[1].getToolGlobal(ToolContext.OUTPUT_GRID), maxlength);
+        vol[1] = toolContext[0].borrowVolume(grids[1], maxlength);
       }
     }
 
     public void parallelFinish() {
+      VolumePool pool = toolContext[0].getVolumePool();
+      pool.returnVolume(vol[0]);
+      if (toolCount > 1)
+        pool.returnVolume(vol[1]);
       for (int i = 0; i < toolCount; i++) {
-        tools.get(i).parallelFinish(toolContext[i]);
+        tools[i].parallelFinish(toolContext[i]);
+        pc.masterPrint("Tool " + i + " " + tools[i].getClass().getSimpleName() + " produced "
+            + volumeCount[i] + " volumes");
       }
+      // Pooled buffers are tied to this task's parallel context
+      pool.clear(pc);
     }
   }
 }
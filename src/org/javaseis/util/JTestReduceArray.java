@@ -0,0 +1,79 @@
+package org.javaseis.util;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.ExecutionException;
+
+import org.junit.Test;
+
+import beta.javaseis.parallel.ICollective.Operation;
+import beta.javaseis.parallel.IParallelContext;
+import beta.javaseis.parallel.ParallelTask;
+import beta.javaseis.parallel.ParallelTaskExecutor;
+import beta.javaseis.parallel.UniprocessorContext;
+
+public class JTestReduceArray {
+  static final int NTASK = 3;
+  static final int N = 1001;
+
+  /**
+   * Each task reduces arrays that depend on its rank and records any mismatch
+   */
+  public static class ReduceTask extends ParallelTask {
+    @Override
+    public void run() {
+      String[] errors = (String[]) getTaskObject();
+      IParallelContext pc = getParallelContext();
+      int rank = pc.rank();
+      float[] f = new float[N];
+      double[] d = new double[N];
+      long[] c = new long[N];
+      float[] lo = new float[N];
+      for (int i = 0; i < N; i++) {
+        f[i] = i + rank;
+        d[i] = 1e-9 * i + rank;
+        c[i] = (1L << 50) + i * (rank + 1);
+        lo[i] = (i % NTASK == rank ? -i : i);
+      }
+      ReduceArray.reduceFloat(pc, f, Operation.SUM);
+      ReduceArray.reduceDouble(pc, d, Operation.SUM);
+      ReduceArray.reduceLong(pc, c, Operation.SUM);
+      ReduceArray.reduceFloat(pc, lo, Operation.MIN);
+      int rsum = NTASK * (NTASK - 1) / 2;
+      for (int i = 0; i < N; i++) {
+        if (f[i] != NTASK * i + rsum)
+          errors[rank] = "float sum at " + i + ": " + f[i];
+        if (Math.abs(d[i] - (NTASK * 1e-9 * i + rsum)) > 1e-14)
+          errors[rank] = "double sum at " + i + ": " + d[i];
+        if (c[i] != NTASK * (1L << 50) + (long) i * (rsum + NTASK))
+          errors[rank] = "long sum at " + i + ": " + c[i];
+        if (lo[i] != -i)
+          errors[rank] = "float min at " + i + ": " + lo[i];
+      }
+    }
+  }
+
+  @Test
+  public void testReduce() throws ExecutionException {
+    String[] errors = new String[NTASK];
+    ParallelTaskExecutor.runTasks(ReduceTask.class, NTASK, (Object) errors);
+    for (String error : errors)
+      assertNull(error, error);
+  }
+
+  @Test
+  public void testSingleTask() {
+    double[] d = new double[] { 1, 2, 3 };
+    ReduceArray.reduceDouble(new UniprocessorContext(), d, Operation.SUM);
+    assertArrayEquals(new double[] { 1, 2, 3 }, d, 0);
+  }
+
+  @Test
+  public void testHelpers() {
+    assertArrayEquals(new int[] { 2, 5 }, ReduceArray.usedRange(new long[] { 0, 0, 3, 0, 0, 1, 0 }));
+    assertArrayEquals(new int[] { 3, -1 }, ReduceArray.usedRange(new long[3]));
+    long[] counts = new long[] { 0, 4, 0, 7 };
+    ReduceArray.reduceCounts(new UniprocessorContext(), counts);
+    assertArrayEquals(new long[] { 0, 4, 0, 7 }, counts);
+  }
+}
@@ -19,6 +19,8 @@ import com.google.gson.JsonSyntaxException;
 public class JsonUtil {
   /** JSON for persistence */
   private static Gson gson = new GsonBuilder().setPrettyPrinting().create();
+  /** Compact JSON for one object per line */
+  private static Gson gsonLine = new Gson();
 
   /**
    * Serialize an object to a json string
@@ -40,6 +42,33 @@ public class JsonUtil {
     return gson.toJson(objClass.cast(parms));
   }
   
+  /**
+   * Serialize an object to a single line json string, for json lines files
+   * 
+   * @param parms - object to be serialized
+   * @return - json string without line breaks
+   */
+  public static String toJsonLine(Object parms) {
+    return gsonLine.toJson(parms);
+  }
+
+  /**
+   * Append an object to a json lines file, one object per line
+   * 
+   * @param parms - object to be serialized
+   * @param jsonLinesPath - file path, created if it does not exist
+   * @throws SeisException if the file cannot be written
+   */
+  public static void appendJsonLine(Object parms, String jsonLinesPath) throws SeisException {
+    try {
+      FileWriter fw = new FileWriter(jsonLinesPath, true);
+      fw.write(gsonLine.toJson(parms) + "\n");
+      fw.close();
+    } catch (JsonIOException | IOException e) {
+      throw new SeisException("Error appending object to path: " + jsonLinesPath, e);
+    }
+  }
+
   /**
    * Convert a jsonString to a JsonElement
    * @param jsonString input string
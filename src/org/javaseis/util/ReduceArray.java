@@ -0,0 +1,211 @@
+package org.javaseis.util;
+
+import java.util.Arrays;
+
+import org.javaseis.array.ElementType;
+
+import beta.javaseis.array.TransposeType;
+import beta.javaseis.distributed.Decomposition;
+import beta.javaseis.distributed.DistributedArray;
+import beta.javaseis.parallel.ICollective.Operation;
+import beta.javaseis.parallel.IParallelContext;
+
+/**
+ * Reductions of whole arrays over all tasks of a parallel context, the array
+ * counterpart of ReduceScalar.
+ * <p>
+ * The values are split into one chunk per task and exchanged with two
+ * transposes of a double precision DistributedArray, in the same way as
+ * ExampleParallel2D. The first transpose gives each task its chunk from every
+ * task, which it reduces, and the second sends the reduced chunks back to
+ * every task. An array of any length is reduced with two collective calls,
+ * instead of one scalar reduction per value.
+ * <p>
+ * Values are sent as doubles, so double values are reduced exactly as in a
+ * serial loop over the tasks, and longs are exact below 2^53 in magnitude.
+ * Every task must call with the same array length and operation.
+ *
+ * @author chuck
+ *
+ */
+public class ReduceArray {
+
+  /**
+   * Reduce floats over all tasks, in place
+   * @param pc - parallel context
+   * @param values - values on this task, replaced by the reduced values
+   * @param op - reduction operation
+   */
+  public static void reduceFloat(IParallelContext pc, float[] values, Operation op) {
+    if (pc.size() == 1 || values.length == 0)
+      return;
+    double[] dvalues = new double[values.length];
+    for (int i = 0; i < values.length; i++)
+      dvalues[i] = values[i];
+    reduce(pc, dvalues, op);
+    for (int i = 0; i < values.length; i++)
+      values[i] = (float) dvalues[i];
+  }
+
+  /**
+   * Reduce doubles over all tasks, in place
+   * @param pc - parallel context
+   * @param values - values on this task, replaced by the reduced values
+   * @param op - reduction operation
+   */
+  public static void reduceDouble(IParallelContext pc, double[] values, Operation op) {
+    if (pc.size() == 1 || values.length == 0)
+      return;
+    reduce(pc, values, op);
+  }
+
+  /**
+   * Reduce longs over all tasks, in place, exact while the values and the
+   * result are below 2^53 in magnitude
+   * @param pc - parallel context
+   * @param values - values on this task, replaced by the reduced values
+   * @param op - reduction operation
+   */
+  public static void reduceLong(IParallelContext pc, long[] values, Operation op) {
+    if (pc.size() == 1 || values.length == 0)
+      return;
+    double[] dvalues = new double[values.length];
+    for (int i = 0; i < values.length; i++)
+      dvalues[i] = values[i];
+    reduce(pc, dvalues, op);
+    for (int i = 0; i < values.length; i++)
+      values[i] = (long) dvalues[i];
+  }
+
+  /**
+   * Sum histogram counts over all tasks, in place. Only the range of buckets
+   * that hold counts on some task is sent, with one reduction for the range
+   * and one for the counts.
+   * @param pc - parallel context
+   * @param counts - bucket counts on this task, replaced by the sums
+   */
+  public static void reduceCounts(IParallelContext pc, long[] counts) {
+    if (pc.size() == 1)
+      return;
+    int[] range = usedRange(counts);
+    double[] ends = new double[] { range[0], -range[1] };
+    reduceDouble(pc, ends, Operation.MIN);
+    int lo = (int) ends[0];
+    int hi = (int) -ends[1];
+    if (hi < lo)
+      return;
+    long[] used = Arrays.copyOfRange(counts, lo, hi + 1);
+    reduceLong(pc, used, Operation.SUM);
+    System.arraycopy(used, 0, counts, lo, used.length);
+  }
+
+  /**
+   * Return the range of histogram buckets that hold counts
+   * @param counts - bucket counts
+   * @return first and last nonzero bucket, or {counts.length, -1} if all are
+   *         zero
+   */
+  public static int[] usedRange(long[] counts) {
+    int lo = counts.length, hi = -1;
+    for (int j = 0; j < counts.length; j++) {
+      if (counts[j] != 0) {
+        lo = Math.min(lo, j);
+        hi = j;
+      }
+    }
+    return new int[] { lo, hi };
+  }
+
+  /**
+   * Exchange and reduce chunks of values
+   */
+  private static void reduce(IParallelContext pc, double[] values, Operation op) {
+    int ntask = pc.size();
+    int n = values.length;
+    // Values per chunk, one chunk per task
+    int m = (n + ntask - 1) / ntask;
+    int[] shape = new int[] { m, ntask, ntask };
+    int[] dtypes = new int[] { Decomposition.NONE, Decomposition.BLOCK, Decomposition.BLOCK };
+    int[] tshape = DistributedArray.getTransposeShape(pc, 3, shape, dtypes);
+    DistributedArray da = new DistributedArray(pc, ElementType.DOUBLE, tshape, dtypes);
+    double[] trc = new double[tshape[0]];
+    // Task r puts its chunk k at [*,k,r]
+    da.resetTraceIterator();
+    while (da.hasNext()) {
+      da.next();
+      int[] pos = da.getPosition();
+      if (pos[1] >= ntask || pos[2] >= ntask)
+        continue;
+      Arrays.fill(trc, 0);
+      int i0 = pos[1] * m;
+      int len = Math.min(m, n - i0);
+      if (len > 0)
+        System.arraycopy(values, i0, trc, 0, len);
+      da.putTrace(trc, pos);
+    }
+    // Task k now holds chunk k of task s at [*,s,k]
+    da.transpose(TransposeType.T132);
+    double[] chunk = new double[m];
+    int k = -1;
+    boolean first = true;
+    da.resetTraceIterator();
+    while (da.hasNext()) {
+      da.next();
+      int[] pos = da.getPosition();
+      if (pos[1] >= ntask || pos[2] >= ntask)
+        continue;
+      k = pos[2];
+      da.getTrace(trc, pos);
+      if (first) {
+        System.arraycopy(trc, 0, chunk, 0, m);
+        first = false;
+      } else {
+        combine(chunk, trc, m, op);
+      }
+    }
+    // Send reduced chunk k back to every task, then transpose back so that
+    // task s holds every reduced chunk at [*,k,s]
+    System.arraycopy(chunk, 0, trc, 0, m);
+    da.resetTraceIterator();
+    while (da.hasNext()) {
+      da.next();
+      int[] pos = da.getPosition();
+      if (pos[2] == k)
+        da.putTrace(trc, pos);
+    }
+    da.transpose(TransposeType.T132);
+    da.resetTraceIterator();
+    while (da.hasNext()) {
+      da.next();
+      int[] pos = da.getPosition();
+      if (pos[1] >= ntask || pos[2] >= ntask)
+        continue;
+      da.getTrace(trc, pos);
+      int i0 = pos[1] * m;
+      int len = Math.min(m, n - i0);
+      if (len > 0)
+        System.arraycopy(trc, 0, values, i0, len);
+    }
+  }
+
+  private static void combine(double[] a, double[] b, int m, Operation op) {
+    for (int i = 0; i < m; i++) {
+      switch (op) {
+      case SUM:
+        a[i] += b[i];
+        break;
+      case PROD:
+        a[i] *= b[i];
+        break;
+      case MIN:
+        a[i] = Math.min(a[i], b[i]);
+        break;
+      case MAX:
+        a[i] = Math.max(a[i], b[i]);
+        break;
+      default:
+        throw new IllegalArgumentException("Unsupported reduction: " + op);
+      }
+    }
+  }
+}
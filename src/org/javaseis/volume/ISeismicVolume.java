@@ -24,6 +24,13 @@ public interface ISeismicVolume extends IRegularGrid {
   public long shapeLength();
   
   public void allocate(long maxLength);
+
+  /**
+   * Change the grid described by this volume, reusing the existing storage when
+   * it is large enough
+   * @param globalGridDefinition - new global grid for the volume
+   */
+  public void reshape(GridDefinition globalGridDefinition);
   
   public ITraceIterator getTraceIterator();
 }
@@ -0,0 +1,133 @@
+package org.javaseis.volume;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.javaseis.array.ElementType;
+import org.javaseis.examples.tool.ExampleStandAloneOutputTool;
+import org.javaseis.grid.GridDefinition;
+import org.javaseis.services.ParameterService;
+import org.javaseis.tool.IVolumeTool;
+import org.javaseis.tool.ToolContext;
+import org.javaseis.tool.VolumeToolRunner;
+import org.junit.Test;
+
+import beta.javaseis.array.ITraceIterator;
+import beta.javaseis.parallel.UniprocessorContext;
+
+public class JTestOffHeapSeismicVolume {
+
+  @Test
+  public void testTraces() {
+    for (OffHeapSeismicVolume.Storage storage : OffHeapSeismicVolume.Storage.values()) {
+      GridDefinition grid = GridDefinition.getDefault(3, new int[] { 50, 20, 7 });
+      OffHeapSeismicVolume vol = new OffHeapSeismicVolume(new UniprocessorContext(), grid, storage, null,
+          ElementType.FLOAT, 1, 0);
+      assertArrayEquals(new int[] { 50, 20, 7 }, vol.getLocalLengths());
+      ITraceIterator ti = vol.getTraceIterator();
+      int ntrc = 0;
+      while (ti.hasNext()) {
+        float[] trc = ti.next();
+        int[] pos = ti.getPosition();
+        for (int i = 0; i < trc.length; i++)
+          trc[i] = 1000 * pos[2] + pos[1] + i / 100f;
+        ti.putTrace(trc);
+        ntrc++;
+      }
+      assertEquals(20 * 7, ntrc);
+      float[] trc = new float[50];
+      vol.getTrace(new int[] { 0, 13, 5 }, trc);
+      assertEquals(5013.49f, trc[49], 1e-3);
+      assertEquals(6019.25f, vol.getSample(new int[] { 25, 19, 6 }), 0);
+      // Staging array round trip used for I/O
+      vol.storeToArray();
+      vol.putSample(0f, new int[] { 25, 19, 6 });
+      vol.loadFromArray();
+      assertEquals(6019.25f, vol.getSample(new int[] { 25, 19, 6 }), 0);
+      // The heap copy is released once it has been loaded
+      assertFalse(vol.stagingAllocated);
+      assertEquals(4L * 50 * 20 * 7, vol.getLocalBytes());
+    }
+  }
+
+  @Test
+  public void testReshape() {
+    GridDefinition grid = GridDefinition.getDefault(3, new int[] { 50, 20, 7 });
+    OffHeapSeismicVolume vol = new OffHeapSeismicVolume(new UniprocessorContext(), grid);
+    long allocated = vol.allocatedLength;
+    vol.reshape(GridDefinition.getDefault(3, new int[] { 50, 10, 3 }));
+    assertEquals(allocated, vol.allocatedLength);
+    assertArrayEquals(new int[] { 50, 10, 3 }, vol.getLengths());
+    vol.putSample(3f, new int[] { 49, 9, 2 });
+    assertEquals(3f, vol.getSample(new int[] { 49, 9, 2 }), 0);
+    assertEquals(50L * 20 * 7, vol.allocatedLength);
+    vol.reshape(GridDefinition.getDefault(3, new int[] { 50, 40, 9 }));
+    assertTrue(vol.allocatedLength >= 50L * 40 * 9);
+    // The far corner of the larger grid is inside the new storage
+    vol.putSample(5f, new int[] { 49, 39, 8 });
+    assertEquals(5f, vol.getSample(new int[] { 49, 39, 8 }), 0);
+  }
+
+  /**
+   * Pass-through tool that counts the traces it sees
+   */
+  public static class CountTool implements IVolumeTool {
+    static AtomicLong traces = new AtomicLong();
+    static AtomicLong offHeap = new AtomicLong();
+    static AtomicLong outOfRange = new AtomicLong();
+
+    @Override
+    public void serialInit(ToolContext serialToolContext) {
+    }
+
+    @Override
+    public void parallelInit(ToolContext toolContext) {
+    }
+
+    @Override
+    public boolean processVolume(ToolContext toolContext, ISeismicVolume input, ISeismicVolume output) {
+      if (input instanceof OffHeapSeismicVolume)
+        offHeap.incrementAndGet();
+      ITraceIterator ti = input.getTraceIterator();
+      while (ti.hasNext()) {
+        for (float v : ti.next()) {
+          if (v < -1 || v > 1)
+            outOfRange.incrementAndGet();
+        }
+        traces.incrementAndGet();
+      }
+      output.copyVolume(input);
+      return true;
+    }
+
+    @Override
+    public boolean outputVolume(ToolContext toolContext, ISeismicVolume output) {
+      return false;
+    }
+
+    @Override
+    public void parallelFinish(ToolContext toolContext) {
+    }
+
+    @Override
+    public void serialFinish(ToolContext toolContext) {
+    }
+  }
+
+  @Test
+  public void testUnchangedTool() {
+    ParameterService parms = new ParameterService(new String[] { "threadCount=2",
+        ToolContext.VOLUME_STORAGE + "=direct" });
+    List<IVolumeTool> tools = new ArrayList<IVolumeTool>();
+    tools.add(new ExampleStandAloneOutputTool());
+    tools.add(new CountTool());
+    VolumeToolRunner.exec(parms, tools);
+    // The example tool emits 9*5 volumes of 201*201 traces, in [-1,1]
+    assertEquals(45L * 201 * 201, CountTool.traces.get());
+    assertEquals(2 * 45, CountTool.offHeap.get());
+    assertEquals(0, CountTool.outOfRange.get());
+  }
+}
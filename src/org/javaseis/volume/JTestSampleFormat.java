@@ -0,0 +1,86 @@
+package org.javaseis.volume;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.javaseis.array.ElementType;
+import org.junit.Test;
+
+public class JTestSampleFormat {
+
+  @Test
+  public void testFromElementType() {
+    assertEquals(SampleFormat.INT8, SampleFormat.fromElementType(ElementType.BYTE));
+    assertEquals(SampleFormat.INT16, SampleFormat.fromElementType(ElementType.SHORT));
+    assertEquals(SampleFormat.FLOAT, SampleFormat.fromElementType(ElementType.FLOAT));
+    assertEquals(SampleFormat.DOUBLE, SampleFormat.fromElementType(ElementType.DOUBLE));
+    assertEquals(ElementType.FLOAT, SampleFormat.COMPLEX.getElementType());
+    for (SampleFormat f : new SampleFormat[] { SampleFormat.INT8, SampleFormat.INT16, SampleFormat.FLOAT,
+        SampleFormat.DOUBLE }) {
+      assertEquals(f, SampleFormat.fromElementType(f.getElementType()));
+    }
+    try {
+      SampleFormat.fromElementType(ElementType.LONG);
+      fail("LONG volumes are not supported");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testShortRoundTrip() {
+    int n = 1000;
+    float[] in = new float[n];
+    Random r = new Random(11);
+    float peak = 0;
+    for (int i = 0; i < n; i++) {
+      in[i] = (float) (100 * r.nextGaussian());
+      peak = Math.max(peak, Math.abs(in[i]));
+    }
+    float scale = SampleFormat.INT16.scaleFor(peak);
+    short[] q = new short[n];
+    float[] out = new float[n];
+    SampleFormat.quantize(in, q, n, scale);
+    SampleFormat.dequantize(q, out, n, scale);
+    for (int i = 0; i < n; i++) {
+      assertEquals(in[i], out[i], 0.5 * scale * 1.0001);
+      // The scalar conversion used by putSample stores the same values
+      assertEquals(q[i], SampleFormat.INT16.toStored(in[i], scale), 0);
+    }
+  }
+
+  @Test
+  public void testByteRoundTrip() {
+    int n = 1000;
+    float[] in = new float[n];
+    Random r = new Random(13);
+    for (int i = 0; i < n; i++)
+      in[i] = 2 * r.nextFloat() - 1;
+    float scale = SampleFormat.INT8.scaleFor(1);
+    byte[] q = new byte[n];
+    float[] out = new float[n];
+    SampleFormat.quantize(in, q, n, scale);
+    SampleFormat.dequantize(q, out, n, scale);
+    for (int i = 0; i < n; i++) {
+      assertEquals(in[i], out[i], 0.5 * scale * 1.0001);
+      assertEquals(q[i], SampleFormat.INT8.toStored(in[i], scale), 0);
+    }
+  }
+
+  @Test
+  public void testClipping() {
+    float scale = 0.5f;
+    float[] in = new float[] { 1e6f, -1e6f, 0f, 0.26f };
+    short[] s = new short[4];
+    byte[] b = new byte[4];
+    SampleFormat.quantize(in, s, 4, scale);
+    SampleFormat.quantize(in, b, 4, scale);
+    assertArrayEquals(new short[] { Short.MAX_VALUE, -Short.MAX_VALUE, 0, 1 }, s);
+    assertArrayEquals(new byte[] { Byte.MAX_VALUE, -Byte.MAX_VALUE, 0, 1 }, b);
+    assertEquals(Short.MAX_VALUE, SampleFormat.INT16.toStored(1e6f, scale), 0);
+    assertEquals(-Byte.MAX_VALUE, SampleFormat.INT8.toStored(-1e6f, scale), 0);
+    assertEquals(1e6f, SampleFormat.FLOAT.toStored(1e6f, scale), 0);
+    assertEquals(1f, SampleFormat.INT8.scaleFor(0), 0);
+  }
+}
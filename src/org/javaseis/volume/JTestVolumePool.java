@@ -0,0 +1,46 @@
+package org.javaseis.volume;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import beta.javaseis.distributed.Decomposition;
+import beta.javaseis.distributed.DistributedArray;
+import beta.javaseis.parallel.UniprocessorContext;
+
+public class JTestVolumePool {
+
+  @Test
+  public void testReuseAndClear() {
+    VolumePool pool = new VolumePool(0);
+    UniprocessorContext pc = new UniprocessorContext();
+    int[] shape = new int[] { 100, 10, 10 };
+    DistributedArray a = pool.borrowArray(pc, float.class, 1, shape, Decomposition.BLOCK);
+    pool.returnArray(a);
+    assertSame(a, pool.borrowArray(pc, float.class, 1, shape, Decomposition.BLOCK));
+    pool.returnArray(a);
+    assertEquals(4 * 100 * 10 * 10, pool.getIdleBytes());
+    // A later run has a new context, so the buffers of this one are dropped
+    pool.clear(pc);
+    assertEquals(0, pool.getIdleBytes());
+    UniprocessorContext next = new UniprocessorContext();
+    DistributedArray b = pool.borrowArray(next, float.class, 1, shape, Decomposition.BLOCK);
+    assertNotSame(a, b);
+    pool.clear(next);
+    assertEquals(0, pool.getBusyBytes());
+  }
+
+  @Test
+  public void testLimit() {
+    VolumePool pool = new VolumePool(0);
+    UniprocessorContext pc = new UniprocessorContext();
+    for (int n = 1; n <= 4; n++) {
+      int[] shape = new int[] { 100, 10, n };
+      pool.returnArray(pool.borrowArray(pc, float.class, 1, shape, Decomposition.BLOCK));
+    }
+    assertEquals(4000 * (1 + 2 + 3 + 4), pool.getIdleBytes());
+    // A new ceiling evicts the least recently returned buffers
+    pool.setLimit(4000 * 8);
+    assertEquals(4000 * (3 + 4), pool.getIdleBytes());
+  }
+}
@@ -0,0 +1,536 @@
+package org.javaseis.volume;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+
+import org.javaseis.array.ElementType;
+import org.javaseis.grid.GridDefinition;
+import org.javaseis.properties.AxisDefinition;
+
+import beta.javaseis.array.ITraceIterator;
+import beta.javaseis.distributed.Decomposition;
+import beta.javaseis.distributed.DistributedArray;
+import beta.javaseis.parallel.IParallelContext;
+import beta.javaseis.regulargrid.IRegularGrid;
+import beta.javaseis.regulargrid.OrientationType;
+import beta.javaseis.regulargrid.RegularGrid;
+
+/**
+ * Seismic volume that keeps its samples outside the Java heap.
+ * <p>
+ * Samples are held in direct ByteBuffers, or in a memory mapped scratch file,
+ * so multi-GB volumes do not inflate the heap or add to garbage collection
+ * pauses. The volume is decomposed by frames across tasks in the same way as a
+ * block decomposed DistributedArray, and exposes the same trace iterator and
+ * sample accessors as SeismicVolume so tools run unchanged.
+ * <p>
+ * Storage is split into segments of whole traces so no segment exceeds the 2GB
+ * limit of a single buffer, whatever the size of a frame.
+ * <p>
+ * The distributed I/O services read and write DistributedArrays, so the
+ * volume stages I/O through a heap DistributedArray with the same shape and
+ * decomposition. It is only allocated when getDistributedArray is called, its
+ * contents are copied to and from the off-heap samples with loadFromArray and
+ * storeToArray, and it is released after loadFromArray and by releaseArray,
+ * so the heap only holds a copy of the volume during a read or write.
+ * StandAloneVolumeTool does this around each read and write, see VolumeIO, so
+ * tools run unchanged on either kind of volume. Only float samples with block
+ * decomposition are supported.
+ *
+ * @author chuck
+ *
+ */
+public class OffHeapSeismicVolume implements ISeismicVolume, IRegularGrid {
+
+  /** Kind of storage used for the volume samples */
+  public enum Storage {
+    /** Direct ByteBuffers allocated outside the heap */
+    DIRECT,
+    /** Memory mapped scratch file */
+    MAPPED,
+  }
+
+  GridDefinition globalGrid;
+
+  Storage storage;
+
+  File scratchDirectory;
+
+  ElementType elementType;
+
+  int elementCount;
+
+  int[] volumeShape, localShape;
+
+  /** Global index of the first local frame */
+  int frameOffset;
+
+  /** Trace length in floats, including element count */
+  int traceLength;
+
+  int tracesPerSegment;
+
+  /** Global length the storage can hold, as for SeismicVolume */
+  long allocatedLength;
+
+  FloatBuffer[] segments;
+
+  /** Heap array for staging I/O, only allocated during a read or write */
+  DistributedArray staging;
+
+  boolean stagingAllocated;
+
+  long stagingLength;
+
+  IParallelContext pc;
+
+  /**
+   * Create a volume backed by direct buffers
+   * @param parallelContext - parallel context for the decomposition
+   * @param globalGridDefinition - grid for the volume, only the first 3 axes
+   *          are used
+   */
+  public OffHeapSeismicVolume(IParallelContext parallelContext, GridDefinition globalGridDefinition) {
+    this(parallelContext, globalGridDefinition, Storage.DIRECT, null, ElementType.FLOAT, 1, 0);
+  }
+
+  /**
+   * Create a volume backed by a memory mapped scratch file
+   * @param parallelContext - parallel context for the decomposition
+   * @param globalGridDefinition - grid for the volume, only the first 3 axes
+   *          are used
+   * @param scratchDir - directory for the scratch file
+   */
+  public OffHeapSeismicVolume(IParallelContext parallelContext, GridDefinition globalGridDefinition,
+      File scratchDir) {
+    this(parallelContext, globalGridDefinition, Storage.MAPPED, scratchDir, ElementType.FLOAT, 1, 0);
+  }
+
+  /**
+   * Create a volume
+   * @param parallelContext - parallel context for the decomposition
+   * @param globalGridDefinition - grid for the volume, only the first 3 axes
+   *          are used
+   * @param volumeStorage - kind of storage
+   * @param scratchDir - directory for the scratch file of mapped storage, null
+   *          for java.io.tmpdir
+   * @param volumeElementType - element type, must be stored as float
+   * @param volumeElementCount - elements per sample
+   * @param maxLength - minimum global storage length, as for the SeismicVolume
+   *          constructor
+   */
+  public OffHeapSeismicVolume(IParallelContext parallelContext, GridDefinition globalGridDefinition,
+      Storage volumeStorage, File scratchDir, ElementType volumeElementType, int volumeElementCount,
+      long maxLength) {
+    if (SampleFormat.fromElementType(volumeElementType) != SampleFormat.FLOAT)
+      throw new IllegalArgumentException("Off-heap volumes only hold float samples: " + volumeElementType);
+    pc = parallelContext;
+    storage = volumeStorage;
+    scratchDirectory = (scratchDir != null ? scratchDir : new File(System.getProperty("java.io.tmpdir")));
+    elementType = volumeElementType;
+    elementCount = volumeElementCount;
+    long length = setGrids(globalGridDefinition);
+    allocate(Math.max(maxLength, length));
+  }
+
+  /**
+   * Set the global grid, volume shape and local frame range
+   * @return global length in floats for the new shape, padded for the
+   *         decomposition
+   */
+  private long setGrids(GridDefinition globalGridDefinition) {
+    globalGrid = globalGridDefinition;
+    volumeShape = new int[3];
+    for (int i = 0; i < 3; i++) {
+      volumeShape[i] = (int) globalGridDefinition.getAxisLength(i);
+    }
+    traceLength = elementCount * volumeShape[0];
+    // Block decomposition over frames, matching DistributedArray
+    int framesPerTask = (int) (Decomposition.paddedLength(volumeShape[2], pc.size()) / pc.size());
+    frameOffset = pc.rank() * framesPerTask;
+    int localFrames = Math.max(0, Math.min(framesPerTask, volumeShape[2] - frameOffset));
+    localShape = new int[] { volumeShape[0], volumeShape[1], localFrames };
+    long length = (long) traceLength * volumeShape[1] * framesPerTask * pc.size();
+    if (staging != null && stagingAllocated && length <= stagingLength) {
+      staging.setShape(volumeShape);
+    } else {
+      stagingLength = length;
+      releaseArray();
+    }
+    return length;
+  }
+
+  /**
+   * Allocate storage
+   * @param maxLength - global length in floats, split evenly over the tasks
+   */
+  @Override
+  public void allocate(long maxLength) {
+    if (4L * traceLength > Integer.MAX_VALUE)
+      throw new IllegalArgumentException("Trace of " + traceLength + " floats does not fit in one buffer");
+    long localLength = (maxLength + pc.size() - 1) / pc.size();
+    tracesPerSegment = Math.max(1, (Integer.MAX_VALUE / 4) / Math.max(1, traceLength));
+    long traceCount = (localLength + traceLength - 1) / Math.max(1, traceLength);
+    int nseg = (int) Math.max(1, (traceCount + tracesPerSegment - 1) / tracesPerSegment);
+    segments = new FloatBuffer[nseg];
+    try {
+      if (storage == Storage.MAPPED) {
+        File scratch = File.createTempFile("OffHeapSeismicVolume", ".scratch", scratchDirectory);
+        scratch.deleteOnExit();
+        try (RandomAccessFile raf = new RandomAccessFile(scratch, "rw")) {
+          FileChannel fc = raf.getChannel();
+          for (int i = 0; i < nseg; i++) {
+            long offset = 4L * i * tracesPerSegment * traceLength;
+            segments[i] = fc.map(FileChannel.MapMode.READ_WRITE, offset, segmentBytes(i, traceCount))
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+          }
+        }
+        // Mappings stay valid once the file is unlinked
+        scratch.delete();
+      } else {
+        for (int i = 0; i < nseg; i++) {
+          segments[i] = ByteBuffer.allocateDirect((int) segmentBytes(i, traceCount))
+              .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        }
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Could not map scratch file in " + scratchDirectory, e);
+    }
+    allocatedLength = traceCount * traceLength * pc.size();
+  }
+
+  /**
+   * Return the size of a segment in bytes, at most Integer.MAX_VALUE
+   */
+  private long segmentBytes(int iseg, long traceCount) {
+    long traces = Math.min(tracesPerSegment, traceCount - (long) iseg * tracesPerSegment);
+    return 4L * traces * traceLength;
+  }
+
+  @Override
+  public void reshape(GridDefinition globalGridDefinition) {
+    if (globalGridDefinition == globalGrid)
+      return;
+    int oldTraceLength = traceLength;
+    long length = setGrids(globalGridDefinition);
+    // Segments hold whole traces, so storage is only reused for the same trace length
+    if (length > allocatedLength || traceLength != oldTraceLength)
+      allocate(length);
+  }
+
+  /**
+   * Return the local trace number of a trace, counting over all segments
+   */
+  private long localTrace(int localFrame, int trace) {
+    return (long) localFrame * volumeShape[1] + trace;
+  }
+
+  private FloatBuffer segment(long localTrace) {
+    return segments[(int) (localTrace / tracesPerSegment)];
+  }
+
+  /**
+   * Return the buffer index of a sample within its segment
+   */
+  private int offset(long localTrace, int sample) {
+    return (int) (localTrace % tracesPerSegment) * traceLength + sample;
+  }
+
+  private int localFrame(int[] position) {
+    int frame = position[2] - frameOffset;
+    if (frame < 0 || frame >= localShape[2])
+      throw new IllegalArgumentException("Frame " + position[2] + " is not local to task " + pc.rank());
+    return frame;
+  }
+
+  /**
+   * Copy a trace out of the volume
+   * @param position - global position of the trace
+   * @param trace - output trace
+   */
+  public void getTrace(int[] position, float[] trace) {
+    long t = localTrace(localFrame(position), position[1]);
+    FloatBuffer fb = segment(t).duplicate();
+    fb.position(offset(t, 0));
+    fb.get(trace, 0, traceLength);
+  }
+
+  /**
+   * Copy a trace into the volume
+   * @param position - global position of the trace
+   * @param trace - input trace
+   */
+  public void putTrace(int[] position, float[] trace) {
+    long t = localTrace(localFrame(position), position[1]);
+    FloatBuffer fb = segment(t).duplicate();
+    fb.position(offset(t, 0));
+    fb.put(trace, 0, traceLength);
+  }
+
+  @Override
+  public long shapeLength() {
+    long length = elementCount;
+    for (int i = 0; i < 3; i++) {
+      length *= volumeShape[i];
+    }
+    return length;
+  }
+
+  /**
+   * Return the local storage of the volume in bytes
+   */
+  public long getLocalBytes() {
+    return 4L * traceLength * volumeShape[1] * localShape[2];
+  }
+
+  /**
+   * Return the heap array used to stage I/O, allocating it if it was released.
+   * It only holds the samples of the volume after storeToArray, and samples put
+   * in it only reach the volume with loadFromArray.
+   */
+  @Override
+  public DistributedArray getDistributedArray() {
+    if (!stagingAllocated) {
+      staging.allocate();
+      stagingAllocated = true;
+    }
+    return staging;
+  }
+
+  /**
+   * Release the heap staging array. The next call to getDistributedArray
+   * allocates a new one.
+   */
+  public void releaseArray() {
+    // Not allocated until it is needed for I/O
+    staging = new DistributedArray(pc, float.class, 3, elementCount, volumeShape, Decomposition.BLOCK,
+        stagingLength);
+    stagingAllocated = false;
+  }
+
+  /**
+   * Copy the local traces of the staging array into the volume, after it has
+   * been filled by a read, and release the staging array
+   */
+  public void loadFromArray() {
+    DistributedArray da = getDistributedArray();
+    float[] trc = new float[traceLength];
+    int[] position = new int[3];
+    for (int j = 0; j < localShape[2]; j++) {
+      position[2] = j + frameOffset;
+      for (int i = 0; i < volumeShape[1]; i++) {
+        position[1] = i;
+        da.getTrace(trc, position);
+        putTrace(position, trc);
+      }
+    }
+    releaseArray();
+  }
+
+  /**
+   * Copy the local traces of the volume into the staging array, before it is
+   * written. Call releaseArray once the write is done.
+   */
+  public void storeToArray() {
+    DistributedArray da = getDistributedArray();
+    float[] trc = new float[traceLength];
+    int[] position = new int[3];
+    for (int j = 0; j < localShape[2]; j++) {
+      position[2] = j + frameOffset;
+      for (int i = 0; i < volumeShape[1]; i++) {
+        position[1] = i;
+        getTrace(position, trc);
+        da.putTrace(trc, position);
+      }
+    }
+  }
+
+  /**
+   * Return the orientation of the staging array, which is never transposed
+   */
+  @Override
+  public OrientationType getOrientation() {
+    return new RegularGrid(staging).getOrientation();
+  }
+
+  @Override
+  public int getNumDimensions() {
+    return 3;
+  }
+
+  @Override
+  public int[] getLengths() {
+    return volumeShape.clone();
+  }
+
+  @Override
+  public int[] getLocalLengths() {
+    return localShape.clone();
+  }
+
+  @Override
+  public double[] getDeltas() {
+    double[] deltas = new double[3];
+    for (int i = 0; i < 3; i++) {
+      deltas[i] = globalGrid.getAxis(i).getPhysicalDelta();
+    }
+    return deltas;
+  }
+
+  @Override
+  public boolean isPositionLocal(int[] position) {
+    int frame = position[2] - frameOffset;
+    return frame >= 0 && frame < localShape[2];
+  }
+
+  @Override
+  public float getSample(int[] position) {
+    long t = localTrace(localFrame(position), position[1]);
+    return segment(t).get(offset(t, position[0]));
+  }
+
+  @Override
+  public float getFloat(int[] position) {
+    return getSample(position);
+  }
+
+  @Override
+  public int getInt(int[] position) {
+    return (int) getSample(position);
+  }
+
+  @Override
+  public double getDouble(int[] position) {
+    return getSample(position);
+  }
+
+  @Override
+  public void putSample(float val, int[] position) {
+    long t = localTrace(localFrame(position), position[1]);
+    segment(t).put(offset(t, position[0]), val);
+  }
+
+  @Override
+  public void putSample(double val, int[] position) {
+    putSample((float) val, position);
+  }
+
+  @Override
+  public int localToGlobal(int dimension, int index) {
+    return (dimension == 2 ? index + frameOffset : index);
+  }
+
+  @Override
+  public int globalToLocal(int dimension, int index) {
+    return (dimension == 2 ? index - frameOffset : index);
+  }
+
+  @Override
+  public int[] localPosition(int[] pos) {
+    return new int[] { pos[0], pos[1], pos[2] - frameOffset };
+  }
+
+  @Override
+  public void worldCoords(int[] pos, double[] wxyz) {
+    for (int i = 0; i < 3; i++) {
+      AxisDefinition axis = globalGrid.getAxis(i);
+      wxyz[i] = axis.getPhysicalOrigin() + pos[i] * axis.getPhysicalDelta();
+    }
+  }
+
+  @Override
+  public IRegularGrid createCopy() {
+    OffHeapSeismicVolume copy = new OffHeapSeismicVolume(pc, globalGrid, storage, scratchDirectory,
+        elementType, elementCount, allocatedLength);
+    copy.copyVolume(this);
+    return copy;
+  }
+
+  /**
+   * Copy the local traces of another volume with the same grid
+   */
+  @Override
+  public void copyVolume(ISeismicVolume source) {
+    if (!source.matches(this))
+      throw new IllegalArgumentException("Source volume and this volume do not match");
+    ITraceIterator src = source.getTraceIterator();
+    ITraceIterator dst = getTraceIterator();
+    while (src.hasNext()) {
+      float[] trc = src.next();
+      dst.next();
+      dst.putTrace(trc);
+    }
+  }
+
+  @Override
+  public GridDefinition getGlobalGrid() {
+    return globalGrid;
+  }
+
+  @Override
+  public boolean matches(ISeismicVolume seismicVolume) {
+    return globalGrid.matches(seismicVolume.getGlobalGrid());
+  }
+
+  @Override
+  public int getElementCount() {
+    return elementCount;
+  }
+
+  @Override
+  public ElementType getElementType() {
+    return elementType;
+  }
+
+  @Override
+  public ITraceIterator getTraceIterator() {
+    return new OffHeapTraceIterator();
+  }
+
+  /**
+   * Iterates over the local traces, copying each one through a reusable array
+   */
+  class OffHeapTraceIterator implements ITraceIterator {
+    int[] position = new int[3];
+    float[] trace = new float[traceLength];
+    int itrc = -1;
+    int frame = 0;
+
+    @Override
+    public boolean hasNext() {
+      return frame < localShape[2] && (itrc < volumeShape[1] - 1 || frame < localShape[2] - 1);
+    }
+
+    @Override
+    public float[] next() {
+      if (++itrc >= volumeShape[1]) {
+        itrc = 0;
+        frame++;
+      }
+      position[1] = itrc;
+      position[2] = frame + frameOffset;
+      getTrace(position, trace);
+      return trace;
+    }
+
+    @Override
+    public void putTrace(float[] trc) {
+      OffHeapSeismicVolume.this.putTrace(position, trc);
+    }
+
+    @Override
+    public int[] getPosition() {
+      return position;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException("Optional method Iterator.remove() is not implemented");
+    }
+  }
+}
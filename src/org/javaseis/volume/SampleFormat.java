@@ -0,0 +1,172 @@
+package org.javaseis.volume;
+
+import org.javaseis.array.ElementType;
+
+/**
+ * Primitive storage formats for seismic volume samples.
+ * <p>
+ * Each format names the primitive class used for storage, the number of
+ * primitive components per sample, and the storage size of a sample. Integer
+ * formats hold scaled amplitudes, where the float value of a sample is the
+ * stored integer times a scale factor.
+ *
+ * @author chuck
+ *
+ */
+public enum SampleFormat {
+  /** 8 bit scaled integer amplitudes */
+  INT8(ElementType.BYTE, byte.class, 1, 1),
+  /** 16 bit scaled integer amplitudes */
+  INT16(ElementType.SHORT, short.class, 1, 2),
+  /** 32 bit float */
+  FLOAT(ElementType.FLOAT, float.class, 1, 4),
+  /** Complex float, stored as interleaved real and imaginary parts */
+  COMPLEX(ElementType.FLOAT, float.class, 2, 8),
+  /** 64 bit double */
+  DOUBLE(ElementType.DOUBLE, double.class, 1, 8);
+
+  private final ElementType elementType;
+  private final Class<?> elementClass;
+  private final int components;
+  private final int bytesPerSample;
+
+  private SampleFormat(ElementType elementType, Class<?> elementClass, int components, int bytesPerSample) {
+    this.elementType = elementType;
+    this.elementClass = elementClass;
+    this.components = components;
+    this.bytesPerSample = bytesPerSample;
+  }
+
+  /**
+   * Return the element type of each stored component
+   */
+  public ElementType getElementType() {
+    return elementType;
+  }
+
+  /**
+   * Return the primitive class used to store samples
+   */
+  public Class<?> getElementClass() {
+    return elementClass;
+  }
+
+  /**
+   * Return the number of primitive components per sample
+   */
+  public int getComponents() {
+    return components;
+  }
+
+  /**
+   * Return the storage size of one sample in bytes
+   */
+  public int getBytesPerSample() {
+    return bytesPerSample;
+  }
+
+  /**
+   * Return true for the scaled integer formats
+   */
+  public boolean isScaled() {
+    return this == INT8 || this == INT16;
+  }
+
+  /**
+   * Return the largest stored integer magnitude for scaled formats
+   */
+  public int maxValue() {
+    return (this == INT8 ? Byte.MAX_VALUE : Short.MAX_VALUE);
+  }
+
+  /**
+   * Find the storage format for an ElementType. Complex volumes are requested
+   * with the COMPLEX format directly, as they are stored as FLOAT elements.
+   * @param elementType - element type requested for a volume
+   * @return matching storage format
+   * @throws IllegalArgumentException if there is no matching format
+   */
+  public static SampleFormat fromElementType(ElementType elementType) {
+    switch (elementType) {
+    case BYTE:
+      return INT8;
+    case SHORT:
+      return INT16;
+    case FLOAT:
+      return FLOAT;
+    case DOUBLE:
+      return DOUBLE;
+    default:
+      throw new IllegalArgumentException("Unsupported volume element type: " + elementType);
+    }
+  }
+
+  /**
+   * Return the scale that maps a peak amplitude onto the full integer range
+   * @param maxAbs - largest absolute amplitude to be stored
+   * @return scale factor, 1 for a zero amplitude
+   */
+  public float scaleFor(float maxAbs) {
+    if (maxAbs <= 0)
+      return 1f;
+    return maxAbs / maxValue();
+  }
+
+  /**
+   * Convert a float amplitude to the value stored by a scaled format, rounded
+   * and clipped to the integer range. Other formats store the value as is.
+   * @param value - float amplitude
+   * @param scale - amplitude scale of the volume
+   * @return stored value
+   */
+  public float toStored(float value, float scale) {
+    if (!isScaled())
+      return value;
+    int max = maxValue();
+    float v = value * (1f / scale);
+    v = (v > max ? max : (v < -max ? -max : v));
+    return Math.round(v);
+  }
+
+  /**
+   * Convert float amplitudes to scaled 16 bit integers
+   */
+  public static void quantize(float[] in, short[] out, int n, float scale) {
+    float r = 1f / scale;
+    for (int i = 0; i < n; i++) {
+      float v = in[i] * r;
+      v = (v > Short.MAX_VALUE ? Short.MAX_VALUE : (v < -Short.MAX_VALUE ? -Short.MAX_VALUE : v));
+      out[i] = (short) Math.round(v);
+    }
+  }
+
+  /**
+   * Convert scaled 16 bit integers to float amplitudes
+   */
+  public static void dequantize(short[] in, float[] out, int n, float scale) {
+    for (int i = 0; i < n; i++) {
+      out[i] = in[i] * scale;
+    }
+  }
+
+  /**
+   * Convert float amplitudes to scaled 8 bit integers
+   */
+  public static void quantize(float[] in, byte[] out, int n, float scale) {
+    float r = 1f / scale;
+    for (int i = 0; i < n; i++) {
+      float v = in[i] * r;
+      v = (v > Byte.MAX_VALUE ? Byte.MAX_VALUE : (v < -Byte.MAX_VALUE ? -Byte.MAX_VALUE : v));
+      out[i] = (byte) Math.round(v);
+    }
+  }
+
+  /**
+   * Convert scaled 8 bit integers to float amplitudes
+   */
+  public static void dequantize(byte[] in, float[] out, int n, float scale) {
+    for (int i = 0; i < n; i++) {
+      out[i] = in[i] * scale;
+    }
+  }
+}
@@ -25,12 +25,23 @@ public class SeismicVolume implements ISeismicVolume, IRegularGrid {
 
   ElementType elementType;
 
+  SampleFormat format;
+
+  /** Amplitude scale for integer formats */
+  float scale = 1f;
+
+  /** Work buffers for converting integer traces to float, one per thread */
+  final ThreadLocal<short[]> shortTrace = new ThreadLocal<short[]>();
+  final ThreadLocal<byte[]> byteTrace = new ThreadLocal<byte[]>();
+
   int elementCount;
 
   int decompType;
 
   int[] volumeShape;
 
+  long allocatedLength;
+
   IParallelContext pc;
 
   public SeismicVolume(IParallelContext parallelContext, GridDefinition globalGridDefinition) {
@@ -59,29 +70,75 @@ public class SeismicVolume implements ISeismicVolume, IRegularGrid {
   public SeismicVolume(IParallelContext parallelContext, GridDefinition globalGridDefinition,
       BinGrid binGridIn, ElementType volumeElementType, int volumeElementCount, int volumeDecompType,
       long maxLength) {
+    this(parallelContext, globalGridDefinition, binGridIn, SampleFormat.fromElementType(volumeElementType),
+        volumeElementCount, volumeDecompType, maxLength);
+  }
+
+  /**
+   * Create a volume with a storage format, which is the only way to create a
+   * complex volume
+   * @param parallelContext - parallel context for the decomposition
+   * @param globalGridDefinition - grid for the volume
+   * @param binGridIn - bin grid for the volume
+   * @param sampleFormat - storage format
+   * @param volumeElementCount - samples per grid point, each with the
+   *          components of the format
+   * @param volumeDecompType - decomposition type
+   * @param maxLength - minimum storage length
+   */
+  public SeismicVolume(IParallelContext parallelContext, GridDefinition globalGridDefinition,
+      BinGrid binGridIn, SampleFormat sampleFormat, int volumeElementCount, int volumeDecompType,
+      long maxLength) {
     pc = parallelContext;
+    binGrid = binGridIn;
+    format = sampleFormat;
+    elementType = format.getElementType();
+    elementCount = volumeElementCount * format.getComponents();
+    decompType = volumeDecompType;
+    long length = setGrids(globalGridDefinition);
+    maxLength = Math.max(maxLength, length);
+    allocate(maxLength);
+  }
+
+  /**
+   * Set the global and local grids and the volume shape from a grid definition
+   * @return element count of the new volume shape
+   */
+  private long setGrids(GridDefinition globalGridDefinition) {
     AxisDefinition[] axis = new AxisDefinition[3];
     volumeShape = new int[3];
-    long length = 1;
+    long length = elementCount;
     for (int i = 0; i < 3; i++) {
       axis[i] = globalGridDefinition.getAxis(i);
       volumeShape[i] = (int) axis[i].getLength();
       length *= volumeShape[i];
     }
-    maxLength = Math.max(maxLength, length);
+    globalGrid = globalGridDefinition;
     localGrid = new GridDefinition(3, axis);
-    binGrid = binGridIn;
-    elementType = volumeElementType;
-    elementCount = volumeElementCount;
-    decompType = volumeDecompType;
-    allocate(maxLength);
+    return length;
   }
 
   @Override
   public void allocate(long maxLength) {
-    volume = new DistributedArray(pc, float.class, 3, elementCount, volumeShape, decompType, maxLength);
+    volume = new DistributedArray(pc, format.getElementClass(), 3, elementCount, volumeShape, decompType,
+        maxLength);
     volume.allocate();
     volumeGrid = new RegularGrid(volume);
+    allocatedLength = maxLength;
+  }
+
+  @Override
+  public void reshape(GridDefinition globalGridDefinition) {
+    if (globalGridDefinition == globalGrid)
+      return;
+    long length = setGrids(globalGridDefinition);
+    if (length > allocatedLength) {
+      // Only grows, so a fixed set of grids settles after the first pass
+      allocate(length);
+      return;
+    }
+    volume.setShape(volumeShape);
+    volumeGrid = new RegularGrid(volume);
   }
 
   @Override
@@ -128,34 +185,55 @@ public class SeismicVolume implements ISeismicVolume, IRegularGrid {
     return volumeGrid.isPositionLocal(position);
   }
 
+  /**
+   * Return a sample as a float amplitude, scaled for integer formats as in
+   * getTrace
+   */
   @Override
   public float getSample(int[] position) {
+    if (format.isScaled())
+      return volumeGrid.getSample(position) * scale;
     return volumeGrid.getSample(position);
   }
 
   @Override
   public float getFloat(int[] position) {
+    if (format.isScaled())
+      return volumeGrid.getFloat(position) * scale;
     return volumeGrid.getFloat(position);
   }
 
+  /**
+   * Return a sample amplitude truncated to an int, scaled for integer formats
+   */
   @Override
   public int getInt(int[] position) {
+    if (format.isScaled())
+      return (int) getFloat(position);
     return volumeGrid.getInt(position);
   }
 
   @Override
   public double getDouble(int[] position) {
+    if (format.isScaled())
+      return getFloat(position);
     return volumeGrid.getDouble(position);
   }
 
+  /**
+   * Put a float amplitude, quantized for integer formats as in putTrace
+   */
   @Override
   public void putSample(float val, int[] position) {
-    volumeGrid.putSample(val, position);
+    volumeGrid.putSample(format.toStored(val, scale), position);
   }
 
   @Override
   public void putSample(double val, int[] position) {
-    volumeGrid.putSample(val, position);
+    if (format.isScaled())
+      volumeGrid.putSample(format.toStored((float) val, scale), position);
+    else
+      volumeGrid.putSample(val, position);
   }
 
   @Override
@@ -187,7 +265,18 @@ public class SeismicVolume implements ISeismicVolume, IRegularGrid {
   public void copyVolume(ISeismicVolume source) {
     if (!source.matches(this))
       throw new IllegalArgumentException("Source volume and this volume do not match");
-    this.getDistributedArray().copy(source.getDistributedArray());
+    if (source instanceof SeismicVolume) {
+      this.getDistributedArray().copy(source.getDistributedArray());
+      return;
+    }
+    // Other volumes, such as off-heap volumes, are copied a trace at a time
+    ITraceIterator src = source.getTraceIterator();
+    ITraceIterator dst = getTraceIterator();
+    while (src.hasNext()) {
+      float[] trc = src.next();
+      dst.next();
+      dst.putTrace(trc);
+    }
   }
 
   @Override
@@ -210,8 +299,319 @@ public class SeismicVolume implements ISeismicVolume, IRegularGrid {
     return elementType;
   }
 
+  /**
+   * Return an iterator over the local traces. Integer formats return float
+   * amplitudes scaled as in getTrace, and traces put through the iterator are
+   * quantized as in putTrace.
+   */
   @Override
   public ITraceIterator getTraceIterator() {
+    if (format.isScaled())
+      return new ScaledTraceIterator();
     return volumeGrid.getTraceIterator();
   }
+
+  /**
+   * Iterates over the local traces of an integer volume, converting each one
+   * through a reusable float array. Uses the trace iterator of the
+   * DistributedArray, so only one can be active on a volume at a time.
+   */
+  class ScaledTraceIterator implements ITraceIterator {
+    int[] position = new int[3];
+    float[] trace = new float[traceLength()];
+
+    ScaledTraceIterator() {
+      volume.resetTraceIterator();
+    }
+
+    @Override
+    public boolean hasNext() {
+      return volume.hasNext();
+    }
+
+    @Override
+    public float[] next() {
+      volume.next();
+      System.arraycopy(volume.getPosition(), 0, position, 0, position.length);
+      getTrace(trace, position);
+      return trace;
+    }
+
+    @Override
+    public void putTrace(float[] trc) {
+      SeismicVolume.this.putTrace(trc, position);
+    }
+
+    @Override
+    public int[] getPosition() {
+      return position;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException("Optional method Iterator.remove() is not implemented");
+    }
+  }
+
+  /**
+   * Return the primitive storage format of the volume
+   */
+  public SampleFormat getSampleFormat() {
+    return format;
+  }
+
+  /**
+   * Return the amplitude scale used by integer formats
+   */
+  public float getScale() {
+    return scale;
+  }
+
+  /**
+   * Set the amplitude scale used by integer formats, so that a float sample is
+   * the stored integer times the scale
+   * @param amplitudeScale - new scale
+   */
+  public void setScale(float amplitudeScale) {
+    if (amplitudeScale <= 0)
+      throw new IllegalArgumentException("Amplitude scale must be positive: " + amplitudeScale);
+    scale = amplitudeScale;
+  }
+
+  /**
+   * Return the storage size of the local volume in bytes
+   */
+  public long getLocalBytes() {
+    int bytesPerElement = format.getBytesPerSample() / format.getComponents();
+    return VolumePool.localBytes(pc, volumeShape, bytesPerElement, elementCount, 0);
+  }
+
+  private void checkFormat(SampleFormat expected) {
+    if (format != expected)
+      throw new IllegalStateException("Volume is stored as " + format + ", not " + expected);
+  }
+
+  private int traceLength() {
+    return elementCount * volumeShape[0];
+  }
+
+  private short[] shortTrace() {
+    short[] t = shortTrace.get();
+    if (t == null || t.length != traceLength()) {
+      t = new short[traceLength()];
+      shortTrace.set(t);
+    }
+    return t;
+  }
+
+  private byte[] byteTrace() {
+    byte[] t = byteTrace.get();
+    if (t == null || t.length != traceLength()) {
+      t = new byte[traceLength()];
+      byteTrace.set(t);
+    }
+    return t;
+  }
+
+  /**
+   * Get a trace as float amplitudes. Integer formats are scaled on the way out,
+   * other formats are copied directly from the DistributedArray. Safe to call
+   * from several threads on different traces.
+   * @param trc - output trace, elementCount*length of axis 0
+   * @param position - global position of the trace
+   */
+  public void getTrace(float[] trc, int[] position) {
+    switch (format) {
+    case INT16:
+      short[] strc = shortTrace();
+      volume.getTrace(strc, position);
+      SampleFormat.dequantize(strc, trc, traceLength(), scale);
+      break;
+    case INT8:
+      byte[] btrc = byteTrace();
+      volume.getTrace(btrc, position);
+      SampleFormat.dequantize(btrc, trc, traceLength(), scale);
+      break;
+    default:
+      volume.getTrace(trc, position);
+    }
+  }
+
+  /**
+   * Put a trace of float amplitudes. Integer formats are quantized with the
+   * current scale, with values beyond the integer range clipped. Safe to call
+   * from several threads on different traces.
+   * @param trc - input trace, elementCount*length of axis 0
+   * @param position - global position of the trace
+   */
+  public void putTrace(float[] trc, int[] position) {
+    switch (format) {
+    case INT16:
+      short[] strc = shortTrace();
+      SampleFormat.quantize(trc, strc, traceLength(), scale);
+      volume.putTrace(strc, position);
+      break;
+    case INT8:
+      byte[] btrc = byteTrace();
+      SampleFormat.quantize(trc, btrc, traceLength(), scale);
+      volume.putTrace(btrc, position);
+      break;
+    default:
+      volume.putTrace(trc, position);
+    }
+  }
+
+  /**
+   * Get a trace of stored 16 bit values without conversion
+   */
+  public void getTrace(short[] trc, int[] position) {
+    checkFormat(SampleFormat.INT16);
+    volume.getTrace(trc, position);
+  }
+
+  /**
+   * Put a trace of stored 16 bit values without conversion
+   */
+  public void putTrace(short[] trc, int[] position) {
+    checkFormat(SampleFormat.INT16);
+    volume.putTrace(trc, position);
+  }
+
+  /**
+   * Get a trace of stored 8 bit values without conversion
+   */
+  public void getTrace(byte[] trc, int[] position) {
+    checkFormat(SampleFormat.INT8);
+    volume.getTrace(trc, position);
+  }
+
+  /**
+   * Put a trace of stored 8 bit values without conversion
+   */
+  public void putTrace(byte[] trc, int[] position) {
+    checkFormat(SampleFormat.INT8);
+    volume.putTrace(trc, position);
+  }
+
+  /**
+   * Get a double precision trace
+   */
+  public void getTrace(double[] trc, int[] position) {
+    checkFormat(SampleFormat.DOUBLE);
+    volume.getTrace(trc, position);
+  }
+
+  /**
+   * Put a double precision trace
+   */
+  public void putTrace(double[] trc, int[] position) {
+    checkFormat(SampleFormat.DOUBLE);
+    volume.putTrace(trc, position);
+  }
+
+  /**
+   * Get a complex trace as interleaved real and imaginary parts
+   * @param trc - output trace, 2*length of axis 0 for each element
+   * @param position - global position of the trace
+   */
+  public void getComplexTrace(float[] trc, int[] position) {
+    checkFormat(SampleFormat.COMPLEX);
+    volume.getTrace(trc, position);
+  }
+
+  /**
+   * Put a complex trace of interleaved real and imaginary parts
+   * @param trc - input trace, 2*length of axis 0 for each element
+   * @param position - global position of the trace
+   */
+  public void putComplexTrace(float[] trc, int[] position) {
+    checkFormat(SampleFormat.COMPLEX);
+    volume.putTrace(trc, position);
+  }
+
+  /**
+   * Get a frame of float or complex samples
+   */
+  public void getFrame(float[][] frm, int[] position) {
+    if (format != SampleFormat.FLOAT && format != SampleFormat.COMPLEX)
+      checkFormat(SampleFormat.FLOAT);
+    volume.getFrame(frm, position);
+  }
+
+  /**
+   * Put a frame of float or complex samples
+   */
+  public void putFrame(float[][] frm, int[] position) {
+    if (format != SampleFormat.FLOAT && format != SampleFormat.COMPLEX)
+      checkFormat(SampleFormat.FLOAT);
+    volume.putFrame(frm, position);
+  }
+
+  /**
+   * Get a frame of stored 16 bit values
+   */
+  public void getFrame(short[][] frm, int[] position) {
+    checkFormat(SampleFormat.INT16);
+    volume.getFrame(frm, position);
+  }
+
+  /**
+   * Put a frame of stored 16 bit values
+   */
+  public void putFrame(short[][] frm, int[] position) {
+    checkFormat(SampleFormat.INT16);
+    volume.putFrame(frm, position);
+  }
+
+  /**
+   * Get a frame of stored 8 bit values
+   */
+  public void getFrame(byte[][] frm, int[] position) {
+    checkFormat(SampleFormat.INT8);
+    volume.getFrame(frm, position);
+  }
+
+  /**
+   * Put a frame of stored 8 bit values
+   */
+  public void putFrame(byte[][] frm, int[] position) {
+    checkFormat(SampleFormat.INT8);
+    volume.putFrame(frm, position);
+  }
+
+  /**
+   * Get a complex frame with each trace as interleaved real and imaginary parts
+   * @param frm - output frame, 2*length of axis 0 for each element per trace
+   * @param position - global position of the frame
+   */
+  public void getComplexFrame(float[][] frm, int[] position) {
+    checkFormat(SampleFormat.COMPLEX);
+    volume.getFrame(frm, position);
+  }
+
+  /**
+   * Put a complex frame with each trace as interleaved real and imaginary parts
+   * @param frm - input frame, 2*length of axis 0 for each element per trace
+   * @param position - global position of the frame
+   */
+  public void putComplexFrame(float[][] frm, int[] position) {
+    checkFormat(SampleFormat.COMPLEX);
+    volume.putFrame(frm, position);
+  }
+
+  /**
+   * Get a frame of double samples
+   */
+  public void getFrame(double[][] frm, int[] position) {
+    checkFormat(SampleFormat.DOUBLE);
+    volume.getFrame(frm, position);
+  }
+
+  /**
+   * Put a frame of double samples
+   */
+  public void putFrame(double[][] frm, int[] position) {
+    checkFormat(SampleFormat.DOUBLE);
+    volume.putFrame(frm, position);
+  }
 }
@@ -0,0 +1,371 @@
+package org.javaseis.volume;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+import org.javaseis.array.ElementType;
+import org.javaseis.grid.BinGrid;
+import org.javaseis.grid.GridDefinition;
+
+import beta.javaseis.distributed.Decomposition;
+import beta.javaseis.distributed.DistributedArray;
+import beta.javaseis.parallel.IParallelContext;
+
+/**
+ * Pool of SeismicVolumes and DistributedArrays shared by the tools and tasks
+ * running in a JVM.
+ * <p>
+ * Buffers are keyed by shape, element type, element count, decomposition and
+ * parallel context. A borrowed buffer is removed from the pool until it is
+ * returned. Returned buffers stay idle in the pool and are reused by later
+ * requests with the same key, most recently returned first. When a new
+ * allocation would take the pool over its memory ceiling, idle buffers are
+ * evicted least recently used first. Borrowed buffers are never evicted, so
+ * peak memory is bounded by the working set of the flow rather than by the sum
+ * of every tool's scratch space.
+ * <p>
+ * Contents of a borrowed buffer are whatever the last user left in it.
+ * <p>
+ * Buffers belong to the parallel context they were created with, so they can
+ * only be reused within one run. The runners call clear with the context of
+ * each task as the task finishes, so buffers do not outlive their run.
+ *
+ * @author chuck
+ *
+ */
+public class VolumePool {
+
+  private static VolumePool shared;
+
+  /** Memory ceiling in bytes, 0 for no limit */
+  long limit;
+  long idleBytes, busyBytes, peakBytes;
+  long hits, misses, evictions;
+
+  /** Idle buffers, least recently returned first */
+  LinkedList<Entry> idle;
+  Map<Object, Entry> busy;
+
+  /**
+   * Create a pool with a memory ceiling
+   * @param memoryLimit - ceiling in bytes, 0 for no limit
+   */
+  public VolumePool(long memoryLimit) {
+    limit = memoryLimit;
+    idle = new LinkedList<Entry>();
+    busy = new IdentityHashMap<Object, Entry>();
+  }
+
+  /**
+   * Return the pool shared by all tasks in this JVM, creating it on first use
+   * @param memoryLimit - ceiling in bytes, 0 for no limit, which replaces the
+   *          ceiling of an existing pool
+   * @return shared pool
+   */
+  public static synchronized VolumePool getShared(long memoryLimit) {
+    if (shared == null)
+      shared = new VolumePool(memoryLimit);
+    else
+      shared.setLimit(memoryLimit);
+    return shared;
+  }
+
+  /**
+   * Set the memory ceiling, evicting idle buffers if the pool is over it
+   * @param memoryLimit - ceiling in bytes, 0 for no limit
+   */
+  public synchronized void setLimit(long memoryLimit) {
+    limit = memoryLimit;
+    while (limit > 0 && idleBytes + busyBytes > limit && !idle.isEmpty()) {
+      evict();
+    }
+  }
+
+  /**
+   * Borrow a float volume with block decomposition
+   * @param pc - parallel context for the volume
+   * @param grid - global grid for the volume
+   * @return pooled or new volume
+   */
+  public ISeismicVolume borrowVolume(IParallelContext pc, GridDefinition grid) {
+    return borrowVolume(pc, grid, ElementType.FLOAT, 1, Decomposition.BLOCK, 0);
+  }
+
+  /**
+   * Borrow a heap volume
+   * @param pc - parallel context for the volume
+   * @param grid - global grid for the volume
+   * @param elementType - element type of the volume
+   * @param elementCount - elements per sample
+   * @param decompType - decomposition type
+   * @param maxLength - minimum storage length, as for the SeismicVolume
+   *          constructor
+   * @return pooled or new volume
+   */
+  public ISeismicVolume borrowVolume(IParallelContext pc, GridDefinition grid,
+      ElementType elementType, int elementCount, int decompType, long maxLength) {
+    return borrowVolume(pc, grid, elementType, elementCount, decompType, maxLength, null);
+  }
+
+  /**
+   * Borrow a volume
+   * @param pc - parallel context for the volume
+   * @param grid - global grid for the volume
+   * @param elementType - element type of the volume
+   * @param elementCount - elements per sample
+   * @param decompType - decomposition type
+   * @param maxLength - minimum storage length, as for the SeismicVolume
+   *          constructor
+   * @param storage - off-heap storage, which needs float samples and block
+   *          decomposition, or null for a heap SeismicVolume
+   * @return pooled or new volume
+   */
+  public synchronized ISeismicVolume borrowVolume(IParallelContext pc, GridDefinition grid,
+      ElementType elementType, int elementCount, int decompType, long maxLength,
+      OffHeapSeismicVolume.Storage storage) {
+    SampleFormat format = SampleFormat.fromElementType(elementType);
+    if (storage != null && decompType != Decomposition.BLOCK)
+      throw new IllegalArgumentException("Off-heap volumes only support block decomposition");
+    int[] shape = new int[3];
+    for (int i = 0; i < 3; i++) {
+      shape[i] = (int) grid.getAxisLength(i);
+    }
+    String type = (storage == null ? format.name() : format.name() + "/" + storage.name());
+    Key key = new Key(pc, shape, type, elementCount * format.getComponents(), decompType, maxLength);
+    Entry entry = take(key);
+    if (entry == null) {
+      long bytes = localBytes(pc, shape, format.getBytesPerSample() / format.getComponents(),
+          key.elementCount, maxLength);
+      reserve(bytes);
+      ISeismicVolume volume;
+      if (storage == null)
+        volume = new SeismicVolume(pc, grid, BinGrid.simpleBinGrid(shape[1], shape[1]), elementType,
+            elementCount, decompType, maxLength);
+      else
+        volume = new OffHeapSeismicVolume(pc, grid, storage, null, elementType, elementCount, maxLength);
+      entry = new Entry(key, volume, bytes);
+    }
+    ((ISeismicVolume) entry.buffer).reshape(grid);
+    busy.put(entry.buffer, entry);
+    return (ISeismicVolume) entry.buffer;
+  }
+
+  /**
+   * Borrow a distributed array
+   * @param pc - parallel context for the array
+   * @param elementClass - primitive class of the elements
+   * @param elementCount - elements per sample
+   * @param shape - global shape of the array
+   * @param decompType - decomposition type
+   * @return pooled or new array
+   */
+  public synchronized DistributedArray borrowArray(IParallelContext pc, Class<?> elementClass,
+      int elementCount, int[] shape, int decompType) {
+    Key key = new Key(pc, shape.clone(), elementClass.getName(), elementCount, decompType, 0);
+    Entry entry = take(key);
+    if (entry == null) {
+      long bytes = localBytes(pc, shape, bytesPerElement(elementClass), elementCount, 0);
+      reserve(bytes);
+      DistributedArray da = new DistributedArray(pc, elementClass, shape.length, elementCount, shape,
+          decompType, 0);
+      da.allocate();
+      entry = new Entry(key, da, bytes);
+    }
+    busy.put(entry.buffer, entry);
+    return (DistributedArray) entry.buffer;
+  }
+
+  /**
+   * Return a borrowed volume to the pool
+   * @param volume - volume obtained from borrowVolume
+   */
+  public synchronized void returnVolume(ISeismicVolume volume) {
+    release(volume);
+  }
+
+  /**
+   * Return a borrowed array to the pool
+   * @param da - array obtained from borrowArray
+   */
+  public synchronized void returnArray(DistributedArray da) {
+    release(da);
+  }
+
+  /**
+   * Drop all idle buffers
+   */
+  public synchronized void clear() {
+    while (!idle.isEmpty()) {
+      evict();
+    }
+  }
+
+  /**
+   * Drop every buffer created for a parallel context, idle or borrowed. Call
+   * once the tools of a task are finished, buffers still borrowed at that
+   * point can no longer be returned.
+   * @param pc - parallel context of the finished task
+   */
+  public synchronized void clear(IParallelContext pc) {
+    Iterator<Entry> it = idle.iterator();
+    while (it.hasNext()) {
+      Entry entry = it.next();
+      if (entry.key.pc == pc) {
+        it.remove();
+        idleBytes -= entry.bytes;
+      }
+    }
+    it = busy.values().iterator();
+    while (it.hasNext()) {
+      Entry entry = it.next();
+      if (entry.key.pc == pc) {
+        it.remove();
+        busyBytes -= entry.bytes;
+      }
+    }
+  }
+
+  private Entry take(Key key) {
+    // Most recently returned first, as it is most likely to still be in cache
+    Iterator<Entry> it = idle.descendingIterator();
+    while (it.hasNext()) {
+      Entry entry = it.next();
+      if (entry.key.equals(key)) {
+        it.remove();
+        idleBytes -= entry.bytes;
+        busyBytes += entry.bytes;
+        hits++;
+        return entry;
+      }
+    }
+    misses++;
+    return null;
+  }
+
+  private void reserve(long bytes) {
+    while (limit > 0 && !idle.isEmpty() && idleBytes + busyBytes + bytes > limit) {
+      evict();
+    }
+    busyBytes += bytes;
+    peakBytes = Math.max(peakBytes, idleBytes + busyBytes);
+  }
+
+  private void evict() {
+    Entry entry = idle.removeFirst();
+    idleBytes -= entry.bytes;
+    evictions++;
+  }
+
+  private void release(Object buffer) {
+    Entry entry = busy.remove(buffer);
+    if (entry == null)
+      throw new IllegalArgumentException("Buffer was not borrowed from this pool");
+    busyBytes -= entry.bytes;
+    idleBytes += entry.bytes;
+    idle.addLast(entry);
+    while (limit > 0 && idleBytes + busyBytes > limit && !idle.isEmpty()) {
+      evict();
+    }
+  }
+
+  /**
+   * Estimate the local storage of a block decomposed array
+   */
+  static long localBytes(IParallelContext pc, int[] shape, int bytesPerElement, int elementCount,
+      long maxLength) {
+    int ndim = shape.length;
+    long length = (long) elementCount * Decomposition.paddedLength(shape[ndim - 1], pc.size()) / pc.size();
+    for (int i = 0; i < ndim - 1; i++) {
+      length *= shape[i];
+    }
+    return bytesPerElement * Math.max(length, maxLength / pc.size());
+  }
+
+  static int bytesPerElement(Class<?> elementClass) {
+    if (elementClass == byte.class)
+      return 1;
+    if (elementClass == short.class)
+      return 2;
+    if (elementClass == double.class || elementClass == long.class)
+      return 8;
+    return 4;
+  }
+
+  public synchronized long getIdleBytes() {
+    return idleBytes;
+  }
+
+  public synchronized long getBusyBytes() {
+    return busyBytes;
+  }
+
+  public synchronized long getPeakBytes() {
+    return peakBytes;
+  }
+
+  /**
+   * Return a summary of pool usage
+   */
+  public synchronized String report() {
+    StringBuffer buf = new StringBuffer("Volume Pool Report: MBytes\n");
+    buf.append(String.format("%12s: %-12.2f\n", "limit", limit / 1e6));
+    buf.append(String.format("%12s: %-12.2f\n", "busy", busyBytes / 1e6));
+    buf.append(String.format("%12s: %-12.2f\n", "idle", idleBytes / 1e6));
+    buf.append(String.format("%12s: %-12.2f\n", "peak", peakBytes / 1e6));
+    buf.append(String.format("%12s: %-12d\n", "hits", hits));
+    buf.append(String.format("%12s: %-12d\n", "misses", misses));
+    buf.append(String.format("%12s: %-12d", "evictions", evictions));
+    return buf.toString();
+  }
+
+  /**
+   * Pool key, the parallel context is compared by identity as a buffer can
+   * only be used by the tasks of the context it was created with
+   */
+  static class Key {
+    IParallelContext pc;
+    int[] shape;
+    String type;
+    int elementCount, decompType;
+    long maxLength;
+
+    Key(IParallelContext pc, int[] shape, String type, int elementCount, int decompType, long maxLength) {
+      this.pc = pc;
+      this.shape = shape;
+      this.type = type;
+      this.elementCount = elementCount;
+      this.decompType = decompType;
+      this.maxLength = maxLength;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key))
+        return false;
+      Key k = (Key) obj;
+      return pc == k.pc && Arrays.equals(shape, k.shape) && type.equals(k.type)
+          && elementCount == k.elementCount && decompType == k.decompType && maxLength == k.maxLength;
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(pc) + 31 * Arrays.hashCode(shape) + type.hashCode()
+          + elementCount + decompType + (int) maxLength;
+    }
+  }
+
+  static class Entry {
+    Key key;
+    Object buffer;
+    long bytes;
+
+    Entry(Key key, Object buffer, long bytes) {
+      this.key = key;
+      this.buffer = buffer;
+      this.bytes = bytes;
+    }
+  }
+}